@@ -0,0 +1,81 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of a single {@link Linker} running an increasing
+ * number of independent jobs (parse, link and emit of the same input), each
+ * on a virtual thread of its own. The time taken should grow linearly with
+ * the number of jobs, i.e. jobs per second should stay flat once every
+ * processor is busy.
+ * <p>
+ * Requires Java 21 (it is only built by the jdk21 profile):
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar twopass.ConcurrentLinkBenchmark inputs/input-9.txt [max jobs]
+ * </pre>
+ */
+public class ConcurrentLinkBenchmark {
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length == 0)
+			throw new IllegalArgumentException(
+					"\nExpected path to input series of object modules.\nFor example, \n\njava twopass.ConcurrentLinkBenchmark input-9.txt 4096\n");
+
+		final Path input = Paths.get(args[0]);
+		int maxJobs = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		final Linker linker = new Linker();
+
+		// Warm up with as many jobs as the largest run
+		runJobs(linker, input, maxJobs);
+
+		System.out.printf("%8s %12s %12s%n", "jobs", "ms", "jobs/s");
+		for (int jobs = 1; jobs <= maxJobs; jobs *= 4) {
+			long start = System.nanoTime();
+			runJobs(linker, input, jobs);
+			double millis = (System.nanoTime() - start) / 1e6;
+			System.out.printf("%8d %12.1f %12.0f%n", jobs, millis, jobs
+					/ (millis / 1000));
+		}
+
+	}
+
+	private static void runJobs(final Linker linker, final Path input,
+			int jobs) throws Exception {
+
+		try (ExecutorService executor = Executors
+				.newVirtualThreadPerTaskExecutor()) {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < jobs; i++)
+				results.add(executor.submit(() -> link(linker, input)));
+
+			for (Future<Integer> result : results)
+				result.get();
+		}
+
+	}
+
+	private static int link(Linker linker, Path input) throws IOException {
+		ObjectProgram program = linker.parse(input);
+		LinkResult result = linker.link(program);
+		linker.emit(result, OutputFormat.TEXT, DISCARD);
+		return result.getWordCount();
+	}
+}
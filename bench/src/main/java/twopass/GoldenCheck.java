@@ -0,0 +1,126 @@
+package twopass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks the reports of the sample inputs against their golden outputs
+ * (inputs/input-N.txt against outputs/output-N.txt), linking them normally,
+ * in streaming mode (with the symbol table in memory and in temporary files),
+ * as a pipeline and from an object file. Every benchmark runs it before
+ * measuring anything, so that performance work cannot change the results
+ * without being noticed.
+ * <p>
+ * The golden outputs leave out the blank line that ends the report when
+ * symbols are defined but there are no warnings, so trailing blank lines are
+ * not compared.
+ */
+public final class GoldenCheck {
+
+	/**
+	 * @throws IllegalStateException
+	 *             If any report differs from its golden output.
+	 */
+	public static void verify(Path root) throws IOException {
+
+		Linker linker = new Linker();
+		List<String> failures = new ArrayList<String>();
+		Path objectFile = Files.createTempFile("twopass-", ".tpo");
+
+		try {
+			for (int i = 1;; i++) {
+				Path input = root.resolve("inputs/input-" + i + ".txt");
+				Path output = root.resolve("outputs/output-" + i + ".txt");
+				if (!Files.exists(input) || !Files.exists(output))
+					break;
+
+				String expected = trim(new String(Files.readAllBytes(output),
+						StandardCharsets.US_ASCII));
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				linker.emit(linker.link(linker.parse(input)),
+						OutputFormat.TEXT, out);
+				if (!expected.equals(trim(out.toString("US-ASCII"))))
+					failures.add(input.getFileName().toString());
+
+				out.reset();
+				linker.stream(input, OutputFormat.TEXT, out);
+				if (!expected.equals(trim(out.toString("US-ASCII"))))
+					failures.add(input.getFileName() + " (streaming)");
+
+				out.reset();
+				linker.streamExternal(Collections.singletonList(input),
+						OutputFormat.TEXT, out);
+				if (!expected.equals(trim(out.toString("US-ASCII"))))
+					failures.add(input.getFileName() + " (external symbols)");
+
+				out.reset();
+				linker.pipeline(Collections.singletonList(input),
+						OutputFormat.TEXT, out);
+				if (!expected.equals(trim(out.toString("US-ASCII"))))
+					failures.add(input.getFileName() + " (pipelined)");
+
+				out.reset();
+				try (OutputStream objectOut = Files
+						.newOutputStream(objectFile)) {
+					linker.compile(linker.parse(input), objectOut);
+				}
+				linker.emit(linker.link(linker.parse(objectFile)),
+						OutputFormat.TEXT, out);
+				if (!expected.equals(trim(out.toString("US-ASCII"))))
+					failures.add(input.getFileName() + " (object file)");
+			}
+		} finally {
+			Files.deleteIfExists(objectFile);
+		}
+
+		if (!failures.isEmpty())
+			throw new IllegalStateException(
+					"Reports differ from the golden outputs: " + failures);
+
+	}
+
+	/**
+	 * @return The root of the repository: the twopass.root system property,
+	 *         or the first directory up from the current one that has both
+	 *         inputs/ and outputs/.
+	 */
+	public static Path findRoot() {
+
+		String property = System.getProperty("twopass.root");
+		if (property != null)
+			return Paths.get(property);
+
+		for (Path dir = Paths.get("").toAbsolutePath(); dir != null; dir = dir
+				.getParent())
+			if (Files.isDirectory(dir.resolve("inputs"))
+					&& Files.isDirectory(dir.resolve("outputs")))
+				return dir;
+
+		throw new IllegalStateException(
+				"Cannot find inputs/ and outputs/ (set -Dtwopass.root)");
+
+	}
+
+	private static String trim(String report) {
+		int end = report.length();
+		while (end > 0
+				&& (report.charAt(end - 1) == '\n' || report.charAt(end - 1) == '\r'))
+			end--;
+		return report.substring(0, end).replace("\r\n", "\n");
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path root = args.length > 0 ? Paths.get(args[0]) : findRoot();
+		verify(root);
+		System.out.println("Golden outputs match");
+	}
+}
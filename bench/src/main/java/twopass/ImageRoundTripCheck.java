@@ -0,0 +1,142 @@
+package twopass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Round trip of the binary image written through a memory mapping: every
+ * input is linked into an image file, for the default machine and for a
+ * wide binary one, and the file must be the same, byte for byte, as the
+ * --format=bin output of a normal link. It is then read back with
+ * {@link ImageFile} and every word and symbol compared with the result.
+ * Finally times, for each input, writing the image both ways.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar twopass.ImageRoundTripCheck inputs/input-*.txt
+ * </pre>
+ */
+public class ImageRoundTripCheck {
+
+	private static final int RUNS = 10;
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length == 0)
+			throw new IllegalArgumentException(
+					"\nExpected paths to input series of object modules.\nFor example, \n\njava twopass.ImageRoundTripCheck inputs/input-*.txt\n");
+
+		MachineGeometry[] machines = { MachineGeometry.DEFAULT,
+				MachineGeometry.binary(1 << 30, 7, 31) };
+		Path image = Files.createTempFile("twopass-", ".bin");
+		Path emitted = Files.createTempFile("twopass-", ".bin");
+		int checks = 0;
+		int failures = 0;
+
+		try {
+			for (String arg : args) {
+				for (MachineGeometry machine : machines) {
+					Linker linker = new Linker(machine, null);
+					ObjectProgram program = linker.parse(Paths.get(arg));
+					String check = arg + " (" + machine + ")";
+
+					LinkResult mapped = linker.link(program, image);
+					LinkResult result = linker.link(program);
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					linker.emit(result, OutputFormat.BIN, out);
+
+					checks++;
+					if (!Arrays.equals(out.toByteArray(),
+							Files.readAllBytes(image))) {
+						System.out.println("FAIL " + check + " bytes");
+						failures++;
+					}
+
+					checks++;
+					if (mapped.getWordCount() != result.getWordCount()
+							|| !mapped.getWarnings().equals(
+									result.getWarnings())) {
+						System.out.println("FAIL " + check + " result");
+						failures++;
+					}
+
+					ImageFile file = ImageFile.open(image);
+					checks++;
+					if (file.getWordCount() != result.getWordCount()
+							|| file.isWide() != machine.isWide()
+							|| file.getSymbolCount() != result
+									.getSymbolCount()) {
+						System.out.println("FAIL " + check + " header");
+						failures++;
+						continue;
+					}
+
+					for (int i = 0; i < file.getWordCount(); i++) {
+						checks++;
+						if (file.getWord(i) != result.getWord(i)
+								|| mapped.getWordDiagnostic(i) != result
+										.getWordDiagnostic(i)) {
+							System.out.println("FAIL " + check + " word " + i);
+							failures++;
+						}
+					}
+
+					for (int i = 0; i < file.getSymbolCount(); i++) {
+						checks++;
+						if (!file.getSymbolName(i).equals(
+								result.getSymbolName(i))
+								|| file.getSymbolLocation(i) != result
+										.getSymbolLocation(i)
+								|| file.getSymbolModule(i) != result
+										.getSymbolModule(i)) {
+							System.out.println("FAIL " + check + " symbol "
+									+ result.getSymbolName(i));
+							failures++;
+						}
+					}
+				}
+			}
+
+			System.out.println(checks + " checks, " + failures + " failed");
+
+			System.out.printf("%-24s %10s %18s %18s%n", "input", "words",
+					"emitted (ms)", "mapped (ms)");
+			Linker linker = new Linker();
+			for (String arg : args) {
+				ObjectProgram program = linker.parse(Paths.get(arg));
+				long[] emit = new long[RUNS];
+				long[] map = new long[RUNS];
+				for (int i = 0; i < RUNS; i++) {
+					long start = System.nanoTime();
+					try (OutputStream out = Files.newOutputStream(emitted)) {
+						linker.emit(linker.link(program), OutputFormat.BIN, out);
+					}
+					emit[i] = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					linker.link(program, image);
+					map[i] = System.nanoTime() - start;
+				}
+				System.out.printf("%-24s %10d %18s %18s%n", Paths.get(arg)
+						.getFileName(), program.instructions.size(),
+						median(emit), median(map));
+			}
+		} finally {
+			Files.deleteIfExists(image);
+			Files.deleteIfExists(emitted);
+		}
+
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	private static String median(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return String.format("%.3f", sorted[sorted.length / 2] / 1e6);
+	}
+}
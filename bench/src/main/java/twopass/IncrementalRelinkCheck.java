@@ -0,0 +1,200 @@
+package twopass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Differential check of the incremental linker: every input is edited one
+ * module at a time (text made shorter or longer, a definition moved, a use
+ * renamed, modules swapped or removed) and each edit is relinked
+ * incrementally, right after the original, and then fully. Both reports must
+ * be the same, byte for byte, as must the report of the original when it is
+ * relinked again after the edit.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar twopass.IncrementalRelinkCheck inputs/input-*.txt
+ * </pre>
+ */
+public class IncrementalRelinkCheck {
+
+	private static final Pattern TOKEN = Pattern.compile("[\\d\\w]+");
+
+	private static final String[] EDITS = { "shrink", "grow", "move",
+			"rename", "swap", "remove" };
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length == 0)
+			throw new IllegalArgumentException(
+					"\nExpected paths to input series of object modules.\nFor example, \n\njava twopass.IncrementalRelinkCheck inputs/input-*.txt\n");
+
+		Linker linker = new Linker();
+		Path edited = Files.createTempFile("twopass-", ".txt");
+		Path original = Files.createTempFile("twopass-", ".txt");
+		int checks = 0;
+		int failures = 0;
+
+		try {
+			for (String arg : args) {
+				List<List<List<String>>> modules = readModules(Paths.get(arg));
+				write(original, modules);
+				byte[] expectedOriginal = link(linker, original);
+
+				IncrementalLinker incremental = new IncrementalLinker();
+				incremental.relink(original);
+
+				for (int i = 0; i < modules.size(); i++) {
+					for (String edit : EDITS) {
+						List<List<List<String>>> copy = edit(modules, i, edit);
+						if (copy == null)
+							continue;
+						write(edited, copy);
+
+						String check = arg + " module " + (i + 1) + " " + edit;
+						checks += 2;
+						if (!Arrays.equals(link(linker, edited),
+								emit(linker, incremental, edited))) {
+							System.out.println("FAIL " + check);
+							failures++;
+						}
+						if (!Arrays.equals(expectedOriginal,
+								emit(linker, incremental, original))) {
+							System.out.println("FAIL " + check + " (undone)");
+							failures++;
+						}
+					}
+				}
+			}
+		} finally {
+			Files.deleteIfExists(edited);
+			Files.deleteIfExists(original);
+		}
+
+		System.out.println(checks + " relinks checked, " + failures
+				+ " failed");
+		if (failures > 0)
+			System.exit(1);
+
+	}
+
+	private static byte[] link(Linker linker, Path input) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		linker.emit(linker.link(linker.parse(input)), OutputFormat.TEXT, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] emit(Linker linker, IncrementalLinker incremental,
+			Path input) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		linker.emit(incremental.relink(input), OutputFormat.TEXT, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Splits an input into modules made of their three lists (definitions,
+	 * uses and text), each of them a list of tokens without its counter.
+	 */
+	private static List<List<List<String>>> readModules(Path input)
+			throws IOException {
+
+		List<String> tokens = new ArrayList<String>();
+		Matcher matcher = TOKEN.matcher(new String(Files.readAllBytes(input),
+				StandardCharsets.US_ASCII));
+		while (matcher.find())
+			tokens.add(matcher.group());
+
+		List<List<List<String>>> modules = new ArrayList<List<List<String>>>();
+		int position = 0;
+		while (position < tokens.size()) {
+			List<List<String>> module = new ArrayList<List<String>>();
+			for (int list = 0; list < 3; list++) {
+				int count = Integer.parseInt(tokens.get(position++));
+				int size = list == 1 ? count : count * 2;
+				module.add(new ArrayList<String>(tokens.subList(position,
+						position + size)));
+				position += size;
+			}
+			modules.add(module);
+		}
+
+		return modules;
+	}
+
+	/**
+	 * @return A copy of the modules with the given edit applied to the i-th,
+	 *         or null if it does not apply to it.
+	 */
+	private static List<List<List<String>>> edit(
+			List<List<List<String>>> modules, int i, String edit) {
+
+		List<List<List<String>>> copy = new ArrayList<List<List<String>>>();
+		for (List<List<String>> module : modules) {
+			List<List<String>> lists = new ArrayList<List<String>>();
+			for (List<String> list : module)
+				lists.add(new ArrayList<String>(list));
+			copy.add(lists);
+		}
+
+		List<String> definitions = copy.get(i).get(0);
+		List<String> uses = copy.get(i).get(1);
+		List<String> text = copy.get(i).get(2);
+
+		if (edit.equals("shrink")) {
+			if (text.isEmpty())
+				return null;
+			text.subList(text.size() - 2, text.size()).clear();
+
+		} else if (edit.equals("grow")) {
+			text.addAll(Arrays.asList("R", "1000"));
+
+		} else if (edit.equals("move")) {
+			if (definitions.isEmpty())
+				return null;
+			definitions.set(1,
+					String.valueOf(Integer.parseInt(definitions.get(1)) + 1));
+
+		} else if (edit.equals("rename")) {
+			if (uses.isEmpty())
+				return null;
+			uses.set(0, definitions.isEmpty() ? "renamed" : definitions.get(0));
+
+		} else if (edit.equals("swap")) {
+			if (i + 1 == copy.size())
+				return null;
+			copy.add(i, copy.remove(i + 1));
+
+		} else if (edit.equals("remove")) {
+			if (copy.size() == 1)
+				return null;
+			copy.remove(i);
+		}
+
+		return copy;
+	}
+
+	private static void write(Path path, List<List<List<String>>> modules)
+			throws IOException {
+
+		StringBuilder sb = new StringBuilder();
+		for (List<List<String>> module : modules) {
+			for (int list = 0; list < 3; list++) {
+				List<String> tokens = module.get(list);
+				sb.append(list == 1 ? tokens.size() : tokens.size() / 2);
+				for (String token : tokens)
+					sb.append(' ').append(token);
+				sb.append('\n');
+			}
+		}
+
+		Files.write(path, sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,193 @@
+package twopass;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Writes synthetic inputs of any size in the text format, always the same
+ * for the same settings (and seed).
+ * <p>
+ * Module m defines the symbols "S{m}_{k}" and its use list refers to symbols
+ * defined anywhere in the input. The classification of every instruction is
+ * drawn with the given weights, with addresses that are valid for it. Errors
+ * are injected at the given rate (per definition, use and instruction):
+ * symbols defined again, uses of undefined symbols, Relative addresses past
+ * the end of the module, External addresses past the end of the use list and
+ * Absolute addresses past the end of the machine.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar twopass.InputGenerator --modules=100000 --errors=0.01 --out=big.txt
+ * </pre>
+ */
+public final class InputGenerator {
+	// Given memory size of the target machine
+	private static final int MACHINE_MEMORY_SIZE = 600;
+
+	int modules = 1000;
+	int symbolsPerModule = 2;
+	int usesPerModule = 3;
+	int wordsPerModule = 8;
+	// Relative weights of the E, R, I and A instructions
+	int[] mix = { 1, 1, 1, 1 };
+	// Chance of every definition, use and instruction having an error
+	double errorRate = 0;
+	long seed = 1;
+
+	/**
+	 * Reads the settings from arguments such as "--modules=1000" (the others
+	 * are --symbols, --uses, --words, --mix=E:R:I:A, --errors and --seed).
+	 */
+	public static InputGenerator fromArgs(String... args) {
+
+		InputGenerator generator = new InputGenerator();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+				continue;
+
+			String name = arg.substring(2, arg.indexOf('='));
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (name.equals("modules"))
+				generator.modules = Integer.parseInt(value);
+			else if (name.equals("symbols"))
+				generator.symbolsPerModule = Integer.parseInt(value);
+			else if (name.equals("uses"))
+				generator.usesPerModule = Integer.parseInt(value);
+			else if (name.equals("words"))
+				generator.wordsPerModule = Integer.parseInt(value);
+			else if (name.equals("mix"))
+				generator.mix = parseMix(value);
+			else if (name.equals("errors"))
+				generator.errorRate = Double.parseDouble(value);
+			else if (name.equals("seed"))
+				generator.seed = Long.parseLong(value);
+			else if (!name.equals("out"))
+				throw new IllegalArgumentException("Unknown setting " + arg);
+		}
+
+		// Leave room for Relative addresses past the end of the module
+		if (generator.wordsPerModule > 998)
+			throw new IllegalArgumentException(
+					"Modules of more than 998 words cannot be generated");
+		return generator;
+	}
+
+	private static int[] parseMix(String value) {
+		String[] weights = value.split(":");
+		if (weights.length != 4)
+			throw new IllegalArgumentException("Expected --mix=E:R:I:A");
+
+		int[] mix = new int[4];
+		for (int i = 0; i < 4; i++)
+			mix[i] = Integer.parseInt(weights[i]);
+		return mix;
+	}
+
+	public void write(Path path) throws IOException {
+		try (Writer out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+			this.write(out);
+		}
+	}
+
+	public void write(Writer out) throws IOException {
+
+		SplittableRandom random = new SplittableRandom(this.seed);
+		int totalWeight = this.mix[0] + this.mix[1] + this.mix[2] + this.mix[3];
+		StringBuilder line = new StringBuilder();
+
+		for (int m = 0; m < this.modules; m++) {
+			int words = this.wordsPerModule;
+
+			line.setLength(0);
+			line.append(this.symbolsPerModule);
+			for (int k = 0; k < this.symbolsPerModule; k++) {
+				if (m > 0 && this.error(random))
+					symbol(line, random.nextInt(m), k);
+				else
+					symbol(line, m, k);
+				line.append(' ').append(words == 0 ? 0 : random.nextInt(words));
+			}
+			out.append(line).append('\n');
+
+			int uses = this.symbolsPerModule == 0 ? 0 : this.usesPerModule;
+			line.setLength(0);
+			line.append(uses);
+			for (int u = 0; u < uses; u++) {
+				if (this.error(random))
+					line.append(" U").append(m).append('_').append(u);
+				else
+					symbol(line, random.nextInt(this.modules),
+							random.nextInt(this.symbolsPerModule));
+			}
+			out.append(line).append('\n');
+
+			line.setLength(0);
+			line.append(words);
+			for (int w = 0; w < words; w++) {
+				int pick = random.nextInt(totalWeight);
+				char classification;
+				int address;
+				boolean error = this.error(random);
+
+				if ((pick -= this.mix[0]) < 0 && uses > 0) {
+					classification = 'E';
+					address = error ? uses + random.nextInt(1000 - uses)
+							: random.nextInt(uses);
+				} else if (pick < this.mix[1]) {
+					classification = 'R';
+					address = error ? words + 1
+							+ random.nextInt(1000 - words - 1) : random
+							.nextInt(words);
+				} else if (pick < this.mix[1] + this.mix[2]) {
+					classification = 'I';
+					address = random.nextInt(1000);
+				} else {
+					classification = 'A';
+					address = error ? MACHINE_MEMORY_SIZE
+							+ random.nextInt(1000 - MACHINE_MEMORY_SIZE)
+							: random.nextInt(MACHINE_MEMORY_SIZE);
+				}
+
+				line.append(' ').append(classification).append(' ')
+						.append(1 + random.nextInt(9));
+				if (address < 100)
+					line.append('0');
+				if (address < 10)
+					line.append('0');
+				line.append(address);
+			}
+			out.append(line).append('\n');
+		}
+
+	}
+
+	private boolean error(SplittableRandom random) {
+		return this.errorRate > 0 && random.nextDouble() < this.errorRate;
+	}
+
+	private static void symbol(StringBuilder line, int module, int k) {
+		line.append(" S").append(module).append('_').append(k);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		InputGenerator generator = fromArgs(args);
+
+		for (String arg : args)
+			if (arg.startsWith("--out=")) {
+				generator.write(Path.of(arg.substring("--out=".length())));
+				return;
+			}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out,
+				StandardCharsets.US_ASCII));
+		generator.write(out);
+		out.flush();
+
+	}
+}
@@ -0,0 +1,172 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Differential check of {@link LinkQuery}: every word, error and defined
+ * symbol of each input is queried (words in a scattered order, with a small
+ * cache, so that modules are relocated again and again) and compared with a
+ * full link. The External words that refer to each symbol are checked
+ * against the text of the program. Then times, for each input, loading the
+ * symbols and querying a single word against a full link.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar twopass.LinkQueryCheck inputs/input-*.txt
+ * </pre>
+ */
+public class LinkQueryCheck {
+
+	private static final int RUNS = 20;
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length == 0)
+			throw new IllegalArgumentException(
+					"\nExpected paths to input series of object modules.\nFor example, \n\njava twopass.LinkQueryCheck inputs/input-*.txt\n");
+
+		Linker linker = new Linker();
+		int checks = 0;
+		int failures = 0;
+
+		for (String arg : args) {
+			Path input = Paths.get(arg);
+			ObjectProgram program = linker.parse(input);
+			LinkResult result = linker.link(program);
+			LinkQuery query = linker.query(program, 2);
+
+			int words = result.getWordCount();
+			checks++;
+			if (query.getWordCount() != words) {
+				System.out.println("FAIL " + arg + " word count");
+				failures++;
+				continue;
+			}
+
+			// Visits every address once, jumping across modules
+			int step = coprimeStep(words);
+			int address = 0;
+			for (int n = 0; n < words; n++) {
+				address = (int) ((address + (long) step) % words);
+				checks++;
+				if (query.getWord(address) != result.getWord(address)
+						|| query.getWordDiagnostic(address) != result
+								.getWordDiagnostic(address)
+						|| !same(query.getWordError(address),
+								result.getWordError(address))) {
+					System.out.println("FAIL " + arg + " word " + address);
+					failures++;
+				}
+			}
+
+			for (int i = 0; i < result.getSymbolCount(); i++) {
+				String name = result.getSymbolName(i);
+				checks++;
+				if (query.getSymbolLocation(name) != result.getSymbolLocation(i)
+						|| query.getSymbolModule(name) != result
+								.getSymbolModule(i)) {
+					System.out.println("FAIL " + arg + " symbol " + name);
+					failures++;
+				}
+			}
+
+			int[][] references = references(program);
+			for (int id = 0; id < program.symbols.size(); id++) {
+				String name = program.symbols.name(id);
+				checks++;
+				if (!Arrays.equals(query.getReferences(name), references[id])) {
+					System.out.println("FAIL " + arg + " references of "
+							+ name);
+					failures++;
+				}
+			}
+		}
+
+		System.out.println(checks + " checks, " + failures + " failed");
+
+		System.out.printf("%-24s %10s %18s %18s%n", "input", "words",
+				"full link (ms)", "query (ms)");
+		for (String arg : args) {
+			ObjectProgram program = linker.parse(Paths.get(arg));
+			long[] full = new long[RUNS];
+			long[] point = new long[RUNS];
+			for (int i = 0; i < RUNS; i++) {
+				long start = System.nanoTime();
+				LinkResult result = linker.link(program);
+				if (result.getWordCount() > 0)
+					result.getWord(result.getWordCount() / 2);
+				full[i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				LinkQuery query = linker.query(program);
+				if (query.getWordCount() > 0)
+					query.getWord(query.getWordCount() / 2);
+				point[i] = System.nanoTime() - start;
+			}
+			System.out.printf("%-24s %10d %18s %18s%n", Paths.get(arg)
+					.getFileName(), program.instructions.size(), median(full),
+					median(point));
+		}
+
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * @return The addresses of the External words of the program that refer
+	 *         to each symbol (by ID), found by going through its text.
+	 */
+	private static int[][] references(ObjectProgram program) {
+		int[][] addresses = new int[program.symbols.size()][];
+		int[] counts = new int[addresses.length];
+		for (int id = 0; id < addresses.length; id++)
+			addresses[id] = new int[4];
+
+		for (Module module : program.modules) {
+			for (int i = 0; i < module.length; i++) {
+				int index = module.textOffset + i;
+				int use = program.instructions.address(index);
+				if (program.instructions.classification(index) != 'E'
+						|| use >= module.uses.size())
+					continue;
+
+				int id = module.uses.get(use);
+				if (counts[id] == addresses[id].length)
+					addresses[id] = Arrays.copyOf(addresses[id],
+							2 * counts[id]);
+				addresses[id][counts[id]++] = index;
+			}
+		}
+
+		for (int id = 0; id < addresses.length; id++)
+			addresses[id] = Arrays.copyOf(addresses[id], counts[id]);
+		return addresses;
+	}
+
+	/**
+	 * @return A step of about two thirds of n which visits all of 0 to n - 1
+	 *         (modulo n).
+	 */
+	private static int coprimeStep(int n) {
+		for (int step = 2 * n / 3; step > 1; step--)
+			if (gcd(step, n) == 1)
+				return step;
+		return 1;
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static String median(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return String.format("%.3f", sorted[sorted.length / 2] / 1e6);
+	}
+}
@@ -0,0 +1,160 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times every stage of a link on its own (tokenizing the input, defining the
+ * symbols, relocating the modules and writing the report) and end to end,
+ * on an input written by {@link InputGenerator} with the given settings.
+ * <p>
+ * The golden outputs are checked before anything is measured.
+ *
+ * <pre>
+ * java -jar bench/target/benchmarks.jar LinkerBenchmark -p modules=100000
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkerBenchmark {
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Param("10000")
+	public int modules;
+	@Param("2")
+	public int symbols;
+	@Param("3")
+	public int uses;
+	@Param("8")
+	public int words;
+	@Param("1:1:1:1")
+	public String mix;
+	@Param("0.01")
+	public double errors;
+	@Param("1")
+	public long seed;
+
+	private final Linker linker = new Linker();
+	Path input;
+	ObjectProgram program;
+	LinkResult result;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		GoldenCheck.verify(GoldenCheck.findRoot());
+
+		this.input = Files.createTempFile("twopass-", ".txt");
+		InputGenerator.fromArgs("--modules=" + this.modules,
+				"--symbols=" + this.symbols, "--uses=" + this.uses,
+				"--words=" + this.words, "--mix=" + this.mix,
+				"--errors=" + this.errors, "--seed=" + this.seed).write(
+				this.input);
+
+		this.program = this.linker.parse(this.input);
+		this.result = this.linker.link(this.program);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(this.input);
+	}
+
+	/**
+	 * A program whose symbols are defined, ready to be relocated (again for
+	 * every invocation, since relocation records the use of the symbols).
+	 */
+	@State(Scope.Thread)
+	public static class Defined {
+		LinkResult result;
+
+		@Setup(Level.Invocation)
+		public void setUp(LinkerBenchmark benchmark) {
+			this.result = defineSymbols(benchmark.program);
+		}
+	}
+
+	private static LinkResult defineSymbols(ObjectProgram program) {
+		LinkResult result = new LinkResult(program.geometry,
+				program.symbols.copy(), program.instructions);
+		for (Module module : program.modules)
+			result.analyzeModule(module);
+		return result;
+	}
+
+	@Benchmark
+	public long tokenize() throws IOException {
+		long checksum = 0;
+		try (FileChannel channel = FileChannel.open(this.input,
+				StandardOpenOption.READ)) {
+			Tokenizer tokens = new Tokenizer(channel);
+			while (tokens.next())
+				checksum += tokens.hash();
+		}
+		return checksum;
+	}
+
+	@Benchmark
+	public ObjectProgram parse() throws IOException {
+		return this.linker.parse(this.input);
+	}
+
+	/**
+	 * Pass one's setAbsoluteSymbolValues for every module (along with the
+	 * copy of the symbol table that every link starts with).
+	 */
+	@Benchmark
+	public LinkResult setAbsoluteSymbolValues() {
+		return defineSymbols(this.program);
+	}
+
+	/**
+	 * Pass two: relocation of every module and merge of the use of the
+	 * symbols.
+	 */
+	@Benchmark
+	public LinkResult performSecondPass(Defined defined) {
+		defined.result.relocateAll(this.program.modules);
+		return defined.result;
+	}
+
+	@Benchmark
+	public void displayResults() throws IOException {
+		this.linker.emit(this.result, OutputFormat.TEXT, DISCARD);
+	}
+
+	@Benchmark
+	public void endToEnd() throws IOException {
+		this.linker.emit(this.linker.link(this.linker.parse(this.input)),
+				OutputFormat.TEXT, DISCARD);
+	}
+}
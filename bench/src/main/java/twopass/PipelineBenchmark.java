@@ -0,0 +1,121 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares, on large inputs, the time to the first byte of output and to
+ * the end of the link when the stages run one after another (a normal link
+ * and a streaming one) and when they run as a pipeline. The output is
+ * discarded, so only the linker is measured, but checked to be the same
+ * size in every mode.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar twopass.InputGenerator --modules=1000000 --out=big.txt
+ * java -cp bench/target/benchmarks.jar twopass.PipelineBenchmark big.txt
+ * </pre>
+ */
+public class PipelineBenchmark {
+
+	private static final String[] MODES = { "link", "stream", "pipeline" };
+
+	public static void main(String[] args) throws IOException {
+
+		int runs = 10;
+		OutputFormat format = OutputFormat.TEXT;
+		List<String> inputs = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--runs="))
+				runs = Integer.parseInt(arg.substring("--runs=".length()));
+			else if (arg.startsWith("--format="))
+				format = OutputFormat.valueOf(arg.substring(
+						"--format=".length()).toUpperCase());
+			else
+				inputs.add(arg);
+		}
+
+		if (inputs.isEmpty())
+			throw new IllegalArgumentException(
+					"\nExpected paths to large inputs.\nFor example, \n\njava twopass.PipelineBenchmark --runs=10 --format=text big.txt\n");
+
+		GoldenCheck.verify(GoldenCheck.findRoot());
+
+		Linker linker = new Linker();
+		System.out.printf("%-9s %-24s %18s %18s%n", "mode", "input",
+				"first output (ms)", "end (ms)");
+		for (String input : inputs) {
+			List<Path> paths = Collections.singletonList(Paths.get(input));
+			long expectedBytes = -1;
+
+			for (String mode : MODES) {
+				long[] firstOutput = new long[runs];
+				long[] end = new long[runs];
+
+				// The first run only warms up
+				for (int i = -1; i < runs; i++) {
+					TimedStream out = new TimedStream();
+					if (mode.equals("link"))
+						linker.emit(linker.link(linker.parse(paths)), format,
+								out);
+					else if (mode.equals("stream"))
+						linker.stream(paths, format, out);
+					else
+						linker.pipeline(paths, format, out);
+					long nanos = System.nanoTime() - out.start;
+
+					if (expectedBytes < 0)
+						expectedBytes = out.bytes;
+					else if (out.bytes != expectedBytes)
+						throw new IllegalStateException(mode + " wrote "
+								+ out.bytes + " bytes instead of "
+								+ expectedBytes);
+
+					if (i >= 0) {
+						firstOutput[i] = out.firstByte - out.start;
+						end[i] = nanos;
+					}
+				}
+
+				System.out.printf("%-9s %-24s %18s %18s%n", mode, Paths
+						.get(input).getFileName(), summary(firstOutput),
+						summary(end));
+			}
+		}
+
+	}
+
+	/**
+	 * Discards what is written, recording when it is first written to.
+	 */
+	private static final class TimedStream extends OutputStream {
+		final long start = System.nanoTime();
+		long firstByte;
+		long bytes;
+
+		public void write(int b) {
+			this.write(null, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			if (this.bytes == 0 && len > 0)
+				this.firstByte = System.nanoTime();
+			this.bytes += len;
+		}
+	}
+
+	/**
+	 * @return The median and the best of the given times, in milliseconds.
+	 */
+	private static String summary(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return String.format("%.1f (best %.1f)",
+				sorted[sorted.length / 2] / 1e6, sorted[0] / 1e6);
+	}
+}
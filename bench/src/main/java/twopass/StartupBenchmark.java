@@ -0,0 +1,146 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the startup of the linker on small inputs, where starting the JVM
+ * and loading classes take far longer than linking: a fresh process is run
+ * for every link, on the plain JVM, on the JVM with the class-data sharing
+ * archive of the cds profile and as the native image of the native profile
+ * (each mode is skipped unless its artifact is given). Reports the median
+ * and the best time to the first byte of output and to the exit of the
+ * process.
+ *
+ * <pre>
+ * mvn -Pcds,native package
+ * java -cp bench/target/benchmarks.jar twopass.StartupBenchmark \
+ *     --jar=linker/target/twopass-1.0-SNAPSHOT.jar \
+ *     --cds=linker/target/twopass.jsa --native=linker/target/twopass \
+ *     inputs/input-1.txt inputs/input-9.txt
+ * </pre>
+ */
+public class StartupBenchmark {
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java")
+				.toString();
+		String jar = null;
+		String archive = null;
+		String nativeImage = null;
+		int runs = 20;
+		List<String> inputs = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--java="))
+				java = arg.substring("--java=".length());
+			else if (arg.startsWith("--jar="))
+				jar = arg.substring("--jar=".length());
+			else if (arg.startsWith("--cds="))
+				archive = arg.substring("--cds=".length());
+			else if (arg.startsWith("--native="))
+				nativeImage = arg.substring("--native=".length());
+			else if (arg.startsWith("--runs="))
+				runs = Integer.parseInt(arg.substring("--runs=".length()));
+			else
+				inputs.add(arg);
+		}
+
+		if ((jar == null && nativeImage == null) || inputs.isEmpty())
+			throw new IllegalArgumentException(
+					"\nExpected the linker (--jar and/or --native) and inputs.\nFor example, \n\njava twopass.StartupBenchmark --jar=linker/target/twopass-1.0-SNAPSHOT.jar --cds=linker/target/twopass.jsa --native=linker/target/twopass inputs/input-1.txt\n");
+
+		List<String> modes = new ArrayList<String>();
+		List<List<String>> commands = new ArrayList<List<String>>();
+		if (jar != null) {
+			modes.add("jvm");
+			commands.add(Arrays.asList(java, "-cp", jar, "TwoPass"));
+			if (archive != null) {
+				if (!Files.exists(Paths.get(archive)))
+					throw new IllegalArgumentException("No archive at "
+							+ archive);
+				// Fail rather than silently measuring the plain JVM if the
+				// archive does not match the jar
+				modes.add("cds");
+				commands.add(Arrays.asList(java, "-XX:SharedArchiveFile="
+						+ archive, "-Xshare:on", "-cp", jar, "TwoPass"));
+			}
+		}
+		if (nativeImage != null) {
+			modes.add("native");
+			commands.add(Arrays.asList(nativeImage));
+		}
+
+		System.out.printf("%-8s %-24s %18s %18s%n", "mode", "input",
+				"first output (ms)", "exit (ms)");
+		for (String input : inputs) {
+			for (int m = 0; m < modes.size(); m++) {
+				List<String> command = new ArrayList<String>(commands.get(m));
+				command.add(input);
+
+				// The first run only warms up the file system cache
+				run(command, new long[2]);
+
+				long[] firstOutput = new long[runs];
+				long[] exit = new long[runs];
+				long[] times = new long[2];
+				for (int i = 0; i < runs; i++) {
+					run(command, times);
+					firstOutput[i] = times[0];
+					exit[i] = times[1];
+				}
+
+				System.out.printf("%-8s %-24s %18s %18s%n", modes.get(m),
+						Paths.get(input).getFileName(), summary(firstOutput),
+						summary(exit));
+			}
+		}
+
+	}
+
+	/**
+	 * Runs a link, recording the nanoseconds until its first byte of output
+	 * and until it exits.
+	 */
+	private static void run(List<String> command, long[] times)
+			throws IOException, InterruptedException {
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectError(
+				ProcessBuilder.Redirect.DISCARD).start();
+
+		long bytes = 0;
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream out = process.getInputStream()) {
+			int first = out.read();
+			times[0] = System.nanoTime() - start;
+			if (first >= 0)
+				for (int n = 1; n > 0; n = out.read(buffer))
+					bytes += n;
+		}
+
+		int status = process.waitFor();
+		times[1] = System.nanoTime() - start;
+		if (status != 0 || bytes == 0)
+			throw new IllegalStateException(command + " exited with "
+					+ status + " after " + bytes + " bytes of output");
+
+	}
+
+	/**
+	 * @return The median and the best of the given times, in milliseconds.
+	 */
+	private static String summary(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return String.format("%.1f (best %.1f)",
+				sorted[sorted.length / 2] / 1e6, sorted[0] / 1e6);
+	}
+}
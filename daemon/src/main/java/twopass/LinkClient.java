@@ -0,0 +1,132 @@
+package twopass;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal client of {@link LinkDaemon}: sends the given inputs (as paths, or
+ * inline with --inline, which the standard input always is when given as -)
+ * and prints the output of the link, as a standalone run would. With
+ * --repeat, the same request is sent that many times over the connection and
+ * the latency of the links is reported on the standard error.
+ *
+ * <pre>
+ * java -cp daemon/target/twopass-daemon-1.0-SNAPSHOT.jar:linker/target/twopass-1.0-SNAPSHOT.jar twopass.LinkClient --socket=/tmp/twopass.sock inputs/input-1.txt
+ * </pre>
+ */
+public final class LinkClient {
+
+	public static void main(String[] args) throws IOException {
+
+		String socket = null;
+		String format = null;
+		boolean inline = false;
+		int repeat = 1;
+		List<String> inputs = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--socket="))
+				socket = arg.substring("--socket=".length());
+			else if (arg.startsWith("--format="))
+				format = arg.substring("--format=".length());
+			else if (arg.equals("--inline"))
+				inline = true;
+			else if (arg.startsWith("--repeat="))
+				repeat = Integer.parseInt(arg.substring("--repeat=".length()));
+			else
+				inputs.add(arg);
+		}
+
+		if (socket == null || inputs.isEmpty())
+			throw new IllegalArgumentException(
+					"\nExpected the path of the socket and inputs.\nFor example, \n\njava twopass.LinkClient --socket=/tmp/twopass.sock input-1.txt\njava twopass.LinkClient --socket=/tmp/twopass.sock --inline --repeat=10000 input-1.txt\ncat input-1.txt | java twopass.LinkClient --socket=/tmp/twopass.sock -\n");
+
+		byte[] request = request(inputs, format, inline);
+
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress
+				.of(socket))) {
+			InputStream in = new BufferedInputStream(
+					Channels.newInputStream(channel));
+
+			long[] nanos = new long[repeat];
+			byte[] output = null;
+			boolean ok = false;
+			for (int i = 0; i < repeat; i++) {
+				long start = System.nanoTime();
+				ByteBuffer buffer = ByteBuffer.wrap(request);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+
+				String status = LinkDaemon.readLine(in);
+				if (status == null)
+					throw new IOException("The daemon closed the connection");
+				int space = status.indexOf(' ');
+				output = in.readNBytes(Integer.parseInt(status
+						.substring(space + 1)));
+				nanos[i] = System.nanoTime() - start;
+
+				ok = status.startsWith("OK ");
+				if (!ok)
+					break;
+			}
+
+			if (!ok) {
+				System.err.println(new String(output, StandardCharsets.UTF_8));
+				System.exit(1);
+			}
+			System.out.write(output);
+			System.out.flush();
+
+			if (repeat > 1) {
+				Arrays.sort(nanos);
+				System.err.printf(
+						"%d links: median %.3f ms, best %.3f ms, worst %.3f ms%n",
+						repeat, nanos[repeat / 2] / 1e6, nanos[0] / 1e6,
+						nanos[repeat - 1] / 1e6);
+			}
+		}
+
+	}
+
+	/**
+	 * @return The bytes of a request for the given inputs.
+	 */
+	private static byte[] request(List<String> inputs, String format,
+			boolean inline) throws IOException {
+
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		if (format != null)
+			request.write(("FORMAT " + format + "\n")
+					.getBytes(StandardCharsets.US_ASCII));
+
+		for (String input : inputs) {
+			if (input.equals("-") || inline) {
+				byte[] text = input.equals("-") ? System.in.readAllBytes()
+						: Files.readAllBytes(Paths.get(input));
+				request.write(("TEXT " + text.length + "\n")
+						.getBytes(StandardCharsets.US_ASCII));
+				request.write(text);
+			} else {
+				// The daemon may run from another directory
+				Path path = Paths.get(input).toAbsolutePath();
+				request.write(("PATH " + path + "\n")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		request.write("LINK\n".getBytes(StandardCharsets.US_ASCII));
+		return request.toByteArray();
+	}
+}
@@ -0,0 +1,324 @@
+package twopass;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resident linker listening on a Unix domain socket, so that short-lived
+ * clients do not pay for starting and warming up a JVM on every link. Every
+ * connection is served on a virtual thread of its own by the same
+ * {@link Linker} (which runs any number of jobs at the same time).
+ * <p>
+ * A connection carries any number of requests, one after another. A request
+ * is made of lines of ASCII text, each ending with a line feed:
+ *
+ * <pre>
+ * FORMAT text|bin|ndjson   (optional, text by default)
+ * PATH /path/to/input      (a file read by the daemon, text or object file)
+ * TEXT 123                 (followed by 123 bytes of modules as text)
+ * LINK                     (links the inputs given so far, in order)
+ * </pre>
+ *
+ * Each request gets either "OK n" or "ERROR n" on a line of its own,
+ * followed by n bytes: the output, exactly as a standalone run prints it,
+ * or why the link failed. Lines that are not part of the protocol get an
+ * error and close the connection.
+ * <p>
+ * Paths are read with the permissions of the daemon, and relative ones from
+ * its working directory, so the socket is only meant for local tools.
+ * <p>
+ * Requires Java 21 (it is only built by the jdk21 profile):
+ *
+ * <pre>
+ * java -cp daemon/target/twopass-daemon-1.0-SNAPSHOT.jar:linker/target/twopass-1.0-SNAPSHOT.jar twopass.LinkDaemon --socket=/tmp/twopass.sock
+ * </pre>
+ */
+public final class LinkDaemon implements Closeable {
+	// Longest line of a request (besides the text that follows TEXT)
+	private static final int MAX_LINE = 1 << 16;
+
+	// Linked over and over at startup so that the first requests are not
+	// interpreted
+	private static final String WARMUP_TEXT = "1 xy 2\n2 z xy\n5 R 1004  I 5678  E 2000  R 8002  E 7001\n0\n1 z\n6 R 8001  E 1000  E 1000  E 3000  R 1002  A 1010\n0\n1 z\n2 R 5001  E 4000\n1 z 2\n2 xy z\n3 A 8000  E 1001  E 2000\n";
+
+	private final Path socket;
+	private final Linker linker;
+	private final ServerSocketChannel server;
+	private final ExecutorService connections = Executors
+			.newVirtualThreadPerTaskExecutor();
+
+	/**
+	 * Listens on the given socket (replacing the file of a daemon that is no
+	 * longer running).
+	 *
+	 * @throws IOException
+	 *             If the socket cannot be bound, or if another daemon is
+	 *             listening on it.
+	 */
+	public LinkDaemon(Path socket, Linker linker) throws IOException {
+		this.socket = socket;
+		this.linker = linker;
+
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+		if (Files.exists(socket)) {
+			if (isListening(address))
+				throw new IOException("A daemon is already listening on "
+						+ socket);
+			Files.delete(socket);
+		}
+
+		this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		this.server.bind(address);
+	}
+
+	private static boolean isListening(UnixDomainSocketAddress address) {
+		try {
+			SocketChannel.open(address).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Links the built-in sample the given number of times, so that the
+	 * linker is compiled before the first request.
+	 */
+	public void warmUp(int links) throws IOException {
+		byte[] text = WARMUP_TEXT.getBytes(StandardCharsets.US_ASCII);
+		for (int i = 0; i < links; i++)
+			this.link(Collections.singletonList(LinkInput.ofText(ByteBuffer
+					.wrap(text))), OutputFormat.TEXT);
+	}
+
+	/**
+	 * Accepts connections until the daemon is closed.
+	 */
+	public void serve() throws IOException {
+
+		while (true) {
+			final SocketChannel channel;
+			try {
+				channel = this.server.accept();
+			} catch (AsynchronousCloseException e) {
+				return;
+			}
+
+			this.connections.execute(new Runnable() {
+				public void run() {
+					try (SocketChannel connection = channel) {
+						LinkDaemon.this.serve(connection);
+					} catch (IOException e) {
+						// The client went away; nothing to answer
+					}
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Stops accepting connections, interrupts those being served and removes
+	 * the socket.
+	 */
+	public void close() throws IOException {
+		this.server.close();
+		this.connections.shutdownNow();
+		Files.deleteIfExists(this.socket);
+	}
+
+	/**
+	 * Serves the requests of a connection until the client closes it.
+	 */
+	private void serve(SocketChannel channel) throws IOException {
+
+		InputStream in = new BufferedInputStream(
+				Channels.newInputStream(channel));
+		OutputFormat format = OutputFormat.TEXT;
+		List<LinkInput> inputs = new ArrayList<LinkInput>();
+
+		for (String line = readLine(in); line != null; line = readLine(in)) {
+			if (line.startsWith("PATH ")) {
+				inputs.add(LinkInput.of(Paths.get(line.substring(5))));
+
+			} else if (line.startsWith("TEXT ")) {
+				int length = parseLength(line.substring(5));
+				if (length < 0) {
+					reply(channel, "ERROR", "Expected a length, not: " + line);
+					return;
+				}
+				byte[] text = in.readNBytes(length);
+				if (text.length < length)
+					throw new EOFException("Stream ended within a text");
+				inputs.add(LinkInput.ofText(ByteBuffer.wrap(text)));
+
+			} else if (line.startsWith("FORMAT ")) {
+				format = parseFormat(line.substring(7));
+				if (format == null) {
+					reply(channel, "ERROR", "Unknown format: " + line);
+					return;
+				}
+
+			} else if (line.equals("LINK")) {
+				// Links that fail (e.g. on a missing file) leave the
+				// connection usable
+				byte[] output = null;
+				String error = null;
+				try {
+					output = this.link(inputs, format);
+				} catch (IOException | RuntimeException e) {
+					error = e.toString();
+				}
+				if (error != null)
+					reply(channel, "ERROR", error);
+				else
+					reply(channel, "OK", output);
+
+				format = OutputFormat.TEXT;
+				inputs.clear();
+
+			} else {
+				reply(channel, "ERROR", "Unknown request: " + line);
+				return;
+			}
+		}
+
+	}
+
+	/**
+	 * @return The output of the given inputs, linked as a single series of
+	 *         modules.
+	 */
+	private byte[] link(List<LinkInput> inputs, OutputFormat format)
+			throws IOException {
+
+		if (inputs.isEmpty())
+			throw new IllegalArgumentException(
+					"Expected PATH or TEXT before LINK");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		this.linker.emit(this.linker.link(this.linker.parseInputs(inputs)),
+				format, out);
+		return out.toByteArray();
+	}
+
+	private static OutputFormat parseFormat(String name) {
+		for (OutputFormat format : OutputFormat.values())
+			if (format.name().equalsIgnoreCase(name))
+				return format;
+		return null;
+	}
+
+	/**
+	 * @return The given decimal length, or -1 if it is not one.
+	 */
+	private static int parseLength(String digits) {
+		if (digits.isEmpty() || digits.length() > 9)
+			return -1;
+
+		int length = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			char c = digits.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+
+	/**
+	 * @return The next line (without its line feed, decoded as UTF-8 since
+	 *         it may hold a path), or null at the end of the stream.
+	 */
+	static String readLine(InputStream in) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for (int b = in.read(); b != '\n'; b = in.read()) {
+			if (b < 0) {
+				if (line.size() == 0)
+					return null;
+				throw new EOFException("Stream ended within a line");
+			}
+			if (line.size() == MAX_LINE)
+				throw new IOException("Line exceeds " + MAX_LINE + " bytes");
+			line.write(b);
+		}
+
+		return line.toString(StandardCharsets.UTF_8);
+	}
+
+	private static void reply(SocketChannel channel, String status,
+			String message) throws IOException {
+		reply(channel, status, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes the status line and the body of a reply at once.
+	 */
+	private static void reply(SocketChannel channel, String status,
+			byte[] body) throws IOException {
+
+		ByteBuffer[] buffers = {
+				ByteBuffer.wrap((status + " " + body.length + "\n")
+						.getBytes(StandardCharsets.US_ASCII)),
+				ByteBuffer.wrap(body) };
+		while (buffers[1].hasRemaining())
+			channel.write(buffers);
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		String socket = null;
+		int warmUp = 20000;
+		for (String arg : args) {
+			if (arg.startsWith("--socket="))
+				socket = arg.substring("--socket=".length());
+			else if (arg.startsWith("--warmup="))
+				warmUp = Integer.parseInt(arg.substring("--warmup=".length()));
+			else
+				throw new IllegalArgumentException("Unknown option: " + arg);
+		}
+
+		if (socket == null)
+			throw new IllegalArgumentException(
+					"\nExpected the path of the socket.\nFor example, \n\njava twopass.LinkDaemon --socket=/tmp/twopass.sock\njava twopass.LinkDaemon --socket=/tmp/twopass.sock --warmup=0\n");
+
+		final LinkDaemon daemon = new LinkDaemon(Paths.get(socket),
+				new Linker());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					daemon.close();
+				} catch (IOException e) {
+					// Leave the socket behind; the next daemon replaces it
+				}
+			}
+		});
+
+		daemon.warmUp(warmUp);
+		System.err.println("Listening on " + socket);
+		daemon.serve();
+
+	}
+}
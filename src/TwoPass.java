@@ -1,13 +1,19 @@
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Scanner;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import twopass.BatchLinker;
+import twopass.CollectedProgram;
+import twopass.LinkStats;
+import twopass.Linker;
+import twopass.MachineGeometry;
+import twopass.ObjectProgram;
+import twopass.OutputFormat;
 
 /**
  * Two-Pass Linker Implementation
@@ -17,679 +23,410 @@ import java.util.regex.Pattern;
  * pass one to generate the actual output by relocating relative addresses and
  * resolving external references.
  * <p>
- * The TwoPass class contains several inner class and an enumeration to improve
- * readability and maintain each module's components sorted.
- * 
+ * The TwoPass class is the command-line front end: the linker itself lives in
+ * the twopass package ({@link Linker}), which may be embedded on its own.
+ *
  * @author Miguel Amigot
  * Operating Systems, Fall 2014
  */
 public class TwoPass {
 
 	/**
-	 * Knowing that the input file is split into modules which are split into
-	 * DEFINITIONS, USES and INSTRUCTIONS, it provides a couple of functions to
-	 * determine their order.
-	 * <p>
-	 * Additionally, it contains the sub-categories of each component to allow
-	 * the user of this class to understand how the data is being interpreted as
-	 * it is read (as opposed to cryptic boolean flags which convey no real
-	 * information in a clear way).
+	 * Parses the data from the provided set of modules into definitions, uses
+	 * and instructions using a series of methods devoted to the first pass of
+	 * the linking process. Consequently, the second pass is performed and the
+	 * results are printed to the standard output.
+	 *
+	 * @param inputFilePath
+	 *            Specifies the path to the relevant input file.
+	 * @throws IOException
+	 *             If the file-path that was provided did not lead to a
+	 *             readable file.
 	 */
-	private enum DataKind {
-		// Items found in module
-		DEFINITIONS, USES, INSTRUCTIONS,
-		// Definition sub-categories
-		SYMBOL, LOCATION,
-		// Instruction sub-categories
-		TYPE, WORD;
-
-		private static DataKind current = getFirst();
-
-		public static DataKind getFirst() {
-			return current = DataKind.DEFINITIONS;
-		}
-
-		public static DataKind getNext() {
-			if (current == DataKind.DEFINITIONS)
-				return current = DataKind.USES;
-
-			else if (current == DataKind.USES)
-				return current = DataKind.INSTRUCTIONS;
-
-			else
-				return current = DataKind.DEFINITIONS;
-		}
+	public TwoPass(String inputFilePath) throws IOException {
+		this(inputFilePath, false, OutputFormat.TEXT);
 	}
 
 	/**
-	 * Contains a series of instance variables which allow different stages of
-	 * the program to identify and use the symbol according to a number of
-	 * criteria.
+	 * Same as {@link #TwoPass(String)}, optionally in streaming mode (see
+	 * {@link Linker#stream}) and/or writing a binary image instead of the text
+	 * report.
+	 *
+	 * @param inputFilePath
+	 *            Specifies the path to the relevant input file.
+	 * @param streaming
+	 *            True to bound the memory used to the size of the largest
+	 *            module.
+	 * @param format
+	 *            Format of the results written to the standard output.
+	 * @throws IOException
+	 *             If the file-path that was provided did not lead to a
+	 *             readable file, or if the temporary file cannot be used.
 	 */
-	private class Symbol {
-		// Representation of the symbol as it is being read (characters,
-		// integers...)
-		private String symbol;
-		// Location (relative as it is read but absolute after the first pass)
-		private Integer location;
-
-		// Specifies the module in which its definition is contained
-		// (starting from 1)
-		private Integer moduleNumber;
-		// True if it appears anywhere on the text
-		private boolean usedSomewhere;
-
-		public Symbol(String symbol, Integer location) {
-			this.symbol = symbol;
-			this.location = location;
-
-			this.usedSomewhere = false;
-		}
-
-		public Symbol(String symbol) {
-			this(symbol, null);
-		}
-
-		public String toString() {
-			StringBuilder sb = new StringBuilder();
-			sb.append(this.symbol + "=" + this.location + "\n");
-			sb.append("module number = " + this.moduleNumber + "\n");
-
-			return sb.toString();
-		}
+	public TwoPass(String inputFilePath, boolean streaming, OutputFormat format)
+			throws IOException {
+		this(Collections.singletonList(inputFilePath), streaming, format);
 	}
 
 	/**
-	 * Represents a single text instruction in the program, which is composed of
-	 * a classification character (detailing whether it's Immediate, Absolute,
-	 * Relative or External), an opcode (first character of the four-digit
-	 * number/word) and an address (remaining three characters of the word).
-	 * <p>
-	 * Instructions are structured in the following format:
-	 * "R 1004 I 5678 E 2000 R 8002 E 7001".
+	 * Same as {@link #TwoPass(String, boolean, OutputFormat)} for a series of
+	 * inputs (text or object files) linked, in order, as a single one.
 	 */
-	private class TextInstruction {
-		private Character classification;
-		private Integer opcode;
-		private Integer address;
-
-		public TextInstruction(Character classification, Integer opcode,
-				Integer address) {
-			this.classification = classification;
-			this.opcode = opcode;
-			this.address = address;
-		}
-
-		public TextInstruction(Character classification) {
-			this(classification, null, null);
-		}
-
-		public String toString() {
-			return (this.opcode * 1000) + this.address + "";
-		}
+	public TwoPass(List<String> inputFilePaths, boolean streaming,
+			OutputFormat format) throws IOException {
+		this(inputFilePaths, streaming, format, MachineGeometry.DEFAULT, null);
 	}
 
 	/**
-	 * Represents a single module in the input file, which is composed of a
-	 * definition list, a use-list and an instruction list.
+	 * Same as {@link #TwoPass(List, boolean, OutputFormat)} for the given
+	 * machine, recording the time, allocation and counts of every phase into
+	 * the given statistics (unless they are null).
 	 */
-	private class Module {
-		// Parameters used to determine the absolute locations of the relevant
-		// elements (instructions as well as defined symbols)
-		private int startLocation;
-		private int endLocation;
-		private int length;
-
-		public List<Symbol> definitions;
-		public List<Symbol> uses;
-		public List<TextInstruction> textInstructions;
-
-		// Used to determine if variables in a use list are present in the text
-		public List<String> unusedInTextSymbols;
-
-		public Module(int startLocation) {
-			this.startLocation = startLocation;
-			this.endLocation = startLocation;
-			this.length = 0;
-
-			this.definitions = new ArrayList<Symbol>();
-			this.uses = new ArrayList<Symbol>();
-			this.textInstructions = new ArrayList<TextInstruction>();
-
-			this.unusedInTextSymbols = new ArrayList<String>();
-		}
-
-		public void addDefinition(Symbol symbol) {
-			this.definitions.add(symbol);
-		}
-
-		public void addUse(Symbol symbol) {
-			this.uses.add(symbol);
-		}
-
-		public void addInstruction(TextInstruction instruction) {
-			this.textInstructions.add(instruction);
-
-			// Absolute locations/addresses are determined by the number of
-			// instructions in the program
-			this.length++;
-			this.endLocation = this.startLocation + this.length - 1;
-		}
-
-		public String toString() {
-
-			StringBuilder sb = new StringBuilder();
-
-			sb.append("Start: " + this.startLocation + "\n");
-			sb.append("End: " + this.endLocation + "\n");
-			sb.append("Length: " + this.length + "\n");
-
-			sb.append("Defs: " + this.definitions.size() + "\n");
-			for (Symbol def : this.definitions)
-				sb.append("\t" + def + "\n");
-
-			sb.append("Uses: " + this.uses.size() + "\n");
-			for (Symbol use : this.uses)
-				sb.append("\t" + use + "\n");
-
-			sb.append("Text: " + this.textInstructions.size() + "\n");
-			for (TextInstruction instr : this.textInstructions)
-				sb.append("\t" + instr.classification + ": " + instr + "\n");
-
-			return sb.toString();
-
-		}
+	public TwoPass(List<String> inputFilePaths, boolean streaming,
+			OutputFormat format, MachineGeometry geometry, LinkStats stats)
+			throws IOException {
+		Linker linker = new Linker(geometry, stats);
+		List<Path> inputs = toPaths(inputFilePaths);
+
+		if (streaming)
+			linker.stream(inputs, format, System.out);
+		else
+			linker.emit(linker.link(linker.parse(inputs)), format, System.out);
 	}
 
 	/**
-	 * Generic class which allows an object such as a Symbol or a Module to be
-	 * linked to a relevant errorMsg.
+	 * Same as {@link #TwoPass(List, boolean, OutputFormat)} for the given
+	 * machine and statistics, reading, parsing, relocating and writing in
+	 * stages that run at the same time (see {@link Linker#pipeline}).
 	 */
-	private class DescriptiveItem<T> {
-		private T item;
-		private String errorMsg;
-
-		public DescriptiveItem(T item, String errorMsg) {
-			this.item = item;
-			this.errorMsg = errorMsg;
-		}
-
-		public String getErrorMsg() {
-			return this.errorMsg;
-		}
-
-		public void setErrorMsg(String errorMsg) {
-			this.errorMsg = errorMsg;
-		}
+	public static void pipeline(List<String> inputFilePaths,
+			OutputFormat format, MachineGeometry geometry, LinkStats stats)
+			throws IOException {
+		new Linker(geometry, stats).pipeline(toPaths(inputFilePaths), format,
+				System.out);
 	}
 
-	// Given memory size of the target machine
-	private int machineMemorySize = 600;
-
-	// Global structures designed to contain the data
-	// (Future improvement: decrease the memory consumption of the program by
-	// making it proportional to the size
-	// of the latest module, not to all modules).
-	private ArrayList<Module> modules = new ArrayList<Module>();
-	private TreeMap<String, DescriptiveItem<Symbol>> definedSymbolTable = new TreeMap<String, DescriptiveItem<Symbol>>();
-	private ArrayList<DescriptiveItem<Integer>> memoryMap = new ArrayList<DescriptiveItem<Integer>>();
-
-	// Last-visited and incomplete items as the data is being processed
-	// (used to hold parts of the symbols / instructions / module across
-	// iterations).
-	private Symbol tempSymbol;
-	private TextInstruction tempInstruction;
-	private Module currModule;
-
 	/**
-	 * Parses the data from the provided set of modules into definitions, uses
-	 * and instructions using a series of methods devoted to the first pass of
-	 * the linking process. Consequently, the second pass is performed.
-	 * <p>
-	 * In order to read the data, knowledge about the format of the file is used
-	 * to, for example, expect two elements per definition (a symbol and a
-	 * relative location).
-	 * 
-	 * @param inputFilePath
-	 *            Specifies the path to the relevant input file.
-	 * @throws FileNotFoundException
-	 *             If the file-path that was provided did not lead to a text
-	 *             file.
+	 * Same as {@link #TwoPass(List, boolean, OutputFormat)} in streaming
+	 * mode for the given machine and statistics, keeping the symbol table in
+	 * temporary files too (see {@link Linker#streamExternal}).
 	 */
-	public TwoPass(String inputFilePath) throws FileNotFoundException {
-		// Save all of the file content into a variable
-		Scanner scanner = new Scanner(new File(inputFilePath));
-		String content = scanner.useDelimiter("\\A").next();
-
-		// Identify the tokens using RegEx
-		Matcher matcher = Pattern.compile("[\\d\\w]+").matcher(content);
-
-		// Type that will be visited first
-		DataKind nextType = DataKind.getFirst();
-
-		int remainingDefinitions = 0;
-		int remainingUses = 0;
-		int remainingInstructions = 0;
-
-		String token;
-		while (matcher.find()) {
-			token = matcher.group();
-
-			if (remainingDefinitions > 0) {
-				if (remainingDefinitions % 2 == 0)
-					this.processDefinition(token, DataKind.SYMBOL);
-				else
-					this.processDefinition(token, DataKind.LOCATION);
-
-				remainingDefinitions--;
-				if (remainingDefinitions == 0)
-					nextType = DataKind.getNext();
-				continue;
-			}
-
-			else if (remainingUses > 0) {
-				this.processUse(token);
-
-				remainingUses--;
-				if (remainingUses == 0)
-					nextType = DataKind.getNext();
-				continue;
-			}
-
-			else if (remainingInstructions > 0) {
-				if (remainingInstructions % 2 == 0)
-					this.processInstruction(token, DataKind.TYPE);
-				else
-					this.processInstruction(token, DataKind.WORD);
-
-				remainingInstructions--;
-				if (remainingInstructions == 0)
-					nextType = DataKind.getNext();
-				continue;
-			}
-
-			// Only case left: a "remaining" counter
-			// (the number right before the definitions, uses, instructions...)
-			else {
-				// Start a new module when the next type is DEFINITIONS
-				// regardless of whether there are actual definitions or not
-				if (nextType == DataKind.DEFINITIONS) {
-					this.analyzeLastModule();
-					this.initializeModule();
-				}
-
-				// Check whatever nextType is and update that value
-				int numNewElements = Integer.parseInt(token);
-				// Nothing to see here... move along
-				if (numNewElements == 0)
-					nextType = DataKind.getNext();
-
-				// Definitions come in groups of two (symbol + location)
-				if (nextType == DataKind.DEFINITIONS)
-					remainingDefinitions = numNewElements * 2;
-
-				// Uses come one at a time
-				else if (nextType == DataKind.USES)
-					remainingUses = numNewElements;
-
-				// Instructions come in groups of two (type + word)
-				else if (nextType == DataKind.INSTRUCTIONS)
-					remainingInstructions = numNewElements * 2;
-			}
-		}
-
-		// After iterating through all of the elements, make sure
-		// that the last module is analyzed
-		this.analyzeLastModule();
-
-		// Perform second pass of the two-part linking process
-		this.performSecondPass();
+	public static void streamExternal(List<String> inputFilePaths,
+			OutputFormat format, MachineGeometry geometry, LinkStats stats)
+			throws IOException {
+		new Linker(geometry, stats).streamExternal(toPaths(inputFilePaths),
+				format, System.out);
 	}
 
 	/**
-	 * Called each time a new module is recognized by the parser of the input
-	 * file. Creates a new instance whose reference is saved onto a temporary
-	 * variable within the class to allow other parts of the module to extend
-	 * it, and adds it to the global list.
+	 * Same as {@link #TwoPass(List, boolean, OutputFormat)} for the given
+	 * machine and statistics, first removing the modules that cannot be
+	 * reached from the given ones (see {@link Linker#collect}), and writing
+	 * what was removed to the standard error.
 	 */
-	private void initializeModule() {
-
-		// Get its starting location on memory, which is equivalent to the final
-		// word of the previous module + 1 (if there are no modules, it's 0)
-		int startLocation = 0;
-
-		if (!this.modules.isEmpty()) {
-			int lastModuleIndex = this.modules.size() - 1;
-			startLocation = this.modules.get(lastModuleIndex).endLocation + 1;
-		}
-
-		this.currModule = new Module(startLocation);
-		// Add it to the global list of modules (it will be updated elsewhere
-		// through the reference to this.currModule)
-		this.modules.add(this.currModule);
-
+	public static void collect(List<String> inputFilePaths,
+			int[] rootModules, List<String> rootSymbols, OutputFormat format,
+			MachineGeometry geometry, LinkStats stats) throws IOException {
+		Linker linker = new Linker(geometry, stats);
+		CollectedProgram collected = linker.collect(
+				linker.parse(toPaths(inputFilePaths)), rootModules, rootSymbols);
+
+		System.err.println(collected.toJson());
+		linker.emit(linker.link(collected.getProgram()), format, System.out);
 	}
 
 	/**
-	 * Gets the last module (the most relevant) and calls the function that sets
-	 * the symbols' absolute values/locations.
+	 * Performs the first pass on the given inputs and writes their modules as
+	 * an object file instead of linking them.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file, or if the object file cannot be written.
 	 */
-	private void analyzeLastModule() {
-
-		// Assuming that modules have been analyzed (that this isn't the
-		// start of the program) analyzes the last module by pushing the defined
-		// variables to a dedicated global structure
-
-		if (this.modules.isEmpty())
-			return;
-
-		Module lastModule = this.modules.get(this.modules.size() - 1);
-
-		this.setAbsoluteSymbolValues(lastModule);
-
+	public static void compile(List<String> inputFilePaths,
+			String objectFilePath) throws IOException {
+		compile(inputFilePaths, objectFilePath, MachineGeometry.DEFAULT, null);
 	}
 
 	/**
-	 * Provided an element of a definition (which type is determined by the
-	 * DataKind parameter), either builds up the temporary variable or, once
-	 * it's built, it adds it to the module's list of definitions.
+	 * Same as {@link #compile(List, String)}, splitting the words as the
+	 * given machine expects and recording the first pass into the given
+	 * statistics (unless they are null).
 	 */
-	private void processDefinition(String element, DataKind partType) {
-
-		if (partType == DataKind.SYMBOL) {
-			// Save it onto the temporary variable (it will be seen again when
-			// interpreting the LOCATION part of a symbol)
-			this.tempSymbol = new Symbol(element);
-
-		} else if (partType == DataKind.LOCATION) {
-			String symbol = this.tempSymbol.symbol;
-			int location = Integer.parseInt(element);
-
-			// Assemble the full symbol and add it to the modules!
-			this.tempSymbol = new Symbol(symbol, location);
-			this.currModule.addDefinition(this.tempSymbol);
+	public static void compile(List<String> inputFilePaths,
+			String objectFilePath, MachineGeometry geometry, LinkStats stats)
+			throws IOException {
+		Linker linker = new Linker(geometry, stats);
+		ObjectProgram program = linker.parse(toPaths(inputFilePaths));
+
+		try (OutputStream out = Files.newOutputStream(Paths
+				.get(objectFilePath))) {
+			linker.compile(program, out);
 		}
-
 	}
 
 	/**
-	 * Considering that a use is represented by a single entity, it just needs
-	 * to be added to the relevant module's list.
+	 * Performs the first pass on the given inputs and writes their modules as
+	 * the members of a library archive (see {@link Linker#archive}) instead
+	 * of linking them.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file, or if the archive cannot be written.
 	 */
-	private void processUse(String element) {
-
-		this.currModule.addUse(new Symbol(element));
-
+	public static void archive(List<String> inputFilePaths,
+			String archivePath, MachineGeometry geometry, LinkStats stats)
+			throws IOException {
+		Linker linker = new Linker(geometry, stats);
+		ObjectProgram program = linker.parse(toPaths(inputFilePaths));
+
+		try (OutputStream out = Files.newOutputStream(Paths.get(archivePath))) {
+			linker.archive(program, out);
+		}
 	}
 
 	/**
-	 * Provided an element of an instruction (which type is determined by the
-	 * DataKind parameter), either builds up the temporary variable or, once
-	 * it's built, it adds it to the module's list of instructions.
+	 * Links the given inputs and writes their binary image to a file, into
+	 * which the words are relocated through a memory mapping (see
+	 * {@link Linker#link(ObjectProgram, Path)}), instead of printing the
+	 * results.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file, or if the image cannot be written.
 	 */
-	private void processInstruction(String element, DataKind partType) {
-
-		if (partType == DataKind.TYPE) {
-			char classification = element.charAt(0);
-			this.tempInstruction = new TextInstruction(classification);
-
-		} else if (partType == DataKind.WORD) {
-			char classification = this.tempInstruction.classification;
-			int opcode = Character.getNumericValue(element.charAt(0));
-			int address = Integer.parseInt(element.substring(1));
-
-			// Full instruction
-			this.tempInstruction = new TextInstruction(classification, opcode,
-					address);
-
-			// Add it to the modules
-			this.currModule.addInstruction(this.tempInstruction);
-		}
-
+	public static void image(List<String> inputFilePaths, String imagePath,
+			MachineGeometry geometry, LinkStats stats) throws IOException {
+		Linker linker = new Linker(geometry, stats);
+		linker.link(linker.parse(toPaths(inputFilePaths)), Paths.get(imagePath));
 	}
 
 	/**
-	 * Called after each module is completed to add the defined symbols to the
-	 * global structure after calculating their absolute addresses.
-	 * <p>
-	 * Also performs error detection and checks for arbitrary limits, logging
-	 * results onto the relevant errorMsg variable.
+	 * @return The machine with the given memory size and widths (decimal
+	 *         unless a width is given in bits), where every setting that is
+	 *         not given (null) is that of the default machine, except for a
+	 *         memory size that defaults to all of the addresses of wider
+	 *         machines.
 	 */
-	private void setAbsoluteSymbolValues(Module module) {
-
-		List<Symbol> definedSymbols = module.definitions;
-
-		DescriptiveItem<Symbol> itemSymbolTable;
-		String errorMsg;
-		Integer absoluteLoc;
-		for (Symbol currSymbol : definedSymbols) {
-			errorMsg = null;
-
-			itemSymbolTable = this.definedSymbolTable.get(currSymbol.symbol);
-			if (itemSymbolTable != null) {
-				itemSymbolTable
-						.setErrorMsg("Error: This variable is multiply defined; first value used.");
-				continue;
-			}
-
-			// In case symbol is defined without a relative location
-			if (currSymbol.location == null)
-				currSymbol.location = 0;
+	private static MachineGeometry toGeometry(Integer memorySize,
+			Integer opcodeDigits, Integer addressDigits, Integer opcodeBits,
+			Integer addressBits) {
+
+		if (opcodeBits != null || addressBits != null) {
+			if (opcodeBits == null || addressBits == null)
+				throw new IllegalArgumentException(
+						"Expected both --opcode-bits and --address-bits");
+			return MachineGeometry.binary(memorySize != null ? memorySize
+					: (int) Math.min(1L << addressBits, Integer.MAX_VALUE),
+					opcodeBits, addressBits);
+		}
 
-			absoluteLoc = currSymbol.location + module.startLocation;
-			currSymbol.location = absoluteLoc;
-			currSymbol.moduleNumber = this.modules.size();
+		MachineGeometry geometry = MachineGeometry.DEFAULT;
+		int opcodeWidth = opcodeDigits != null ? opcodeDigits : geometry
+				.getOpcodeWidth();
+		int addressWidth = addressDigits != null ? addressDigits : geometry
+				.getAddressWidth();
 
-			// Update the global structure with the symbols
-			itemSymbolTable = new DescriptiveItem<Symbol>(currSymbol, errorMsg);
-			this.definedSymbolTable.put(itemSymbolTable.item.symbol,
-					itemSymbolTable);
-		}
+		if (memorySize == null && addressDigits == null)
+			memorySize = geometry.getMemorySize();
+		else if (memorySize == null)
+			memorySize = (int) Math.min((long) Math.pow(10, addressWidth),
+					Integer.MAX_VALUE);
 
+		return MachineGeometry.decimal(memorySize, opcodeWidth, addressWidth);
 	}
 
 	/**
-	 * Performs the second pass of the linking process, which uses the base
-	 * addresses and the symbol table computed in pass one to generate the
-	 * actual output by relocating relative addresses and resolving external
-	 * references.
-	 * <p>
-	 * Also performs error detection and checks for arbitrary limits, logging
-	 * results onto the relevant errorMsg variable.
+	 * Links every job found in the given directory, glob or manifest into
+	 * its own file of the given directory (see {@link BatchLinker}), then
+	 * writes why the jobs that failed did so and a summary of all of them
+	 * to the standard error.
+	 *
+	 * @return False if any job failed.
 	 */
-	private void performSecondPass() {
-
-		DescriptiveItem<Symbol> itemSymbolTable;
-		Symbol symbol;
-		String symbolName;
-		String errorMsg;
-		Integer word;
-		Integer relativeAddress;
-		Integer absoluteAddress;
-		for (Module module : this.modules) {
-
-			// In order to verify that the variables in a module's use list are
-			// in the text, add them all to a structure and later remove them
-			// from it as they are found in the text.
-			for (Symbol use : module.uses)
-				if (this.definedSymbolTable.containsKey(use.symbol))
-					module.unusedInTextSymbols.add(use.symbol);
-
-			// Essentially, the only instructions that need to be modified are
-			// the Relative and the External (unless the resulting absolute
-			// address exceeds the given value of the machine's maximum size).
-			for (TextInstruction instr : module.textInstructions) {
-
-				errorMsg = null;
-				relativeAddress = instr.address;
-				absoluteAddress = instr.address;
-
-				if (instr.classification == 'R') {
-					// Adapts the relative instruction to an absolute by looking
-					// at the relevant module's location.
-					absoluteAddress = relativeAddress + module.startLocation;
-
-					if (relativeAddress > module.length) {
-						errorMsg = "Error: Relative address exceeds module size; zero used.";
-						absoluteAddress = 0;
-					}
-
-				} else if (instr.classification == 'E') {
-					if (module.uses.size() <= relativeAddress) {
-						errorMsg = "Error: External address exceeds length of use list; treated as immediate.";
-
-					} else {
-						// Map the address to the external symbol
-						symbolName = module.uses.get(relativeAddress).symbol;
-						itemSymbolTable = this.definedSymbolTable
-								.get(symbolName);
-
-						if (itemSymbolTable == null) {
-							errorMsg = "Error: " + symbolName
-									+ " is not defined; zero used.";
-							instr.address = 0;
-
-						} else {
-							// Mark the symbols as "used" in the test if it's
-							// defined, which is the same as removing the
-							// "unused" mark from them. If the symbol was not
-							// defined (not in this.definedSymbolTable), don't
-							// do anything.
-							module.unusedInTextSymbols.remove(symbolName);
-
-							symbol = itemSymbolTable.item;
-
-							if (symbol == null) {
-								errorMsg = "Error: " + symbolName
-										+ " is not defined; zero used.";
-								instr.address = 0;
-
-							} else {
-								// Mark actually defined symbol as used
-								// somewhere in the program
-								symbol.usedSomewhere = true;
-
-								// Get its absolute address
-								absoluteAddress = this.definedSymbolTable
-										.get(symbolName).item.location;
-							}
-						}
-					}
-				}
-
-				// This check applies to all instructions but the Immediate ones
-				// (immediate addresses are often not really addresses).
-				if (instr.classification != 'I') {
-					if (absoluteAddress >= this.machineMemorySize) {
-						errorMsg = "Error: Absolute address exceeds machine size; zero used.";
-						absoluteAddress = 0;
-					}
-				}
-
-				// Add the formed word to the global memory map
-				word = instr.opcode * 1000 + absoluteAddress;
-				this.memoryMap
-						.add(new DescriptiveItem<Integer>(word, errorMsg));
+	public static boolean batch(String source, String outputDirectory,
+			boolean streaming, OutputFormat format, MachineGeometry geometry,
+			int parallelism) throws IOException {
+
+		BatchLinker linker = new BatchLinker(geometry, format, streaming,
+				parallelism);
+		List<BatchLinker.Job> jobs = linker.findJobs(source,
+				Paths.get(outputDirectory));
+		linker.run(jobs);
+
+		boolean succeeded = true;
+		for (BatchLinker.Job job : jobs)
+			if (job.getFailure() != null) {
+				System.err.println(job.getInputs().get(0) + ": "
+						+ job.getFailure());
+				succeeded = false;
 			}
-		}
 
-		// Print the results to the console
-		this.displayResults();
+		System.err.println(linker.toJson(jobs));
+		return succeeded;
+	}
+
+	private static Integer intOption(String arg) {
+		return Integer.valueOf(arg.substring(arg.indexOf('=') + 1));
 	}
 
 	/**
-	 * Displays the results into the following sections: "Symbol Table",
-	 * "Memory Map" and warnings (note that an output may feature no warnings at
-	 * all). The symbol table and the memory map may feature logged error
-	 * detection results alongside relevant definitions/instructions.
+	 * @return Whether the given text is a non-empty series of decimal digits
+	 *         (checked by hand, so that no regular expression is compiled on
+	 *         startup).
 	 */
-	private void displayResults() {
-
-		/* Symbol Table */
-
-		System.out.println("Symbol Table");
-
-		DescriptiveItem<Symbol> currEntry;
-		for (Entry<String, DescriptiveItem<Symbol>> entry : this.definedSymbolTable
-				.entrySet()) {
-			currEntry = entry.getValue();
-
-			System.out.print(currEntry.item.symbol + "="
-					+ currEntry.item.location);
-
-			if (currEntry.getErrorMsg() != null)
-				System.out.print(" " + currEntry.getErrorMsg());
-
-			System.out.println();
-		}
-
-		System.out.println();
-
-		/* Memory Map */
-
-		System.out.println("Memory Map");
-
-		int counter = 0;
-		int address;
-		for (DescriptiveItem<Integer> memoryEntry : this.memoryMap) {
-
-			address = memoryEntry.item;
-			System.out.printf("%-3s %s", counter + ":", address);
-
-			if (memoryEntry.getErrorMsg() != null)
-				System.out.print(" " + memoryEntry.getErrorMsg());
-
-			System.out.println();
-			counter++;
-		}
+	private static boolean isNumber(String text) {
+		if (text.isEmpty())
+			return false;
+		for (int i = 0; i < text.length(); i++)
+			if (text.charAt(i) < '0' || text.charAt(i) > '9')
+				return false;
+		return true;
+	}
 
-		/* Warnings */
+	private static List<Path> toPaths(List<String> filePaths) {
+		List<Path> paths = new ArrayList<Path>();
+		for (String filePath : filePaths)
+			paths.add(Paths.get(filePath));
+		return paths;
+	}
 
-		boolean thereAreWarnings = false;
-		for (DescriptiveItem<Symbol> descSymbol : this.definedSymbolTable
-				.values()) {
-			// Avoid printing a line break if there are no warnings
-			if (!thereAreWarnings) {
-				System.out.println();
-				thereAreWarnings = true;
-			}
+	public static void main(String[] args) throws IOException {
 
-			if (!descSymbol.item.usedSomewhere)
-				System.out.println("Warning: " + descSymbol.item.symbol
-						+ " was defined in module "
-						+ descSymbol.item.moduleNumber + " but never used.");
+		List<String> filePaths = new ArrayList<String>();
+		boolean streaming = false;
+		boolean pipelined = false;
+		boolean externalSymbols = false;
+		boolean collecting = false;
+		List<Integer> rootModules = new ArrayList<Integer>();
+		List<String> rootSymbols = new ArrayList<String>();
+		OutputFormat format = OutputFormat.TEXT;
+		boolean formatGiven = false;
+		String objectFilePath = null;
+		String archivePath = null;
+		String imagePath = null;
+		String batchSource = null;
+		String outputDirectory = ".";
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		LinkStats stats = null;
+		Integer memorySize = null;
+		Integer opcodeDigits = null;
+		Integer addressDigits = null;
+		Integer opcodeBits = null;
+		Integer addressBits = null;
+		for (String arg : args) {
+			if (arg.equals("--stream"))
+				streaming = true;
+			else if (arg.equals("--pipeline"))
+				pipelined = true;
+			else if (arg.equals("--external-symbols"))
+				externalSymbols = true;
+			else if (arg.equals("--gc"))
+				collecting = true;
+			else if (arg.startsWith("--root=")) {
+				// Modules are given by number, and symbols by name
+				String root = arg.substring("--root=".length());
+				if (isNumber(root))
+					rootModules.add(Integer.valueOf(root));
+				else
+					rootSymbols.add(root);
+				collecting = true;
+			} else if (arg.equals("--stats"))
+				stats = new LinkStats();
+			else if (arg.startsWith("--memory-size="))
+				memorySize = intOption(arg);
+			else if (arg.startsWith("--opcode-digits="))
+				opcodeDigits = intOption(arg);
+			else if (arg.startsWith("--address-digits="))
+				addressDigits = intOption(arg);
+			else if (arg.startsWith("--opcode-bits="))
+				opcodeBits = intOption(arg);
+			else if (arg.startsWith("--address-bits="))
+				addressBits = intOption(arg);
+			else if (arg.startsWith("--format=")) {
+				format = OutputFormat.valueOf(arg.substring("--format=".length())
+						.toUpperCase());
+				formatGiven = true;
+			} else if (arg.startsWith("--compile="))
+				objectFilePath = arg.substring("--compile=".length());
+			else if (arg.startsWith("--archive="))
+				archivePath = arg.substring("--archive=".length());
+			else if (arg.startsWith("--image="))
+				imagePath = arg.substring("--image=".length());
+			else if (arg.startsWith("--batch="))
+				batchSource = arg.substring("--batch=".length());
+			else if (arg.startsWith("--out-dir="))
+				outputDirectory = arg.substring("--out-dir=".length());
+			else if (arg.startsWith("--jobs="))
+				parallelism = intOption(arg);
+			else
+				filePaths.add(arg);
 		}
 
-		int moduleCounter = 1;
-		for (Module currModule : this.modules) {
-
-			for (String badSymbol : currModule.unusedInTextSymbols) {
-				System.out
-						.println("Warning: In module "
-								+ moduleCounter
-								+ " "
-								+ badSymbol
-								+ " appeared in the use list but was not actually used.");
-			}
-
-			moduleCounter++;
+		// --external-symbols is itself a streaming mode, and the files
+		// written instead of the results are made by links of their own
+		int modes = (streaming && !externalSymbols ? 1 : 0)
+				+ (pipelined ? 1 : 0) + (externalSymbols ? 1 : 0)
+				+ (collecting ? 1 : 0) + (objectFilePath != null ? 1 : 0)
+				+ (archivePath != null ? 1 : 0) + (imagePath != null ? 1 : 0);
+		if (modes > 1)
+			throw new IllegalArgumentException(
+					"\nExpected at most one of --stream, --pipeline, --external-symbols, --gc (or --root), --compile, --archive and --image");
+		if (formatGiven
+				&& (objectFilePath != null || archivePath != null || imagePath != null))
+			throw new IllegalArgumentException(
+					"\nExpected no --format with --compile, --archive or --image, which write files of their own format");
+
+		MachineGeometry geometry = toGeometry(memorySize, opcodeDigits,
+				addressDigits, opcodeBits, addressBits);
+
+		// Every input of a batch is linked on its own, and summarized anyway
+		if (batchSource != null) {
+			if (!filePaths.isEmpty() || objectFilePath != null
+					|| archivePath != null || imagePath != null)
+				throw new IllegalArgumentException(
+						"\nExpected no other input (or --compile, --archive or --image) with --batch");
+			// Jobs only stream or not, and are always summarized
+			if (pipelined || externalSymbols || collecting || stats != null)
+				throw new IllegalArgumentException(
+						"\nExpected no --pipeline, --external-symbols, --gc (or --root) or --stats with --batch");
+			if (!batch(batchSource, outputDirectory, streaming, format,
+					geometry, parallelism))
+				System.exit(1);
+			return;
 		}
 
-	}
-
-	public static void main(String[] args) throws IOException {
-
-		String filePath;
-		if (args.length > 0)
-			filePath = args[0];
-		else
+		if (filePaths.isEmpty())
 			throw new IllegalArgumentException(
-					"\nExpected path to input series of object modules.\nFor example, \n\njava TwoPass input-5.txt\n");
+					"\nExpected path to input series of object modules.\nFor example, \n\njava TwoPass input-5.txt\njava TwoPass --stream input-5.txt\njava TwoPass --pipeline input-5.txt\njava TwoPass --external-symbols input-5.txt\njava TwoPass --stats input-5.txt\njava TwoPass --gc --root=1 --root=main input-5.txt\njava TwoPass --memory-size=1000000 --address-digits=6 input-5.txt\njava TwoPass --format=bin input-5.txt > image.bin\njava TwoPass --image=image.bin input-5.txt\njava TwoPass --format=ndjson input-5.txt\njava TwoPass --compile=lib.tpo lib-1.txt lib-2.txt\njava TwoPass main.txt lib.tpo\njava TwoPass --archive=lib.tpa lib-1.txt lib-2.txt\njava TwoPass main.txt lib.tpa\njava TwoPass --batch=inputs --out-dir=results\njava TwoPass --batch='inputs/**.txt' --jobs=4 --out-dir=results\njava TwoPass --batch=jobs.manifest --out-dir=results\n");
 
 		// int inputFile = 2;
 		// filePath = "inputs/input-" + inputFile + ".txt";
 
-		new TwoPass(filePath);
+		if (objectFilePath != null)
+			compile(filePaths, objectFilePath, geometry, stats);
+		else if (archivePath != null)
+			archive(filePaths, archivePath, geometry, stats);
+		else if (imagePath != null)
+			image(filePaths, imagePath, geometry, stats);
+		else if (collecting) {
+			// Only the first module is kept (with what it uses) by default
+			if (rootModules.isEmpty() && rootSymbols.isEmpty())
+				rootModules.add(1);
+			int[] modules = new int[rootModules.size()];
+			for (int i = 0; i < modules.length; i++)
+				modules[i] = rootModules.get(i);
+			collect(filePaths, modules, rootSymbols, format, geometry, stats);
+		} else if (pipelined)
+			pipeline(filePaths, format, geometry, stats);
+		else if (externalSymbols)
+			streamExternal(filePaths, format, geometry, stats);
+		else
+			new TwoPass(filePaths, streaming, format, geometry, stats);
+
+		// Summary of the phases, after (and apart from) the results
+		if (stats != null)
+			System.err.println(stats.toJson());
 
 	}
 
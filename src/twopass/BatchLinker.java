@@ -0,0 +1,383 @@
+package twopass;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+/**
+ * Links many independent inputs in a single JVM, each into an output file of
+ * its own, so that the cost of starting (and warming up) the JVM is paid once
+ * rather than once per input.
+ * <p>
+ * The jobs are found in a directory (every file in it), by a glob (every
+ * file under the directory that precedes the first wildcard whose path
+ * matches it) or in a manifest (a file of jobs, one per line, each made of
+ * the paths of the inputs to link as a single series of modules, separated
+ * by whitespace; paths are relative to the manifest, and blank lines and
+ * lines starting with # are ignored). Every job is linked exactly as a
+ * standalone run would, by a {@link Linker} of its own, on a work-stealing
+ * pool: jobs of very different sizes keep every thread busy.
+ * <p>
+ * The output of a job is named after its first input, relative to the
+ * directory the jobs were found in, followed by the extension of the format
+ * (e.g. "input-1.txt.out" for the text report).
+ */
+public final class BatchLinker {
+	// Machine the programs are linked for
+	private final MachineGeometry geometry;
+	private final OutputFormat format;
+	private final boolean streaming;
+	// Number of jobs linked at the same time
+	private final int parallelism;
+
+	// Statistics of every job, added up
+	private final LinkStats stats = new LinkStats();
+	private long wallNanos;
+
+	/**
+	 * Creates a batch linker for the given machine, writing the results in
+	 * the given format and linking the given number of jobs at the same time.
+	 *
+	 * @param streaming
+	 *            True to link every job in streaming mode (see
+	 *            {@link Linker#stream}).
+	 */
+	public BatchLinker(MachineGeometry geometry, OutputFormat format,
+			boolean streaming, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException(
+					"Expected at least 1 job at a time, not " + parallelism);
+
+		this.geometry = geometry;
+		this.format = format;
+		this.streaming = streaming;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * An independent link of one or more inputs into an output file, and how
+	 * it went once it has been run.
+	 */
+	public static final class Job {
+		private final List<Path> inputs;
+		private final Path output;
+
+		private long nanos;
+		private long errors;
+		private Exception failure;
+
+		public Job(List<Path> inputs, Path output) {
+			this.inputs = Collections.unmodifiableList(new ArrayList<Path>(
+					inputs));
+			this.output = output;
+		}
+
+		public List<Path> getInputs() {
+			return this.inputs;
+		}
+
+		public Path getOutput() {
+			return this.output;
+		}
+
+		/**
+		 * @return Wall time of the job (linking and writing its output), in
+		 *         nanoseconds.
+		 */
+		public long getNanos() {
+			return this.nanos;
+		}
+
+		/**
+		 * @return Number of errors reported by the link.
+		 */
+		public long getErrors() {
+			return this.errors;
+		}
+
+		/**
+		 * @return What kept the job from completing (such as an unreadable
+		 *         input), in which case it has no output, or null.
+		 */
+		public Exception getFailure() {
+			return this.failure;
+		}
+	}
+
+	/**
+	 * @return The jobs found in the given directory, glob or manifest, whose
+	 *         outputs are in the given directory.
+	 * @throws IllegalArgumentException
+	 *             If two jobs would have the same output.
+	 */
+	public List<Job> findJobs(String source, Path outputDirectory)
+			throws IOException {
+
+		Path base;
+		List<List<Path>> jobInputs = new ArrayList<List<Path>>();
+
+		Path path = Paths.get(source);
+		int wildcard = firstWildcard(source);
+		if (wildcard >= 0) {
+			// The glob applies to the paths relative to the directory that
+			// precedes its first wildcard
+			int separator = source.lastIndexOf('/', wildcard);
+			base = Paths.get(separator >= 0 ? source.substring(0,
+					separator + 1) : ".");
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+					"glob:" + source.substring(separator + 1));
+			for (Path file : listFiles(base, true))
+				if (matcher.matches(base.relativize(file)))
+					jobInputs.add(Collections.singletonList(file));
+
+		} else if (Files.isDirectory(path)) {
+			base = path;
+			for (Path file : listFiles(base, false))
+				jobInputs.add(Collections.singletonList(file));
+
+		} else {
+			base = path.toAbsolutePath().getParent();
+			try (BufferedReader reader = Files.newBufferedReader(path,
+					StandardCharsets.UTF_8)) {
+				for (String line = reader.readLine(); line != null; line = reader
+						.readLine()) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#"))
+						continue;
+
+					// Split by hand rather than compiling a regular expression
+					List<Path> inputs = new ArrayList<Path>();
+					int start = 0;
+					for (int i = 0; i <= line.length(); i++)
+						if (i == line.length()
+								|| Character.isWhitespace(line.charAt(i))) {
+							if (i > start)
+								inputs.add(base.resolve(line.substring(start, i)));
+							start = i + 1;
+						}
+					jobInputs.add(inputs);
+				}
+			}
+		}
+
+		List<Job> jobs = new ArrayList<Job>();
+		Set<Path> outputs = new HashSet<Path>();
+		for (List<Path> inputs : jobInputs) {
+			Path output = outputDirectory.resolve(this.outputName(base,
+					inputs.get(0)));
+			if (!outputs.add(output.normalize()))
+				throw new IllegalArgumentException(
+						"More than one job would be written to " + output);
+			jobs.add(new Job(inputs, output));
+		}
+
+		return jobs;
+	}
+
+	private static int firstWildcard(String glob) {
+		for (int i = 0; i < glob.length(); i++)
+			if ("*?[{".indexOf(glob.charAt(i)) >= 0)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return The regular files in the given directory (and below it if
+	 *         recursive) but hidden ones, in the order of their paths.
+	 */
+	private static List<Path> listFiles(Path directory, boolean recursive)
+			throws IOException {
+
+		List<Path> files = new ArrayList<Path>();
+		try (Stream<Path> paths = recursive ? Files.walk(directory) : Files
+				.list(directory)) {
+			for (Iterator<Path> i = paths.iterator(); i.hasNext();) {
+				Path file = i.next();
+				if (Files.isRegularFile(file) && !Files.isHidden(file))
+					files.add(file);
+			}
+		}
+
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * @return Name of the output of a job whose first input is given: its
+	 *         path relative to the directory the jobs were found in (or only
+	 *         its name if it is not in there) followed by the extension of
+	 *         the format.
+	 */
+	private String outputName(Path base, Path input) {
+
+		Path name = input.toAbsolutePath().normalize();
+		Path directory = base.toAbsolutePath().normalize();
+		name = name.startsWith(directory) ? directory.relativize(name) : name
+				.getFileName();
+
+		switch (this.format) {
+		case BIN:
+			return name + ".bin";
+		case NDJSON:
+			return name + ".ndjson";
+		default:
+			return name + ".out";
+		}
+	}
+
+	/**
+	 * Runs the given jobs, recording how each of them went. A job that
+	 * cannot complete does not keep the others from running.
+	 */
+	public void run(List<Job> jobs) {
+
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+		try {
+			if (!jobs.isEmpty())
+				pool.invoke(new BatchTask(jobs, 0, jobs.size()));
+		} finally {
+			pool.shutdown();
+		}
+		this.wallNanos += System.nanoTime() - start;
+
+	}
+
+	/**
+	 * Links a job into its output, exactly as a standalone run would write
+	 * it to the standard output.
+	 */
+	private void run(Job job) {
+
+		long start = System.nanoTime();
+		LinkStats jobStats = new LinkStats();
+		Linker linker = new Linker(this.geometry, jobStats);
+
+		try {
+			Path directory = job.output.toAbsolutePath().getParent();
+			if (directory != null)
+				Files.createDirectories(directory);
+
+			// Binary images are relocated straight into their file
+			if (this.format == OutputFormat.BIN && !this.streaming) {
+				linker.link(linker.parse(job.inputs), job.output);
+			} else {
+				try (OutputStream out = Files.newOutputStream(job.output)) {
+					if (this.streaming)
+						linker.stream(job.inputs, this.format, out);
+					else
+						linker.emit(linker.link(linker.parse(job.inputs)),
+								this.format, out);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			job.failure = e;
+			try {
+				Files.deleteIfExists(job.output);
+			} catch (IOException f) {
+				e.addSuppressed(f);
+			}
+		}
+
+		job.nanos = System.nanoTime() - start;
+		for (Diagnostic kind : Diagnostic.values())
+			if (kind.isError())
+				job.errors += jobStats.getCount(LinkStats.Count.of(kind));
+		this.stats.add(jobStats);
+
+	}
+
+	/**
+	 * @return Statistics of the phases of every job run so far, added up.
+	 */
+	public LinkStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * @return Summary of the given jobs (once run) as a single line of JSON,
+	 *         such as {"jobs":40,"failed":1,"withErrors":12,"errors":57,
+	 *         "wallNanos":9100000,"jobNanos":31000000,"slowest":{"output":
+	 *         "input-7.txt.out","nanos":2100000},"links":{...}}, where links
+	 *         are the statistics of the phases of every job (see
+	 *         {@link LinkStats#toJson}).
+	 */
+	public String toJson(List<Job> jobs) {
+
+		long failed = 0;
+		long withErrors = 0;
+		long errors = 0;
+		long jobNanos = 0;
+		Job slowest = null;
+		for (Job job : jobs) {
+			if (job.failure != null)
+				failed++;
+			if (job.errors > 0)
+				withErrors++;
+			errors += job.errors;
+			jobNanos += job.nanos;
+			if (slowest == null || job.nanos > slowest.nanos)
+				slowest = job;
+		}
+
+		StringBuilder json = new StringBuilder("{\"jobs\":");
+		json.append(jobs.size()).append(",\"failed\":").append(failed)
+				.append(",\"withErrors\":").append(withErrors)
+				.append(",\"errors\":").append(errors)
+				.append(",\"wallNanos\":").append(this.wallNanos)
+				.append(",\"jobNanos\":").append(jobNanos);
+		if (slowest != null)
+			json.append(",\"slowest\":{\"output\":\"")
+					.append(slowest.output.toString().replace("\\", "\\\\")
+							.replace("\"", "\\\"")).append("\",\"nanos\":")
+					.append(slowest.nanos).append('}');
+		json.append(",\"links\":").append(this.stats.toJson());
+
+		return json.append('}').toString();
+
+	}
+
+	/**
+	 * Runs a range of jobs, splitting it in halves to be stolen by idle
+	 * threads until it holds a single job.
+	 */
+	private class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final transient List<Job> jobs;
+		private final int fromJob;
+		private final int toJob;
+
+		public BatchTask(List<Job> jobs, int fromJob, int toJob) {
+			this.jobs = jobs;
+			this.fromJob = fromJob;
+			this.toJob = toJob;
+		}
+
+		protected void compute() {
+			if (this.toJob - this.fromJob == 1) {
+				BatchLinker.this.run(this.jobs.get(this.fromJob));
+				return;
+			}
+
+			int middle = (this.fromJob + this.toJob) >>> 1;
+			invokeAll(new BatchTask(this.jobs, this.fromJob, middle),
+					new BatchTask(this.jobs, middle, this.toJob));
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package twopass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A program without the modules that cannot be reached from its roots, to
+ * be linked into a smaller memory map.
+ * <p>
+ * A module is reached if it is a root, if it gives the first definition
+ * (the one that is used) of a root symbol, or if it gives the first
+ * definition of a symbol in the use list of a module that is reached. The
+ * modules that are kept are then laid out again one after another, and
+ * numbered again, as if the others had not been in the input, so the
+ * program links like any other. Their text is copied to a store of their
+ * own, while the names of the symbols are shared with the whole program.
+ * <p>
+ * The numbers (in the input) of the modules that were removed and the
+ * number of their words are kept for the report of what was removed (see
+ * toJson).
+ */
+public final class CollectedProgram {
+	private final ObjectProgram program;
+	private final int inputModuleCount;
+	private final int inputWordCount;
+	private final int[] removedModules;
+	private final int removedWordCount;
+
+	private CollectedProgram(ObjectProgram program, int inputModuleCount,
+			int inputWordCount, int[] removedModules, int removedWordCount) {
+		this.program = program;
+		this.inputModuleCount = inputModuleCount;
+		this.inputWordCount = inputWordCount;
+		this.removedModules = removedModules;
+		this.removedWordCount = removedWordCount;
+	}
+
+	/**
+	 * @param rootModules
+	 *            Numbers (starting from 1) of the modules to start from.
+	 * @param rootSymbols
+	 *            Names of the symbols whose (first) definitions start from
+	 *            their modules.
+	 * @throws IllegalArgumentException
+	 *             If a root module is not in the program or a root symbol is
+	 *             not defined by it.
+	 */
+	static CollectedProgram collect(ObjectProgram program, int[] rootModules,
+			List<String> rootSymbols) {
+
+		List<Module> modules = program.modules;
+		SymbolTable symbols = program.symbols;
+
+		// Index of the module with the first definition of every symbol
+		int[] definers = new int[symbols.size()];
+		Arrays.fill(definers, -1);
+		for (int m = 0; m < modules.size(); m++) {
+			IntList definitions = modules.get(m).definitions;
+			for (int i = 0; i < definitions.size(); i += 2)
+				if (definers[definitions.get(i)] < 0)
+					definers[definitions.get(i)] = m;
+		}
+
+		// Modules reached, and those whose use lists are still to be
+		// followed (each one is only pushed once)
+		BitSet reached = new BitSet(modules.size());
+		int[] pending = new int[modules.size()];
+		int pendingCount = 0;
+
+		for (int number : rootModules) {
+			if (number < 1 || number > modules.size())
+				throw new IllegalArgumentException("No module " + number
+						+ " to start from (the program has " + modules.size()
+						+ ")");
+			if (!reached.get(number - 1)) {
+				reached.set(number - 1);
+				pending[pendingCount++] = number - 1;
+			}
+		}
+
+		for (String name : rootSymbols) {
+			int symbolId = symbols.lookup(name);
+			if (symbolId < 0 || definers[symbolId] < 0)
+				throw new IllegalArgumentException("Symbol " + name
+						+ " to start from is not defined");
+			if (!reached.get(definers[symbolId])) {
+				reached.set(definers[symbolId]);
+				pending[pendingCount++] = definers[symbolId];
+			}
+		}
+
+		while (pendingCount > 0) {
+			IntList uses = modules.get(pending[--pendingCount]).uses;
+			for (int i = 0; i < uses.size(); i++) {
+				int definer = definers[uses.get(i)];
+				if (definer >= 0 && !reached.get(definer)) {
+					reached.set(definer);
+					pending[pendingCount++] = definer;
+				}
+			}
+		}
+
+		// Lay out the modules that are kept, and copy their text
+		ArrayList<Module> kept = new ArrayList<Module>(reached.cardinality());
+		InstructionStore instructions = new InstructionStore();
+		int[] removedModules = new int[modules.size() - reached.cardinality()];
+		int removedCount = 0;
+		int removedWordCount = 0;
+		int startLocation = 0;
+
+		for (int m = 0; m < modules.size(); m++) {
+			Module module = modules.get(m);
+			if (!reached.get(m)) {
+				removedModules[removedCount++] = module.number;
+				removedWordCount += module.length;
+				continue;
+			}
+
+			Module moved = module.moveTo(kept.size() + 1, startLocation,
+					instructions.size());
+			for (int i = module.textOffset; i < module.textOffset
+					+ module.length; i++)
+				instructions.add(program.instructions.classification(i),
+						program.instructions.opcode(i),
+						program.instructions.address(i));
+			kept.add(moved);
+			startLocation = moved.endLocation + 1;
+		}
+
+		ObjectProgram collected = new ObjectProgram(program.geometry, kept,
+				symbols, instructions);
+		return new CollectedProgram(collected, modules.size(),
+				program.getWordCount(), removedModules, removedWordCount);
+
+	}
+
+	/**
+	 * @return The program made of the modules that are kept.
+	 */
+	public ObjectProgram getProgram() {
+		return this.program;
+	}
+
+	/**
+	 * @return Numbers (in the input, starting from 1) of the modules that
+	 *         were removed, in order.
+	 */
+	public int[] getRemovedModules() {
+		return this.removedModules.clone();
+	}
+
+	public int getRemovedModuleCount() {
+		return this.removedModules.length;
+	}
+
+	/**
+	 * @return Number of words in the modules that were removed.
+	 */
+	public int getRemovedWordCount() {
+		return this.removedWordCount;
+	}
+
+	/**
+	 * @return The number of modules and words that were kept and removed,
+	 *         and the numbers of the modules that were removed, as a JSON
+	 *         object.
+	 */
+	public String toJson() {
+
+		StringBuilder json = new StringBuilder("{\"modules\":{\"kept\":");
+		json.append(this.inputModuleCount - this.removedModules.length)
+				.append(",\"removed\":").append(this.removedModules.length)
+				.append("},\"words\":{\"kept\":")
+				.append(this.inputWordCount - this.removedWordCount)
+				.append(",\"removed\":").append(this.removedWordCount)
+				.append("},\"removedModules\":[");
+		for (int i = 0; i < this.removedModules.length; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append(this.removedModules[i]);
+		}
+
+		return json.append("]}").toString();
+
+	}
+}
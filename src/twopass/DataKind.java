@@ -0,0 +1,30 @@
+package twopass;
+
+/**
+ * Knowing that the input file is split into modules which are split into
+ * DEFINITIONS, USES and INSTRUCTIONS, it provides a couple of functions to
+ * determine their order.
+ * <p>
+ * This allows the user of this class to understand how the data is being
+ * interpreted as it is read (as opposed to cryptic boolean flags which
+ * convey no real information in a clear way).
+ */
+enum DataKind {
+	// Items found in module
+	DEFINITIONS, USES, INSTRUCTIONS;
+
+	public static DataKind getFirst() {
+		return DataKind.DEFINITIONS;
+	}
+
+	public DataKind getNext() {
+		if (this == DataKind.DEFINITIONS)
+			return DataKind.USES;
+
+		else if (this == DataKind.USES)
+			return DataKind.INSTRUCTIONS;
+
+		else
+			return DataKind.DEFINITIONS;
+	}
+}
@@ -0,0 +1,110 @@
+package twopass;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kinds of errors and warnings found by a link. Only their kind and
+ * arguments (a symbol, a module) are recorded; the text is rendered from the
+ * template of the kind when the results are written.
+ */
+public enum Diagnostic {
+	// Errors of a definition of a symbol
+	MULTIPLY_DEFINED(true, "multiplyDefined",
+			"Error: This variable is multiply defined; first value used."),
+
+	// Errors of a word of the memory map
+	RELATIVE_ADDRESS(true, "relativeAddressExceedsModule",
+			"Error: Relative address exceeds module size; zero used."),
+	EXTERNAL_ADDRESS(true, "externalAddressExceedsUseList",
+			"Error: External address exceeds length of use list; treated as immediate."),
+	UNDEFINED_SYMBOL(true, "undefinedSymbol",
+			"Error: {symbol} is not defined; zero used."),
+	ABSOLUTE_ADDRESS(true, "absoluteAddressExceedsMachine",
+			"Error: Absolute address exceeds machine size; zero used."),
+
+	// Warnings about the use of the symbols
+	UNUSED_DEFINITION(false, "definedButNeverUsed",
+			"Warning: {symbol} was defined in module {module} but never used."),
+	UNUSED_USE(false, "usedButNotInText",
+			"Warning: In module {module} {symbol} appeared in the use list but was not actually used.");
+
+	private static final String SYMBOL = "{symbol}";
+	private static final String MODULE = "{module}";
+
+	private final boolean error;
+	private final String name;
+
+	// Text of the template between its arguments, and the arguments
+	// (SYMBOL or MODULE) that follow each part but the last
+	private final String[] parts;
+	private final String[] arguments;
+
+	private Diagnostic(boolean error, String name, String template) {
+		this.error = error;
+		this.name = name;
+
+		List<String> parts = new ArrayList<String>();
+		List<String> arguments = new ArrayList<String>();
+		int start = 0;
+		for (int i = template.indexOf('{'); i >= 0; i = template.indexOf(
+				'{', start)) {
+			parts.add(template.substring(start, i));
+			arguments.add(template.startsWith(SYMBOL, i) ? SYMBOL : MODULE);
+			start = template.indexOf('}', i) + 1;
+		}
+		parts.add(template.substring(start));
+
+		this.parts = parts.toArray(new String[0]);
+		this.arguments = arguments.toArray(new String[0]);
+	}
+
+	/**
+	 * @return True for errors, false for warnings.
+	 */
+	public boolean isError() {
+		return this.error;
+	}
+
+	/**
+	 * @return Name of the kind in machine-readable output.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return The text of a diagnostic of this kind about the given symbol
+	 *         and/or module (which are ignored if the text has no place for
+	 *         them).
+	 */
+	public String getMessage(String symbolName, int moduleNumber) {
+		StringBuilder message = new StringBuilder(this.parts[0]);
+		for (int i = 0; i < this.arguments.length; i++) {
+			if (this.arguments[i] == SYMBOL)
+				message.append(symbolName);
+			else
+				message.append(moduleNumber);
+			message.append(this.parts[i + 1]);
+		}
+
+		return message.toString();
+	}
+
+	/**
+	 * Same as {@link #getMessage(String, int)}, writing the text part by
+	 * part instead of building it.
+	 */
+	void print(ReportWriter out, String symbolName, int moduleNumber)
+			throws IOException {
+		out.print(this.parts[0]);
+		for (int i = 0; i < this.arguments.length; i++) {
+			if (this.arguments[i] == SYMBOL)
+				out.print(symbolName);
+			else
+				out.print(moduleNumber);
+			out.print(this.parts[i + 1]);
+		}
+	}
+}
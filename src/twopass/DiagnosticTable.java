@@ -0,0 +1,99 @@
+package twopass;
+
+import java.util.Arrays;
+
+/**
+ * Sparse table of the diagnostics of the words of a memory map: for each
+ * word with an error (and only for those), its index, the kind of error and
+ * its argument (the ID of the symbol, for undefined symbols).
+ * <p>
+ * Entries are added in the order of their indexes, so they can be found by
+ * binary search or walked alongside the memory map.
+ */
+final class DiagnosticTable {
+	private static final Diagnostic[] KINDS = Diagnostic.values();
+
+	private int[] indexes = new int[0];
+	private byte[] kinds = new byte[0];
+	private int[] arguments = new int[0];
+	private int size;
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Adds an entry, whose index must follow those of the entries already in
+	 * the table.
+	 */
+	public void add(int index, Diagnostic kind, int argument) {
+		if (this.size == this.indexes.length) {
+			int capacity = Math.max(16, this.size * 2);
+			this.indexes = Arrays.copyOf(this.indexes, capacity);
+			this.kinds = Arrays.copyOf(this.kinds, capacity);
+			this.arguments = Arrays.copyOf(this.arguments, capacity);
+		}
+
+		this.indexes[this.size] = index;
+		this.kinds[this.size] = (byte) kind.ordinal();
+		this.arguments[this.size] = argument;
+		this.size++;
+	}
+
+	/**
+	 * Adds all the entries of another table, whose indexes must follow those
+	 * of this one.
+	 */
+	public void addAll(DiagnosticTable other) {
+		for (int i = 0; i < other.size; i++)
+			this.add(other.indexes[i], other.kind(i), other.arguments[i]);
+	}
+
+	/**
+	 * Adds the entries of another table whose indexes are in the given range,
+	 * moving them by the given distance.
+	 */
+	public void addAll(DiagnosticTable other, int from, int to, int shift) {
+		for (int i = other.find(from); i < other.size
+				&& other.indexes[i] < to; i++)
+			this.add(other.indexes[i] + shift, other.kind(i),
+					other.arguments[i]);
+	}
+
+	public int index(int entry) {
+		return this.indexes[entry];
+	}
+
+	public Diagnostic kind(int entry) {
+		return KINDS[this.kinds[entry]];
+	}
+
+	public int argument(int entry) {
+		return this.arguments[entry];
+	}
+
+	/**
+	 * @return The first entry whose index is not below the given one (or
+	 *         the size of the table if there is none).
+	 */
+	public int find(int index) {
+		int low = 0;
+		int high = this.size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.indexes[middle] < index)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Forgets every entry while keeping the allocated arrays.
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+}
@@ -0,0 +1,653 @@
+package twopass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Symbol table of the defined symbols kept in temporary files rather than
+ * in memory, for links that define more symbols than the heap can hold.
+ * <p>
+ * Pass one defines the symbols of the modules in a {@link SymbolTable} of
+ * bounded size, which is written as a run sorted by name (name, absolute
+ * location, module number and whether it was defined again) and cleared
+ * whenever it is full. The runs are then merged into a single sorted file,
+ * keeping the first definition of every name (that of the earliest run)
+ * and marking as multiply defined those found in more than one run.
+ * <p>
+ * The merged file is read in blocks of a hundred or so symbols: only the
+ * first name and the offset of every block are kept in memory, and the
+ * blocks last read are cached. The symbols are indexed from 0 in the order
+ * of their names, like those of a {@link LinkResult}, so pass two looks a
+ * name up with a binary search over the blocks, and the "Symbol Table"
+ * section reads the file from start to end.
+ * <p>
+ * Besides the blocks, only one bit per defined symbol stays in memory
+ * (whether it is used).
+ * The warnings about uses that are not in the text are written to a file
+ * of their own as they are found, and read back in order.
+ */
+final class ExternalSymbolTable implements Closeable {
+	// Names interned by pass one before its symbol table is written as a run
+	static final int RUN_SYMBOLS = 1 << 18;
+	// Runs read at the same time by a merge
+	static final int MERGE_WIDTH = 64;
+	// Symbols of a block of the merged file
+	static final int BLOCK_SYMBOLS = 128;
+	// Blocks of the merged file kept in memory (a few KiB each)
+	static final int CACHE_BLOCKS = 2048;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Temporary directory of the runs and of the merged file
+	private final Path directory;
+	// Runs waiting to be merged, in the order they were written
+	private List<Path> runs = new ArrayList<Path>();
+	private int runCount;
+	private FileChannel merged;
+
+	// Number of symbols in the merged file, and of those multiply defined
+	private int size;
+	private int multiplyDefinedCount;
+
+	// First name and offset of every block of the merged file (the offset
+	// of the end of the file follows the last one)
+	private String[] blockNames = new String[16];
+	private long[] blockOffsets = new long[17];
+	private int blockCount;
+
+	// Most recently read blocks, by number
+	private final LinkedHashMap<Integer, Block> cache;
+
+	// Set for the symbols that appear anywhere on the text
+	private final BitSet usedSomewhere = new BitSet();
+
+	// Symbols in a use list but not in the text, as module numbers and
+	// names, while they are written and once they are read back (the
+	// warning last read is kept)
+	private DataOutputStream unusedUses;
+	private int unusedUseCount;
+	private DataInputStream unusedUseReader;
+	private int unusedUseIndex = -1;
+	private int unusedUseModule;
+	private String unusedUseName;
+
+	public ExternalSymbolTable() throws IOException {
+		this.directory = Files.createTempDirectory("twopass-");
+		this.cache = new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+				return this.size() > CACHE_BLOCKS;
+			}
+		};
+	}
+
+	/**
+	 * Symbols of a block of the merged file, read at once and kept as they
+	 * are in the file: only the names that are asked for are turned into
+	 * Strings (a lookup compares the others byte by byte).
+	 */
+	private static final class Block {
+		final ByteBuffer bytes;
+		// Offset of every symbol in the block
+		final int[] offsets;
+
+		Block(ByteBuffer bytes, int size) {
+			this.bytes = bytes;
+			this.offsets = new int[size];
+
+			int offset = 0;
+			for (int i = 0; i < size; i++) {
+				this.offsets[i] = offset;
+				offset += 2 + (bytes.getShort(offset) & 0xFFFF) + 9;
+			}
+		}
+
+		private int nameLength(int i) {
+			return this.bytes.getShort(this.offsets[i]) & 0xFFFF;
+		}
+
+		String name(int i) {
+			return new String(this.bytes.array(), this.offsets[i] + 2,
+					this.nameLength(i), StandardCharsets.US_ASCII);
+		}
+
+		int location(int i) {
+			return this.bytes.getInt(this.offsets[i] + 2 + this.nameLength(i));
+		}
+
+		int moduleNumber(int i) {
+			return this.bytes.getInt(this.offsets[i] + 6 + this.nameLength(i));
+		}
+
+		boolean isMultiplyDefined(int i) {
+			return this.bytes.get(this.offsets[i] + 10 + this.nameLength(i)) != 0;
+		}
+
+		/**
+		 * @return The position of the given name in the block, or -1.
+		 */
+		int find(String name) {
+			int low = 0;
+			int high = this.offsets.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int order = this.compare(middle, name);
+				if (order < 0)
+					low = middle + 1;
+				else if (order > 0)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -1;
+		}
+
+		/**
+		 * Compares the name of the given symbol with another name, in the
+		 * order of {@link String#compareTo} (names are ASCII).
+		 */
+		private int compare(int i, String name) {
+			int start = this.offsets[i] + 2;
+			int length = this.nameLength(i);
+			for (int c = 0; c < length && c < name.length(); c++) {
+				int order = (this.bytes.get(start + c) & 0xFF) - name.charAt(c);
+				if (order != 0)
+					return order;
+			}
+			return length - name.length();
+		}
+	}
+
+	/**
+	 * Writes the symbols defined in the given table as a run, sorted by
+	 * name. The table can then be cleared.
+	 */
+	public void writeRun(SymbolTable symbols) throws IOException {
+
+		if (this.merged != null)
+			throw new IllegalStateException("Runs were merged already");
+
+		Path path = this.directory.resolve("run-" + this.runCount++);
+		this.runs.add(path);
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path),
+						BUFFER_SIZE))) {
+			for (int id : symbols.sortedDefinitions())
+				writeSymbol(out, symbols.name(id), symbols.location(id),
+						symbols.moduleNumber(id),
+						symbols.isMultiplyDefined(id));
+		}
+
+	}
+
+	/**
+	 * Writes a symbol as the length (2 bytes) and ASCII characters of its
+	 * name, its location, its module number and whether it is multiply
+	 * defined (1 byte).
+	 */
+	private static void writeSymbol(DataOutputStream out, String name,
+			int location, int moduleNumber, boolean multiplyDefined)
+			throws IOException {
+		writeName(out, name);
+		out.writeInt(location);
+		out.writeInt(moduleNumber);
+		out.writeBoolean(multiplyDefined);
+	}
+
+	private static void writeName(DataOutputStream out, String name)
+			throws IOException {
+		if (name.length() > 0xFFFF)
+			throw new IOException("Symbol name longer than 65535 characters");
+		out.writeShort(name.length());
+		out.writeBytes(name);
+	}
+
+	private static String readName(DataInputStream in) throws IOException {
+		byte[] name = new byte[in.readUnsignedShort()];
+		in.readFully(name);
+		return new String(name, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Next symbol of a run being merged.
+	 */
+	private static final class RunReader implements Comparable<RunReader> {
+		final int run;
+		final DataInputStream in;
+		String name;
+		int location;
+		int moduleNumber;
+		boolean multiplyDefined;
+
+		RunReader(int run, DataInputStream in) {
+			this.run = run;
+			this.in = in;
+		}
+
+		/**
+		 * @return False once the run is over.
+		 */
+		boolean next() throws IOException {
+			try {
+				this.name = readName(this.in);
+			} catch (EOFException e) {
+				return false;
+			}
+			this.location = this.in.readInt();
+			this.moduleNumber = this.in.readInt();
+			this.multiplyDefined = this.in.readBoolean();
+			return true;
+		}
+
+		/**
+		 * Orders by name and then by run, so that the earliest definition of
+		 * a name comes first.
+		 */
+		public int compareTo(RunReader other) {
+			int order = this.name.compareTo(other.name);
+			return order != 0 ? order : Integer.compare(this.run, other.run);
+		}
+	}
+
+	/**
+	 * Merges the runs into the sorted file from which the symbols are read,
+	 * deleting them. While there are too many runs to be read at once,
+	 * groups of consecutive runs are first merged into longer runs (which
+	 * keeps the earliest definition of every name first).
+	 */
+	public void merge() throws IOException {
+
+		while (this.runs.size() > MERGE_WIDTH) {
+			List<Path> merged = new ArrayList<Path>();
+			for (int from = 0; from < this.runs.size(); from += MERGE_WIDTH) {
+				Path path = this.directory.resolve("run-" + this.runCount++);
+				this.merge(this.runs.subList(from,
+						Math.min(from + MERGE_WIDTH, this.runs.size())), path,
+						false);
+				merged.add(path);
+			}
+			this.runs = merged;
+		}
+
+		Path path = this.directory.resolve("symbols");
+		this.merge(this.runs, path, true);
+		this.runs.clear();
+		this.merged = FileChannel.open(path, StandardOpenOption.READ);
+
+	}
+
+	/**
+	 * Merges the given runs into the given file, which is either a longer
+	 * run or the final file (in blocks), and deletes them.
+	 */
+	private void merge(List<Path> runs, Path path, boolean last)
+			throws IOException {
+
+		List<RunReader> readers = new ArrayList<RunReader>();
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(
+				runs.size(), 1));
+
+		try (CountingOutputStream counter = new CountingOutputStream(
+				Files.newOutputStream(path));
+				DataOutputStream out = new DataOutputStream(counter)) {
+
+			for (int run = 0; run < runs.size(); run++) {
+				RunReader reader = new RunReader(run, new DataInputStream(
+						new BufferedInputStream(Files.newInputStream(runs
+								.get(run)), BUFFER_SIZE)));
+				readers.add(reader);
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			// The first definition of every name is held back until the
+			// next name comes, in case a later run defines it again
+			String name = null;
+			int location = 0;
+			int moduleNumber = 0;
+			boolean multiplyDefined = false;
+
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+
+				if (reader.name.equals(name)) {
+					multiplyDefined = true;
+				} else {
+					if (name != null)
+						this.add(out, counter, last, name, location,
+								moduleNumber, multiplyDefined);
+					name = reader.name;
+					location = reader.location;
+					moduleNumber = reader.moduleNumber;
+					multiplyDefined = reader.multiplyDefined;
+				}
+
+				if (reader.next())
+					queue.add(reader);
+			}
+
+			if (name != null)
+				this.add(out, counter, last, name, location, moduleNumber,
+						multiplyDefined);
+
+			if (last)
+				this.blockOffsets[this.blockCount] = counter.count;
+		} finally {
+			for (RunReader reader : readers)
+				reader.in.close();
+			for (Path run : runs)
+				Files.deleteIfExists(run);
+		}
+
+	}
+
+	/**
+	 * Appends a symbol to a run, or to the final file (starting a block if
+	 * needed).
+	 */
+	private void add(DataOutputStream out, CountingOutputStream counter,
+			boolean last, String name, int location, int moduleNumber,
+			boolean multiplyDefined) throws IOException {
+
+		if (!last) {
+			writeSymbol(out, name, location, moduleNumber, multiplyDefined);
+			return;
+		}
+
+		if (this.size % BLOCK_SYMBOLS == 0) {
+			if (this.blockCount == this.blockNames.length) {
+				this.blockNames = Arrays.copyOf(this.blockNames,
+						this.blockCount * 2);
+				this.blockOffsets = Arrays.copyOf(this.blockOffsets,
+						this.blockCount * 2 + 1);
+			}
+			this.blockNames[this.blockCount] = name;
+			this.blockOffsets[this.blockCount] = counter.count;
+			this.blockCount++;
+		}
+
+		writeSymbol(out, name, location, moduleNumber, multiplyDefined);
+		this.size++;
+		if (multiplyDefined)
+			this.multiplyDefinedCount++;
+
+	}
+
+	/**
+	 * Buffered output stream which counts the bytes written to it, i.e. the
+	 * offset in the file of the next one.
+	 */
+	private static final class CountingOutputStream extends
+			BufferedOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out, BUFFER_SIZE);
+		}
+
+		public void write(int b) throws IOException {
+			super.write(b);
+			this.count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			this.count += len;
+		}
+	}
+
+	/**
+	 * @return The given block of the merged file, read if it is not cached.
+	 * @throws UncheckedIOException
+	 *             If the file cannot be read, since the symbols are read
+	 *             through the getters of a {@link LinkResult}.
+	 */
+	private Block block(int number) {
+
+		Block block = this.cache.get(number);
+		if (block == null) {
+			try {
+				block = this.read(number);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.cache.put(number, block);
+		}
+		return block;
+
+	}
+
+	/**
+	 * Reads the given block of the merged file.
+	 */
+	private Block read(int number) throws IOException {
+
+		long offset = this.blockOffsets[number];
+		ByteBuffer bytes = ByteBuffer
+				.allocate((int) (this.blockOffsets[number + 1] - offset));
+		while (bytes.hasRemaining())
+			if (this.merged.read(bytes, offset + bytes.position()) < 0)
+				throw new EOFException("Truncated symbol table");
+
+		return new Block(bytes, Math.min(BLOCK_SYMBOLS, this.size - number
+				* BLOCK_SYMBOLS));
+
+	}
+
+	/**
+	 * @return Number of defined symbols.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public int multiplyDefinedCount() {
+		return this.multiplyDefinedCount;
+	}
+
+	/**
+	 * @return The index of the given name among the defined symbols, or -1
+	 *         if it is not defined.
+	 */
+	public int lookup(String name) {
+
+		// Last block whose first name is not after the given one
+		int low = 0;
+		int high = this.blockCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this.blockNames[middle].compareTo(name) <= 0)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		if (high < 0)
+			return -1;
+
+		int index = this.block(high).find(name);
+		return index < 0 ? -1 : high * BLOCK_SYMBOLS + index;
+
+	}
+
+	public String name(int index) {
+		return this.block(index / BLOCK_SYMBOLS).name(index % BLOCK_SYMBOLS);
+	}
+
+	public int location(int index) {
+		return this.block(index / BLOCK_SYMBOLS).location(
+				index % BLOCK_SYMBOLS);
+	}
+
+	public int moduleNumber(int index) {
+		return this.block(index / BLOCK_SYMBOLS).moduleNumber(
+				index % BLOCK_SYMBOLS);
+	}
+
+	public boolean isMultiplyDefined(int index) {
+		return this.block(index / BLOCK_SYMBOLS).isMultiplyDefined(
+				index % BLOCK_SYMBOLS);
+	}
+
+	public boolean isUsedSomewhere(int index) {
+		return this.usedSomewhere.get(index);
+	}
+
+	public int usedCount() {
+		return this.usedSomewhere.cardinality();
+	}
+
+	/**
+	 * Defines the symbols of the use list of a module, whose names are in
+	 * the given table, in that table.
+	 *
+	 * @return The index of the symbol of every entry of the use list, or -1
+	 *         for those which are not defined.
+	 */
+	public int[] defineUses(Module module, SymbolTable symbols) {
+
+		int[] indices = new int[module.uses.size()];
+		for (int i = 0; i < indices.length; i++) {
+			int symbolId = module.uses.get(i);
+			indices[i] = this.lookup(symbols.name(symbolId));
+			if (indices[i] >= 0 && !symbols.isDefined(symbolId))
+				symbols.define(symbolId, this.location(indices[i]),
+						this.moduleNumber(indices[i]));
+		}
+
+		return indices;
+
+	}
+
+	/**
+	 * Marks the symbols referenced by the text of a relocated module as used
+	 * somewhere in the program and records a warning for each symbol in its
+	 * use list which never appeared in its text (see
+	 * {@link LinkResult#mergeSymbolUsage(Module, UseVector)}). Modules must
+	 * be merged in order.
+	 *
+	 * @param indices
+	 *            Indices of the symbols of the use list, as returned by
+	 *            defineUses.
+	 */
+	public void mergeSymbolUsage(Module module, UseVector useVector,
+			int[] indices, SymbolTable symbols) throws IOException {
+
+		BitSet referenced = useVector.referenced();
+		for (int i = referenced.nextSetBit(0); i >= 0; i = referenced
+				.nextSetBit(i + 1))
+			this.usedSomewhere.set(indices[i]);
+
+		BitSet unusedInText = useVector.unusedInText();
+		for (int i = unusedInText.nextSetBit(0); i >= 0; i = unusedInText
+				.nextSetBit(i + 1)) {
+			if (this.unusedUses == null)
+				this.unusedUses = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(this
+								.unusedUsesPath()), BUFFER_SIZE));
+			this.unusedUses.writeInt(module.number);
+			writeName(this.unusedUses, symbols.name(module.uses.get(i)));
+			this.unusedUseCount++;
+		}
+
+	}
+
+	public int unusedUseCount() {
+		return this.unusedUseCount;
+	}
+
+	public int unusedUseModule(int warning) {
+		this.readUnusedUse(warning);
+		return this.unusedUseModule;
+	}
+
+	public String unusedUseName(int warning) {
+		this.readUnusedUse(warning);
+		return this.unusedUseName;
+	}
+
+	private Path unusedUsesPath() {
+		return this.directory.resolve("unused-uses");
+	}
+
+	/**
+	 * Reads the given warning about a use that is not in the text, which is
+	 * quick if it follows the one read last (the file is read again from
+	 * the start otherwise). No warnings may be added once they are read.
+	 *
+	 * @throws UncheckedIOException
+	 *             If the file cannot be read (see block).
+	 */
+	private void readUnusedUse(int warning) {
+
+		if (warning == this.unusedUseIndex)
+			return;
+
+		try {
+			if (this.unusedUses != null) {
+				this.unusedUses.close();
+				this.unusedUses = null;
+			}
+
+			if (warning < this.unusedUseIndex || this.unusedUseReader == null) {
+				if (this.unusedUseReader != null)
+					this.unusedUseReader.close();
+				this.unusedUseReader = new DataInputStream(
+						new BufferedInputStream(Files.newInputStream(this
+								.unusedUsesPath()), BUFFER_SIZE));
+				this.unusedUseIndex = -1;
+			}
+
+			while (this.unusedUseIndex < warning) {
+				this.unusedUseModule = this.unusedUseReader.readInt();
+				this.unusedUseName = readName(this.unusedUseReader);
+				this.unusedUseIndex++;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+	}
+
+	/**
+	 * Deletes the temporary files.
+	 */
+	public void close() throws IOException {
+		try {
+			if (this.merged != null)
+				this.merged.close();
+			if (this.unusedUses != null)
+				this.unusedUses.close();
+			if (this.unusedUseReader != null)
+				this.unusedUseReader.close();
+		} finally {
+			try (DirectoryStream<Path> files = Files
+					.newDirectoryStream(this.directory)) {
+				for (Path file : files)
+					Files.deleteIfExists(file);
+			}
+			Files.deleteIfExists(this.directory);
+		}
+	}
+}
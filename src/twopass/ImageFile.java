@@ -0,0 +1,212 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A binary image (see {@link OutputFormat#BIN}) read through a memory
+ * mapping, such as a loader would: the words stay in the file and are only
+ * read when asked for, while the symbol table at its end is read at once.
+ * <p>
+ * The same layout is written by {@link Linker#link(ObjectProgram, Path)},
+ * whose relocated words go straight to a mapping of the file.
+ */
+public final class ImageFile {
+	static final int HEADER_SIZE = 16;
+
+	private final MemoryImage memory;
+	private final boolean wide;
+	private final String[] names;
+	private final int[] locations;
+	private final int[] modules;
+
+	private ImageFile(MemoryImage memory, boolean wide, int symbolCount) {
+		this.memory = memory;
+		this.wide = wide;
+		this.names = new String[symbolCount];
+		this.locations = new int[symbolCount];
+		this.modules = new int[symbolCount];
+	}
+
+	/**
+	 * Maps the given binary image and reads its symbol table.
+	 *
+	 * @throws IOException
+	 *             If the file is not a binary image of a supported version,
+	 *             or if it is truncated.
+	 */
+	public static ImageFile open(Path path) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if (header.getInt(0) != OutputFormat.BIN_MAGIC)
+				throw new IOException("Not a binary image: " + path);
+
+			int version = header.getInt(4);
+			if (version != OutputFormat.BIN_VERSION
+					&& version != OutputFormat.BIN_VERSION_WIDE)
+				throw new IOException("Unsupported binary image version "
+						+ version);
+			boolean wide = version == OutputFormat.BIN_VERSION_WIDE;
+
+			int wordCount = header.getInt(8);
+			int symbolCount = header.getInt(12);
+			long symbolsOffset = HEADER_SIZE + ((long) wordCount << (wide ? 3
+					: 2));
+			if (wordCount < 0 || symbolCount < 0
+					|| symbolsOffset > channel.size())
+				throw new IOException("Truncated binary image: " + path);
+
+			// Mapped words stay valid once the channel is closed
+			MemoryImage memory = MemoryImage.map(channel,
+					FileChannel.MapMode.READ_ONLY, HEADER_SIZE, wordCount,
+					wide);
+			ImageFile image = new ImageFile(memory, wide, symbolCount);
+
+			if (channel.size() - symbolsOffset > Integer.MAX_VALUE)
+				throw new IOException("Symbol table larger than 2 GiB");
+			ByteBuffer symbols = read(channel, symbolsOffset,
+					(int) (channel.size() - symbolsOffset));
+			try {
+				for (int i = 0; i < image.names.length; i++) {
+					byte[] name = new byte[symbols.getShort() & 0xFFFF];
+					symbols.get(name);
+					image.names[i] = new String(name,
+							StandardCharsets.US_ASCII);
+					image.locations[i] = symbols.getInt();
+					image.modules[i] = symbols.getInt();
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Truncated binary image: " + path, e);
+			}
+
+			return image;
+		}
+
+	}
+
+	/**
+	 * @return The given bytes of a file, as little-endian values.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position,
+			int length) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(
+				ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Truncated binary image");
+		buffer.flip();
+		return buffer;
+
+	}
+
+	/**
+	 * Writes the header and the symbol table of the binary image of a result
+	 * whose symbols are defined, at the start and at the end of a file, and
+	 * maps the words in between for the memory map of the result.
+	 *
+	 * @return The mapped memory map, with room for every word of the result.
+	 */
+	static MemoryImage create(FileChannel channel, LinkResult result)
+			throws IOException {
+
+		boolean wide = result.getGeometry().isWide();
+
+		int symbolBytes = 0;
+		for (int i = 0; i < result.getSymbolCount(); i++)
+			symbolBytes += 10 + result.getSymbolName(i).length();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putInt(OutputFormat.BIN_MAGIC);
+		header.putInt(wide ? OutputFormat.BIN_VERSION_WIDE
+				: OutputFormat.BIN_VERSION);
+		header.putInt(result.wordCount);
+		header.putInt(result.getSymbolCount());
+
+		ByteBuffer symbols = ByteBuffer.allocate(symbolBytes).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < result.getSymbolCount(); i++) {
+			String name = result.getSymbolName(i);
+			symbols.putShort((short) name.length());
+			for (int c = 0; c < name.length(); c++)
+				symbols.put((byte) name.charAt(c));
+			symbols.putInt(result.getSymbolLocation(i));
+			symbols.putInt(result.getSymbolModule(i));
+		}
+
+		header.flip();
+		write(channel, header, 0);
+		symbols.flip();
+		write(channel, symbols, HEADER_SIZE
+				+ ((long) result.wordCount << (wide ? 3 : 2)));
+
+		return MemoryImage.map(channel, FileChannel.MapMode.READ_WRITE,
+				HEADER_SIZE, result.wordCount, wide);
+
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+
+	/**
+	 * @return Number of words in the memory map.
+	 */
+	public int getWordCount() {
+		return this.memory.size();
+	}
+
+	/**
+	 * @return True if the words are longs (version 2) rather than ints.
+	 */
+	public boolean isWide() {
+		return this.wide;
+	}
+
+	/**
+	 * @return The word at the given index of the memory map.
+	 */
+	public long getWord(int index) {
+		if (index < 0 || index >= this.memory.size())
+			throw new IndexOutOfBoundsException("No word at index " + index
+					+ " of " + this.memory.size());
+		return this.memory.get(index);
+	}
+
+	/**
+	 * @return Number of defined symbols, which are sorted by name.
+	 */
+	public int getSymbolCount() {
+		return this.names.length;
+	}
+
+	public String getSymbolName(int index) {
+		return this.names[index];
+	}
+
+	/**
+	 * @return Absolute location of the given symbol.
+	 */
+	public int getSymbolLocation(int index) {
+		return this.locations[index];
+	}
+
+	/**
+	 * @return Number of the module which defines the given symbol (starting
+	 *         from 1).
+	 */
+	public int getSymbolModule(int index) {
+		return this.modules[index];
+	}
+}
@@ -0,0 +1,326 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Links successive versions of the same input, redoing only the work that
+ * depends on what changed since the previous link.
+ * <p>
+ * Every module is identified by a hash of its bytes, and the modules of the
+ * previous link are kept (parsed) under their hash, so only new or edited
+ * modules are parsed again. Base addresses and symbol definitions are then
+ * recomputed from the parsed modules, which only takes a pass over their
+ * lengths and definitions. Lastly, a module's words are copied from the
+ * previous link if the module is at the same location and none of the
+ * symbols in its use list changed address (or became defined or undefined);
+ * the rest are relocated.
+ * <p>
+ * The results are the same as those of a full link. Unlike a
+ * {@link Linker}, an incremental linker is not thread-safe: it is meant to
+ * be used by a single edit-link loop.
+ */
+public final class IncrementalLinker {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Hash of the bytes of a module.
+	 */
+	private static final class ModuleKey {
+		private final long[] digest = new long[4];
+
+		ModuleKey(byte[] digest) {
+			ByteBuffer.wrap(digest).asLongBuffer().get(this.digest);
+		}
+
+		public int hashCode() {
+			return (int) this.digest[0];
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof ModuleKey
+					&& Arrays.equals(this.digest, ((ModuleKey) other).digest);
+		}
+	}
+
+	/**
+	 * A module read from the input along with its text (in a store shared
+	 * with the modules that were parsed at the same time) and where its words
+	 * are in the previous link, if it was part of it.
+	 */
+	private static final class CachedModule {
+		final Module module;
+		final InstructionStore instructions;
+
+		// Location at which the module was relocated by the previous link and
+		// index of its first word in that link's memory map
+		int relocatedStart = -1;
+		int relocatedOffset;
+		// Use of the symbols by its text in the previous link
+		BitSet referenced;
+		BitSet unusedInText;
+
+		CachedModule(Module module, InstructionStore instructions) {
+			this.module = module;
+			this.instructions = instructions;
+		}
+	}
+
+	// Machine the input is linked for
+	private final MachineGeometry geometry;
+
+	// Names of every symbol seen so far, whose IDs are shared by the cached
+	// modules and every result (symbols are never defined in this table)
+	private final SymbolTable names = new SymbolTable();
+
+	// Modules of the previous link under the hash of their bytes, and its
+	// results
+	private Map<ModuleKey, CachedModule> cache = new HashMap<ModuleKey, CachedModule>();
+	private LinkResult previous;
+
+	// Counters of the work done by the last link
+	private int parsedModules;
+	private int relocatedModules;
+
+	/**
+	 * Creates an incremental linker for the default machine (see
+	 * {@link MachineGeometry#DEFAULT}).
+	 */
+	public IncrementalLinker() {
+		this(MachineGeometry.DEFAULT);
+	}
+
+	public IncrementalLinker(MachineGeometry geometry) {
+		this.geometry = geometry;
+	}
+
+	/**
+	 * @return Number of modules that had to be parsed by the last link.
+	 */
+	public int getParsedModules() {
+		return this.parsedModules;
+	}
+
+	/**
+	 * @return Number of modules whose words had to be relocated by the last
+	 *         link (instead of being copied from the previous one).
+	 */
+	public int getRelocatedModules() {
+		return this.relocatedModules;
+	}
+
+	/**
+	 * Links the current version of the given (text) file.
+	 *
+	 * @throws IOException
+	 *             If the file-path that was provided did not lead to a
+	 *             readable text file.
+	 */
+	public LinkResult relink(Path input) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(input,
+				StandardOpenOption.READ)) {
+
+			if (ObjectFile.isObjectFile(channel)
+					|| LibraryArchive.isArchive(channel))
+				throw new IOException(
+						"Object files and library archives cannot be relinked incrementally: "
+								+ input);
+
+			long[] boundaries = ModuleScanner.findModules(channel, 0);
+			int moduleCount = boundaries.length - 1;
+
+			CachedModule[] entries = this.readModules(channel, boundaries);
+
+			SymbolTable symbols = this.names.copy();
+			LinkResult result = new LinkResult(this.geometry, symbols, null);
+
+			// Pass one: base addresses and symbol definitions
+			Module[] modules = new Module[moduleCount];
+			int[] memoryOffsets = new int[moduleCount];
+			int startLocation = 0;
+			for (int i = 0; i < moduleCount; i++) {
+				modules[i] = entries[i].module.moveTo(i + 1, startLocation,
+						entries[i].module.textOffset);
+				memoryOffsets[i] = result.wordCount;
+				result.analyzeModule(modules[i]);
+				startLocation = modules[i].endLocation + 1;
+			}
+
+			// Pass two: words of the modules that are affected by the changes
+			BitSet changedSymbols = this.findChangedSymbols(symbols);
+			result.allocateMemoryMap(result.wordCount);
+
+			this.relocatedModules = 0;
+			BitSet[] referenced = new BitSet[moduleCount];
+			BitSet[] unusedInText = new BitSet[moduleCount];
+			for (int i = 0; i < moduleCount; i++) {
+				CachedModule entry = entries[i];
+				Module module = modules[i];
+
+				if (entry.relocatedStart == module.startLocation
+						&& !usesAny(module, changedSymbols)) {
+					result.memory.copy(this.previous.memory,
+							entry.relocatedOffset, memoryOffsets[i],
+							module.length);
+					result.wordErrors.addAll(this.previous.wordErrors,
+							entry.relocatedOffset, entry.relocatedOffset
+									+ module.length, memoryOffsets[i]
+									- entry.relocatedOffset);
+					referenced[i] = entry.referenced;
+					unusedInText[i] = entry.unusedInText;
+				} else {
+					UseVector useVector = result.relocateModule(module,
+							entry.instructions, memoryOffsets[i]);
+					referenced[i] = useVector.referenced();
+					unusedInText[i] = useVector.unusedInText();
+					this.relocatedModules++;
+				}
+
+				result.mergeSymbolUsage(module, referenced[i], unusedInText[i]);
+			}
+
+			// Only record where the words are once every module has been
+			// copied from the previous link (a module may appear twice)
+			for (int i = 0; i < moduleCount; i++) {
+				entries[i].relocatedStart = modules[i].startLocation;
+				entries[i].relocatedOffset = memoryOffsets[i];
+				entries[i].referenced = referenced[i];
+				entries[i].unusedInText = unusedInText[i];
+			}
+
+			result.symbols.sortedDefinitions();
+			this.previous = result;
+			return result;
+		}
+	}
+
+	/**
+	 * Finds the parsed version of every module, parsing those that are not
+	 * in the cache (in runs of consecutive modules), and replaces the cache
+	 * with them.
+	 */
+	private CachedModule[] readModules(FileChannel channel, long[] boundaries)
+			throws IOException {
+
+		int moduleCount = boundaries.length - 1;
+		CachedModule[] entries = new CachedModule[moduleCount];
+		ModuleKey[] keys = hashModules(channel, boundaries);
+		Map<ModuleKey, CachedModule> cache = new HashMap<ModuleKey, CachedModule>(
+				moduleCount * 2);
+
+		this.parsedModules = 0;
+		for (int i = 0; i < moduleCount;) {
+			CachedModule entry = this.cache.get(keys[i]);
+			if (entry == null)
+				entry = cache.get(keys[i]);
+			if (entry != null) {
+				entries[i] = entry;
+				cache.put(keys[i], entry);
+				i++;
+				continue;
+			}
+
+			int end = i + 1;
+			while (end < moduleCount && !this.cache.containsKey(keys[end])
+					&& !cache.containsKey(keys[end]))
+				end++;
+
+			InstructionStore instructions = new InstructionStore();
+			ArrayList<Module> parsed = new ArrayList<Module>();
+			new ModuleParser(this.geometry, this.names, instructions,
+					parsed, null)
+					.parse(new Tokenizer(channel, boundaries[i],
+							boundaries[end]));
+
+			for (Module module : parsed) {
+				entries[i] = new CachedModule(module, instructions);
+				cache.put(keys[i], entries[i]);
+				i++;
+			}
+			this.parsedModules += parsed.size();
+		}
+
+		this.cache = cache;
+		return entries;
+	}
+
+	/**
+	 * @return The symbols whose address changed since the previous link,
+	 *         including those that became defined or undefined.
+	 */
+	private BitSet findChangedSymbols(SymbolTable symbols) {
+
+		BitSet changed = new BitSet();
+		SymbolTable before = this.previous == null ? null
+				: this.previous.symbols;
+
+		for (int id = 0; id < symbols.size(); id++) {
+			boolean wasDefined = before != null && id < before.size()
+					&& before.isDefined(id);
+			if (wasDefined != symbols.isDefined(id)
+					|| (wasDefined && before.location(id) != symbols
+							.location(id)))
+				changed.set(id);
+		}
+
+		return changed;
+	}
+
+	private static boolean usesAny(Module module, BitSet symbolIds) {
+		for (int i = 0; i < module.uses.size(); i++)
+			if (symbolIds.get(module.uses.get(i)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return A hash (SHA-256) of the bytes of every module.
+	 */
+	private static ModuleKey[] hashModules(FileChannel channel,
+			long[] boundaries) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		ModuleKey[] keys = new ModuleKey[boundaries.length - 1];
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = boundaries.length > 1 ? boundaries[0] : 0;
+		buffer.limit(0);
+		for (int i = 0; i < keys.length; i++) {
+			long remaining = boundaries[i + 1] - boundaries[i];
+			while (remaining > 0) {
+				if (!buffer.hasRemaining()) {
+					buffer.clear();
+					int read = channel.read(buffer, position);
+					if (read < 0)
+						throw new IOException("Input changed while reading");
+					position += read;
+					buffer.flip();
+				}
+
+				int length = (int) Math.min(remaining, buffer.remaining());
+				digest.update(buffer.array(), buffer.position(), length);
+				buffer.position(buffer.position() + length);
+				remaining -= length;
+			}
+			keys[i] = new ModuleKey(digest.digest());
+		}
+
+		return keys;
+	}
+}
@@ -0,0 +1,84 @@
+package twopass;
+
+import java.util.Arrays;
+
+/**
+ * Holds the text instructions of the program, each of which is composed of
+ * a classification character (detailing whether it's Immediate, Absolute,
+ * Relative or External), an opcode (first character of the four-digit
+ * number/word) and an address (remaining three characters of the word).
+ * <p>
+ * Instructions are structured in the following format:
+ * "R 1004 I 5678 E 2000 R 8002 E 7001".
+ * <p>
+ * Rather than one object per instruction, the three parts are kept in
+ * parallel primitive arrays which grow as needed and are shared by all
+ * modules (each module knows the offset of its first instruction).
+ */
+final class InstructionStore {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private byte[] classifications = new byte[INITIAL_CAPACITY];
+	private byte[] opcodes = new byte[INITIAL_CAPACITY];
+	private int[] addresses = new int[INITIAL_CAPACITY];
+	private int size;
+
+	public int size() {
+		return this.size;
+	}
+
+	public void add(char classification, int opcode, int address) {
+		if (this.size == this.addresses.length) {
+			int capacity = this.size + (this.size >> 1);
+			this.classifications = Arrays.copyOf(this.classifications,
+					capacity);
+			this.opcodes = Arrays.copyOf(this.opcodes, capacity);
+			this.addresses = Arrays.copyOf(this.addresses, capacity);
+		}
+
+		this.classifications[this.size] = (byte) classification;
+		this.opcodes[this.size] = (byte) opcode;
+		this.addresses[this.size] = address;
+		this.size++;
+	}
+
+	public char classification(int index) {
+		return (char) this.classifications[index];
+	}
+
+	public int opcode(int index) {
+		return this.opcodes[index];
+	}
+
+	public int address(int index) {
+		return this.addresses[index];
+	}
+
+	/**
+	 * Adds all of the instructions of another store after these.
+	 */
+	public void append(InstructionStore other) {
+		int capacity = this.size + other.size;
+		if (capacity > this.addresses.length) {
+			this.classifications = Arrays.copyOf(this.classifications,
+					capacity);
+			this.opcodes = Arrays.copyOf(this.opcodes, capacity);
+			this.addresses = Arrays.copyOf(this.addresses, capacity);
+		}
+
+		System.arraycopy(other.classifications, 0, this.classifications,
+				this.size, other.size);
+		System.arraycopy(other.opcodes, 0, this.opcodes, this.size,
+				other.size);
+		System.arraycopy(other.addresses, 0, this.addresses, this.size,
+				other.size);
+		this.size = capacity;
+	}
+
+	/**
+	 * Forgets every instruction while keeping the allocated arrays.
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+}
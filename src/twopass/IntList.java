@@ -0,0 +1,36 @@
+package twopass;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints.
+ */
+final class IntList {
+	private int[] values = new int[8];
+	private int size;
+
+	/**
+	 * Empties the list, keeping its capacity.
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public void add(int value) {
+		if (this.size == this.values.length)
+			this.values = Arrays.copyOf(this.values, this.size * 2);
+		this.values[this.size++] = value;
+	}
+
+	public int get(int index) {
+		return this.values[index];
+	}
+
+	public void set(int index, int value) {
+		this.values[index] = value;
+	}
+}
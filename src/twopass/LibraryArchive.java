@@ -0,0 +1,229 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A library of object modules (members) with an index of the symbols they
+ * define, from which a link only takes the members that define a symbol it
+ * uses and does not define otherwise (see ObjectProgram.resolveArchives).
+ * <p>
+ * The file is read through a memory mapping, and nothing is read before a
+ * symbol is looked up: the index is searched where it lies in the file, so
+ * linking against a large library only costs the members that are taken.
+ * Every value is a little-endian int unless noted otherwise:
+ * <ul>
+ * <li>Header: "TPAR", format version, number of members, number of index
+ * entries, offset of the index and offset of the member directory.</li>
+ * <li>Names: length (2 bytes) and ASCII characters of every symbol name,
+ * which the rest of the file refers to by its offset.</li>
+ * <li>Index: name and member of the first definition of every symbol,
+ * sorted by name.</li>
+ * <li>Member directory, definitions and bodies (see
+ * {@link ModuleDirectory}), with names given by their offsets.</li>
+ * </ul>
+ */
+final class LibraryArchive {
+	static final int MAGIC = 0x52415054; // "TPAR"
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 24;
+	private static final int INDEX_ENTRY_SIZE = 8;
+
+	private final ByteBuffer buffer;
+	private final int memberCount;
+	private final int indexCount;
+	// Offset of the index
+	private final int index;
+	private final ModuleDirectory members;
+
+	/**
+	 * @return Whether the given file starts like a library archive.
+	 */
+	static boolean isArchive(FileChannel channel) throws IOException {
+		return ModuleDirectory.startsWith(channel, MAGIC);
+	}
+
+	/**
+	 * Maps the given library archive, which stays readable once the channel
+	 * is closed.
+	 *
+	 * @throws IOException
+	 *             If the file is not an archive of a supported version.
+	 */
+	LibraryArchive(FileChannel channel) throws IOException {
+
+		if (channel.size() > Integer.MAX_VALUE)
+			throw new IOException("Library archive larger than 2 GiB");
+
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+		if (this.buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a library archive");
+		if (this.buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported library archive version "
+					+ this.buffer.getInt(4));
+
+		this.memberCount = this.buffer.getInt(8);
+		this.indexCount = this.buffer.getInt(12);
+		this.index = this.buffer.getInt(16);
+		this.members = new ModuleDirectory(this.buffer, this.buffer.getInt(20));
+
+	}
+
+	int memberCount() {
+		return this.memberCount;
+	}
+
+	/**
+	 * @return The member with the first definition of the given symbol, or
+	 *         -1 if no member defines it.
+	 */
+	int lookup(String name) {
+
+		int low = 0;
+		int high = this.indexCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = this.compare(this.buffer.getInt(this.index
+					+ middle * INDEX_ENTRY_SIZE), name);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return this.buffer.getInt(this.index + middle
+						* INDEX_ENTRY_SIZE + 4);
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Compares the name at the given offset with the given (ASCII) one, as
+	 * String.compareTo does.
+	 */
+	private int compare(int offset, String name) {
+
+		int length = this.buffer.getShort(offset) & 0xFFFF;
+		int common = Math.min(length, name.length());
+		for (int i = 0; i < common; i++) {
+			int c = (this.buffer.get(offset + 2 + i) & 0xFF) - name.charAt(i);
+			if (c != 0)
+				return c;
+		}
+
+		return length - name.length();
+
+	}
+
+	private String name(int offset) {
+
+		byte[] name = new byte[this.buffer.getShort(offset) & 0xFFFF];
+		for (int i = 0; i < name.length; i++)
+			name[i] = this.buffer.get(offset + 2 + i);
+		return new String(name, StandardCharsets.US_ASCII);
+
+	}
+
+	/**
+	 * Reads a member as a module of a program, interning the names of its
+	 * symbols into the given table and adding its text to the end of the
+	 * given store (which is also its text offset).
+	 */
+	Module readMember(int member, SymbolTable symbols, int number,
+			int startLocation, InstructionStore instructions) {
+
+		Module module = this.members.readHeader(member, number, startLocation,
+				instructions.size());
+		this.members.readBody(member, module, instructions);
+
+		// Names are stored as their offsets
+		IntList definitions = module.definitions;
+		for (int i = 0; i < definitions.size(); i += 2)
+			definitions.set(i, symbols.intern(this.name(definitions.get(i))));
+		IntList uses = module.uses;
+		for (int i = 0; i < uses.size(); i++)
+			uses.set(i, symbols.intern(this.name(uses.get(i))));
+
+		return module;
+
+	}
+
+	/**
+	 * Writes the modules of a program as the members of a library archive,
+	 * indexing the first definition of every symbol.
+	 *
+	 * @throws IOException
+	 *             If an instruction cannot be packed (its address does not
+	 *             fit in 16 bits), besides any error of the stream.
+	 */
+	static void write(ObjectProgram program, OutputStream stream)
+			throws IOException {
+
+		SymbolTable symbols = program.symbols;
+
+		ModuleDirectory.checkPackable(program, "library archive");
+
+		int[] nameOffsets = new int[symbols.size()];
+		long offset = HEADER_SIZE;
+		for (int id = 0; id < symbols.size(); id++) {
+			if (symbols.name(id).length() > 0xFFFF)
+				throw new IOException("Symbol name longer than 65535 characters");
+			nameOffsets[id] = ModuleDirectory.checkOffset(offset,
+					"library archive");
+			offset += 2 + symbols.name(id).length();
+		}
+
+		// Member of the first definition of every symbol, sorted by name
+		Map<String, Integer> members = new HashMap<String, Integer>();
+		for (int m = 0; m < program.modules.size(); m++) {
+			IntList definitions = program.modules.get(m).definitions;
+			for (int i = 0; i < definitions.size(); i += 2)
+				if (!members.containsKey(symbols.name(definitions.get(i))))
+					members.put(symbols.name(definitions.get(i)), m);
+		}
+		String[] indexed = members.keySet().toArray(new String[0]);
+		Arrays.sort(indexed);
+
+		long indexOffset = offset;
+		offset += (long) indexed.length * INDEX_ENTRY_SIZE;
+		long directoryOffset = offset;
+
+		ReportWriter out = new ReportWriter(stream);
+
+		out.writeIntLE(MAGIC);
+		out.writeIntLE(VERSION);
+		out.writeIntLE(program.modules.size());
+		out.writeIntLE(indexed.length);
+		out.writeIntLE(ModuleDirectory.checkOffset(indexOffset,
+				"library archive"));
+		out.writeIntLE(ModuleDirectory.checkOffset(directoryOffset,
+				"library archive"));
+
+		for (int id = 0; id < symbols.size(); id++) {
+			out.writeShortLE(symbols.name(id).length());
+			out.print(symbols.name(id));
+		}
+
+		for (String name : indexed) {
+			out.writeIntLE(nameOffsets[symbols.lookup(name)]);
+			out.writeIntLE(members.get(name));
+		}
+
+		ModuleDirectory.write(out, program.modules, program.instructions,
+				directoryOffset, nameOffsets, "library archive");
+
+		out.flush();
+
+	}
+}
@@ -0,0 +1,65 @@
+package twopass;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An input of a link: a file (text or object file) or the text of a series
+ * of modules held in memory, such as those sent to a resident linker.
+ */
+public final class LinkInput {
+	// One or the other is null
+	private final Path path;
+	private final ByteBuffer text;
+
+	private LinkInput(Path path, ByteBuffer text) {
+		this.path = path;
+		this.text = text;
+	}
+
+	/**
+	 * @return An input read from the given file, text or object file.
+	 */
+	public static LinkInput of(Path path) {
+		if (path == null)
+			throw new NullPointerException("path");
+		return new LinkInput(path, null);
+	}
+
+	/**
+	 * @return An input made of the remaining bytes of the given buffer, as
+	 *         ASCII text (which must not be modified while it is read).
+	 */
+	public static LinkInput ofText(ByteBuffer text) {
+		return new LinkInput(null, text.slice());
+	}
+
+	static List<LinkInput> of(List<Path> paths) {
+		List<LinkInput> inputs = new ArrayList<LinkInput>(paths.size());
+		for (Path path : paths)
+			inputs.add(of(path));
+		return inputs;
+	}
+
+	/**
+	 * @return The file of the input, or null if it is held in memory.
+	 */
+	public Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @return A buffer of its own over the text held in memory, or null if
+	 *         the input is a file.
+	 */
+	ByteBuffer text() {
+		return this.text == null ? null : this.text.duplicate();
+	}
+
+	public String toString() {
+		return this.path != null ? this.path.toString() : "("
+				+ this.text.remaining() + " bytes of text)";
+	}
+}
@@ -0,0 +1,523 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Links a series of inputs in stages that run at the same time, each on a
+ * thread of its own and handing its work over to the next through a bounded
+ * queue (so that a stage which is ahead waits for the next one instead of
+ * filling the memory):
+ * <ol>
+ * <li>The reader reads the text inputs in chunks of whole tokens.</li>
+ * <li>The tokenizer finds the tokens of every chunk.</li>
+ * <li>The parser (the calling thread) builds the modules from the tokens and
+ * adds the symbols each one defines as soon as it is complete. Once every
+ * module is read, it relocates them a range of words at a time.</li>
+ * <li>The writer writes the results: whatever precedes the memory map as
+ * soon as the symbols are all defined, and then every range of the memory
+ * map as soon as it is relocated.</li>
+ * </ol>
+ * Reading the inputs thus overlaps with parsing them, and relocating the
+ * words with formatting them, and the first bytes are written before any
+ * word is relocated. The output is the same as that of a link in a single
+ * stage.
+ * <p>
+ * Object files, which are not tokenized, are read by the parser.
+ */
+final class LinkPipeline {
+	// Bytes read from a text input at a time (more if a token is longer)
+	private static final int CHUNK_SIZE = 1 << 20;
+	// Chunks (and ranges of the memory map) a stage may be ahead of the next
+	private static final int QUEUE_CAPACITY = 4;
+	// Words relocated before they are handed over to the writer
+	private static final int RANGE_WORDS = 1 << 15;
+
+	private final MachineGeometry geometry;
+	private final LinkStats stats;
+
+	private final BlockingQueue<Chunk> read = new ArrayBlockingQueue<Chunk>(
+			QUEUE_CAPACITY);
+	private final BlockingQueue<Chunk> tokenized = new ArrayBlockingQueue<Chunk>(
+			QUEUE_CAPACITY);
+	private final BlockingQueue<Range> relocated = new ArrayBlockingQueue<Range>(
+			QUEUE_CAPACITY);
+	// Chunks of text which the parser is done with, whose buffers (and lists
+	// of bounds) are filled again rather than allocated for every chunk
+	private final BlockingQueue<Chunk> spareChunks = new ArrayBlockingQueue<Chunk>(
+			2 * QUEUE_CAPACITY + 2);
+
+	LinkPipeline(MachineGeometry geometry, LinkStats stats) {
+		this.geometry = geometry;
+		this.stats = stats;
+	}
+
+	/**
+	 * Piece of the inputs handed over from the reader to the parser: text
+	 * made of whole tokens (with their bounds, once they are found), an
+	 * object file, or the end of an input or of all of them.
+	 */
+	private static final class Chunk {
+		static final Chunk END_OF_INPUT = new Chunk(null, null, null);
+		static final Chunk END = new Chunk(null, null, null);
+
+		final ByteBuffer text;
+		final Path objectFile;
+		// Why the stage which sent it stopped
+		final Throwable failure;
+		IntList bounds;
+
+		Chunk(ByteBuffer text, Path objectFile, Throwable failure) {
+			this.text = text;
+			this.objectFile = objectFile;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Range of the memory map handed over to the writer once relocated, with
+	 * the errors of its words (or the end of the memory map, without them).
+	 */
+	private static final class Range {
+		static final Range END = new Range(0, 0, null);
+
+		final int from;
+		final int to;
+		final DiagnosticTable errors;
+
+		Range(int from, int to, DiagnosticTable errors) {
+			this.from = from;
+			this.to = to;
+			this.errors = errors;
+		}
+	}
+
+	/**
+	 * Links the given inputs, in order, as a single series of modules and
+	 * writes the results to the given stream, which is flushed but not
+	 * closed.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file, or if the results cannot be written.
+	 */
+	void link(final List<Path> inputs, OutputFormat format, OutputStream out)
+			throws IOException {
+
+		Thread reader = new Thread("twopass-reader") {
+			public void run() {
+				LinkPipeline.this.readInputs(inputs);
+			}
+		};
+		Thread tokenizer = new Thread("twopass-tokenizer") {
+			public void run() {
+				LinkPipeline.this.tokenizeChunks();
+			}
+		};
+		reader.setDaemon(true);
+		tokenizer.setDaemon(true);
+
+		SymbolTable symbols = new SymbolTable();
+		InstructionStore instructions = new InstructionStore();
+		LinkResult result = new LinkResult(this.geometry, symbols,
+				instructions);
+		ArrayList<Module> modules = new ArrayList<Module>();
+
+		// Pass one: parse (and define the symbols of) every module as the
+		// tokens come
+		reader.start();
+		tokenizer.start();
+		try {
+			PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+					LinkStats.Phase.PARSE);
+			long tokens = this.parseChunks(result, instructions, modules);
+			if (recorder.isEnabled()) {
+				recorder.add(LinkStats.Count.TOKENS, tokens);
+				recorder.add(LinkStats.Count.MODULES, modules.size());
+				result.countDefinitions(recorder);
+			}
+			recorder.stop();
+		} finally {
+			// Stages that are still running (after a failure) are blocked
+			// on their queues
+			reader.interrupt();
+			tokenizer.interrupt();
+		}
+
+		// The symbols are all defined, so the writer may start
+		result.symbols.sortedDefinitions();
+		Writer writer = new Writer(result, format, out);
+		writer.setDaemon(true);
+		writer.start();
+
+		// Pass two: relocate every module into the memory map, a range of
+		// words at a time
+		try {
+			PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+					LinkStats.Phase.RELOCATE);
+			result.allocateMemoryMap(result.wordCount);
+			this.relocate(result, instructions, modules);
+			this.relocated.put(Range.END);
+			writer.join();
+
+			if (recorder.isEnabled()) {
+				result.countWords(recorder, 0, result.wordCount);
+				result.countWarnings(recorder);
+			}
+			recorder.stop();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			writer.interrupt();
+		}
+
+		if (writer.failure instanceof IOException)
+			throw (IOException) writer.failure;
+		if (writer.failure instanceof Error)
+			throw (Error) writer.failure;
+		if (writer.failure != null)
+			throw (RuntimeException) writer.failure;
+
+	}
+
+	/**
+	 * Reader: reads the text inputs chunk by chunk, each chunk ending after
+	 * the last separator that was read (the token it cuts starts the next
+	 * chunk), and hands object files over as they are.
+	 */
+	private void readInputs(List<Path> inputs) {
+
+		try {
+			for (Path input : inputs) {
+				try (FileChannel channel = FileChannel.open(input,
+						StandardOpenOption.READ)) {
+
+					if (LibraryArchive.isArchive(channel))
+						throw new IOException(
+								"Library archives cannot be linked in a pipeline: "
+										+ input);
+
+					if (ObjectFile.isObjectFile(channel)) {
+						this.read.put(new Chunk(null, input, null));
+						continue;
+					}
+
+					long position = 0;
+					long size = channel.size();
+					Chunk chunk = this.spareChunk();
+					while (true) {
+						ByteBuffer buffer = chunk.text;
+						int n = 0;
+						while (buffer.hasRemaining() && position < size
+								&& (n = channel.read(buffer, position)) >= 0)
+							position += n;
+						boolean ended = position >= size || n < 0;
+
+						// The cut token is carried over to the next chunk
+						int cut = buffer.position();
+						if (!ended)
+							while (cut > 0
+									&& Tokenizer.isWordByte(buffer
+											.get(cut - 1)))
+								cut--;
+
+						if (cut == 0 && !ended) {
+							// A single token fills the chunk
+							Chunk larger = new Chunk(ByteBuffer
+									.allocate(buffer.capacity() * 2),
+									null, null);
+							buffer.flip();
+							larger.text.put(buffer);
+							chunk = larger;
+							continue;
+						}
+
+						Chunk next = null;
+						if (!ended) {
+							next = this.spareChunk();
+							if (next.text.capacity() < buffer.position() - cut)
+								next = new Chunk(ByteBuffer.allocate(buffer
+										.position() - cut), null, null);
+							buffer.flip();
+							buffer.position(cut);
+							next.text.put(buffer);
+						}
+						buffer.position(0);
+						buffer.limit(cut);
+						this.read.put(chunk);
+
+						if (ended)
+							break;
+						chunk = next;
+					}
+					this.read.put(Chunk.END_OF_INPUT);
+				}
+			}
+			this.read.put(Chunk.END);
+
+		} catch (InterruptedException e) {
+			// The parser stopped
+		} catch (Throwable e) {
+			try {
+				this.read.put(new Chunk(null, null, e));
+			} catch (InterruptedException f) {
+				// The parser stopped
+			}
+		}
+
+	}
+
+	/**
+	 * @return A chunk of text which the parser is done with (emptied), or a
+	 *         new one.
+	 */
+	private Chunk spareChunk() {
+
+		Chunk chunk = this.spareChunks.poll();
+		if (chunk == null)
+			return new Chunk(ByteBuffer.allocate(CHUNK_SIZE), null, null);
+		chunk.text.clear();
+		return chunk;
+
+	}
+
+	/**
+	 * Tokenizer: finds the bounds of the tokens of every chunk of text and
+	 * hands everything over to the parser.
+	 */
+	private void tokenizeChunks() {
+
+		try {
+			while (true) {
+				Chunk chunk = this.read.take();
+				if (chunk.text != null) {
+					if (chunk.bounds == null)
+						chunk.bounds = new IntList();
+					chunk.bounds.clear();
+					Tokenizer.split(chunk.text, chunk.bounds);
+				}
+				this.tokenized.put(chunk);
+
+				if (chunk == Chunk.END || chunk.failure != null)
+					return;
+			}
+		} catch (InterruptedException e) {
+			// The parser stopped
+		} catch (Throwable e) {
+			try {
+				this.tokenized.put(new Chunk(null, null, e));
+			} catch (InterruptedException f) {
+				// The parser stopped
+			}
+		}
+
+	}
+
+	/**
+	 * Parser: reads the modules of every input from the chunks, in order,
+	 * adding the symbols each one defines as soon as it is complete.
+	 *
+	 * @return Number of tokens read.
+	 */
+	private long parseChunks(final LinkResult result,
+			InstructionStore instructions, ArrayList<Module> modules)
+			throws IOException {
+
+		long tokenCount = 0;
+		int nextLocation = 0;
+
+		while (true) {
+			final Chunk first = this.take();
+			if (first == Chunk.END)
+				return tokenCount;
+
+			if (first.objectFile != null) {
+				nextLocation = this.readObjectFile(first.objectFile, result,
+						instructions, modules, nextLocation);
+				continue;
+			}
+
+			ModuleParser parser = new ModuleParser(this.geometry,
+					result.symbols, instructions, modules,
+					new ModuleParser.Listener() {
+						public void moduleRead(Module module) {
+							result.analyzeModule(module);
+						}
+					});
+			parser.continueAfter(modules.size(), nextLocation);
+
+			// Every chunk up to the end of the input, starting with the one
+			// that was taken (which is empty for inputs without text)
+			parser.parse(new Tokenizer(new Tokenizer.Pieces() {
+				private Chunk chunk = null;
+
+				public boolean next() throws IOException {
+					if (this.chunk == Chunk.END_OF_INPUT)
+						return false;
+					Chunk previous = this.chunk;
+					this.chunk = previous == null ? first : LinkPipeline.this
+							.take();
+
+					// The tokenizer is done with the previous chunk
+					if (previous != null)
+						LinkPipeline.this.spareChunks.offer(previous);
+					return this.chunk != Chunk.END_OF_INPUT;
+				}
+
+				public ByteBuffer text() {
+					return this.chunk.text;
+				}
+
+				public IntList bounds() {
+					return this.chunk.bounds;
+				}
+			}));
+
+			tokenCount += parser.tokenCount;
+			nextLocation = parser.nextLocation();
+		}
+
+	}
+
+	/**
+	 * Adds the modules of an object file.
+	 *
+	 * @return Location at which the module that follows would start.
+	 */
+	private int readObjectFile(Path path, LinkResult result,
+			InstructionStore instructions, ArrayList<Module> modules,
+			int nextLocation) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			ObjectFile objectFile = new ObjectFile(channel);
+			int[] symbolIds = objectFile.internNames(result.symbols);
+
+			for (int i = 0; i < objectFile.moduleCount(); i++) {
+				Module module = objectFile.readHeader(i, symbolIds,
+						modules.size() + 1, nextLocation, instructions.size());
+				objectFile.readBody(i, module, symbolIds, instructions);
+				modules.add(module);
+				result.analyzeModule(module);
+				nextLocation = module.endLocation + 1;
+			}
+		}
+
+		return nextLocation;
+	}
+
+	/**
+	 * @return The next chunk for the parser.
+	 * @throws IOException
+	 *             If the reader or the tokenizer failed.
+	 */
+	private Chunk take() throws IOException {
+
+		Chunk chunk;
+		try {
+			chunk = this.tokenized.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if (chunk.failure instanceof IOException)
+			throw (IOException) chunk.failure;
+		if (chunk.failure instanceof Error)
+			throw (Error) chunk.failure;
+		if (chunk.failure != null)
+			throw (RuntimeException) chunk.failure;
+		return chunk;
+
+	}
+
+	/**
+	 * Relocates the modules in order, handing every range of about
+	 * RANGE_WORDS words over to the writer with the errors of its words.
+	 */
+	private void relocate(LinkResult result, InstructionStore instructions,
+			List<Module> modules) throws InterruptedException {
+
+		int from = 0;
+		DiagnosticTable errors = new DiagnosticTable();
+		for (int i = 0; i < modules.size(); i++) {
+			Module module = modules.get(i);
+			result.mergeSymbolUsage(module, result.relocateModule(module,
+					instructions, result.memory, module.textOffset, errors));
+
+			int to = module.textOffset + module.length;
+			if (to - from >= RANGE_WORDS || i == modules.size() - 1) {
+				this.relocated.put(new Range(from, to, errors));
+				errors = new DiagnosticTable();
+				from = to;
+			}
+		}
+
+	}
+
+	/**
+	 * Writer: writes the results, range by range as they are relocated, and
+	 * then whatever follows the memory map. After a failure, the ranges are
+	 * only taken (so that the relocation is not blocked) until the end.
+	 */
+	private final class Writer extends Thread {
+		private final LinkResult result;
+		private final Report report;
+		volatile Throwable failure;
+
+		Writer(LinkResult result, OutputFormat format, OutputStream out) {
+			super("twopass-writer");
+			this.result = result;
+			this.report = new Report(result, format, out);
+		}
+
+		public void run() {
+
+			PhaseRecorder recorder = PhaseRecorder.start(
+					LinkPipeline.this.stats, LinkStats.Phase.EMIT);
+			try {
+				this.report.beginOutput();
+			} catch (Throwable e) {
+				this.failure = e;
+			}
+
+			try {
+				while (true) {
+					Range range = LinkPipeline.this.relocated.take();
+					if (range == Range.END)
+						break;
+					if (this.failure != null)
+						continue;
+
+					try {
+						// Only the writer reads the errors of the result
+						this.result.wordErrors.addAll(range.errors);
+						this.report.displayMemoryMap(range.from, range.from,
+								range.to);
+					} catch (Throwable e) {
+						this.failure = e;
+					}
+				}
+
+				if (this.failure == null)
+					this.report.endOutput();
+			} catch (InterruptedException e) {
+				// The relocation stopped
+			} catch (Throwable e) {
+				this.failure = e;
+			}
+			recorder.stop();
+
+		}
+	}
+}
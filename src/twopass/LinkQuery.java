@@ -0,0 +1,267 @@
+package twopass;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers queries about a few words or symbols of a program without linking
+ * all of it: only the symbol table is computed up front (see
+ * {@link Linker#query}), and the words of a module are relocated the first
+ * time one of them is asked for. The most recently used modules are kept
+ * relocated, up to a given number of them.
+ * <p>
+ * Addresses are those of the memory map, as the report displays them, and
+ * words and errors are the same as a full link would find. The addresses of
+ * the External words that refer to each symbol are indexed the first time
+ * they are asked for.
+ * <p>
+ * A query may be used from several threads, which take turns.
+ */
+public final class LinkQuery {
+	static final int DEFAULT_CACHED_MODULES = 64;
+
+	private final List<Module> modules;
+	private final InstructionStore instructions;
+	// Symbol table of the program, with nothing relocated
+	private final LinkResult result;
+	// Index of the first word of every module, in order
+	private final int[] moduleOffsets;
+
+	// Relocated modules by index, least recently used first
+	private final LinkedHashMap<Integer, RelocatedModule> cache;
+
+	// Addresses of the External words that refer to each symbol (those of
+	// symbol ID s are from referenceStarts[s] to referenceStarts[s + 1]),
+	// or null until they are first needed
+	private int[] referenceStarts;
+	private int[] references;
+
+	LinkQuery(ObjectProgram program, LinkResult result,
+			final int cachedModules) {
+		if (cachedModules < 1)
+			throw new IllegalArgumentException(
+					"Expected at least 1 cached module, not " + cachedModules);
+
+		this.modules = program.modules;
+		this.instructions = program.instructions;
+		this.result = result;
+
+		this.moduleOffsets = new int[this.modules.size()];
+		for (int i = 0; i < this.moduleOffsets.length; i++)
+			this.moduleOffsets[i] = this.modules.get(i).textOffset;
+
+		this.cache = new LinkedHashMap<Integer, RelocatedModule>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, RelocatedModule> eldest) {
+				return this.size() > cachedModules;
+			}
+		};
+	}
+
+	/**
+	 * Words and errors of a single module, indexed from its first word.
+	 */
+	private static final class RelocatedModule {
+		final MemoryImage memory;
+		final DiagnosticTable errors = new DiagnosticTable();
+
+		RelocatedModule(int length, MachineGeometry geometry) {
+			this.memory = MemoryImage.allocate(length, geometry);
+		}
+	}
+
+	/**
+	 * @return Number of words in the memory map.
+	 */
+	public int getWordCount() {
+		return this.result.wordCount;
+	}
+
+	/**
+	 * @return Number of the module (starting from 1) whose text holds the
+	 *         word at the given address.
+	 * @throws IndexOutOfBoundsException
+	 *             If there is no word at the given address.
+	 */
+	public int getModuleNumber(int address) {
+		return this.modules.get(this.findModule(address)).number;
+	}
+
+	/**
+	 * @return The word at the given address of the memory map.
+	 * @throws IndexOutOfBoundsException
+	 *             If there is no word at the given address.
+	 */
+	public synchronized long getWord(int address) {
+		int index = this.findModule(address);
+		return this.relocated(index).memory.get(address
+				- this.moduleOffsets[index]);
+	}
+
+	/**
+	 * @return The kind of error found while relocating the word at the given
+	 *         address, or null.
+	 * @throws IndexOutOfBoundsException
+	 *             If there is no word at the given address.
+	 */
+	public synchronized Diagnostic getWordDiagnostic(int address) {
+		int index = this.findModule(address);
+		DiagnosticTable errors = this.relocated(index).errors;
+		int entry = this.findError(errors, address - this.moduleOffsets[index]);
+		return entry < 0 ? null : errors.kind(entry);
+	}
+
+	/**
+	 * @return The error found while relocating the word at the given address
+	 *         (as the report displays it), or null.
+	 * @throws IndexOutOfBoundsException
+	 *             If there is no word at the given address.
+	 */
+	public synchronized String getWordError(int address) {
+		int index = this.findModule(address);
+		DiagnosticTable errors = this.relocated(index).errors;
+		int entry = this.findError(errors, address - this.moduleOffsets[index]);
+		if (entry < 0)
+			return null;
+
+		Diagnostic kind = errors.kind(entry);
+		return kind.getMessage(kind == Diagnostic.UNDEFINED_SYMBOL
+				? this.result.symbols.name(errors.argument(entry)) : null, 0);
+	}
+
+	/**
+	 * @return The absolute location of the given symbol, or -1 if it is not
+	 *         defined.
+	 */
+	public int getSymbolLocation(String name) {
+		int id = this.result.symbols.lookup(name);
+		if (id < 0 || !this.result.symbols.isDefined(id))
+			return -1;
+		return this.result.symbols.location(id);
+	}
+
+	/**
+	 * @return Number of the module which defines the given symbol (starting
+	 *         from 1), or -1 if it is not defined.
+	 */
+	public int getSymbolModule(String name) {
+		int id = this.result.symbols.lookup(name);
+		if (id < 0 || !this.result.symbols.isDefined(id))
+			return -1;
+		return this.result.symbols.moduleNumber(id);
+	}
+
+	/**
+	 * @return The addresses of the External words whose use list entry is
+	 *         the given symbol (whether it is defined or not), in order.
+	 */
+	public synchronized int[] getReferences(String name) {
+		int id = this.result.symbols.lookup(name);
+		if (id < 0)
+			return new int[0];
+
+		if (this.references == null)
+			this.indexReferences();
+		return Arrays.copyOfRange(this.references, this.referenceStarts[id],
+				this.referenceStarts[id + 1]);
+	}
+
+	/**
+	 * @return Index of the module whose text holds the given word: the last
+	 *         one that starts at or before it (empty modules start where the
+	 *         next one does).
+	 */
+	private int findModule(int address) {
+
+		if (address < 0 || address >= this.result.wordCount)
+			throw new IndexOutOfBoundsException("No word at address "
+					+ address + " of " + this.result.wordCount);
+
+		int low = 0;
+		int high = this.moduleOffsets.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (this.moduleOffsets[middle] <= address)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return The entry of the word at the given index of its module, or -1
+	 *         if the word has no error.
+	 */
+	private int findError(DiagnosticTable errors, int index) {
+		int entry = errors.find(index);
+		return entry < errors.size() && errors.index(entry) == index ? entry
+				: -1;
+	}
+
+	/**
+	 * @return The words of the given module, relocating them unless they
+	 *         are in the cache.
+	 */
+	private RelocatedModule relocated(int index) {
+
+		RelocatedModule relocated = this.cache.get(index);
+		if (relocated == null) {
+			Module module = this.modules.get(index);
+			relocated = new RelocatedModule(module.length,
+					this.result.getGeometry());
+			this.result.relocateModule(module, this.instructions,
+					relocated.memory, 0, relocated.errors);
+			this.cache.put(index, relocated);
+		}
+
+		return relocated;
+	}
+
+	/**
+	 * Goes through the text of every module once, counting the External
+	 * words that refer to each symbol and then recording their addresses.
+	 */
+	private void indexReferences() {
+
+		int[] starts = new int[this.result.symbols.size() + 1];
+		for (int pass = 0; pass < 2; pass++) {
+			int[] references = pass == 1 ? new int[starts[starts.length - 1]]
+					: null;
+			int[] next = pass == 1 ? Arrays.copyOf(starts, starts.length - 1)
+					: null;
+
+			for (Module module : this.modules) {
+				int end = module.textOffset + module.length;
+				for (int i = module.textOffset; i < end; i++) {
+					if (this.instructions.classification(i) != 'E')
+						continue;
+
+					int use = this.instructions.address(i);
+					if (use >= module.uses.size())
+						continue;
+
+					int id = module.uses.get(use);
+					if (pass == 0)
+						starts[id + 1]++;
+					else
+						references[next[id]++] = i;
+				}
+			}
+
+			if (pass == 0)
+				for (int id = 0; id + 1 < starts.length; id++)
+					starts[id + 1] += starts[id];
+			else
+				this.references = references;
+		}
+
+		this.referenceStarts = starts;
+	}
+}
@@ -0,0 +1,583 @@
+package twopass;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Outcome of linking an object program: its symbol table, with the absolute
+ * location of every defined symbol, and its memory map, with the relocated
+ * words and the errors found along the way, followed by the warnings.
+ * <p>
+ * Each link has a symbol table of its own (the program only keeps the names
+ * of its symbols), so linking never modifies the program. Results are not
+ * modified once they are returned by the {@link Linker}.
+ */
+public final class LinkResult {
+	// Shape of the target machine (its memory size and words)
+	private final MachineGeometry geometry;
+
+	final SymbolTable symbols;
+	private final InstructionStore instructions;
+
+	// Defined symbols when they are kept in temporary files (the table
+	// above then only holds the symbols of the module being relocated), or
+	// null
+	ExternalSymbolTable external;
+
+	// Memory map: relocated words, indexed like the instruction store, and
+	// the errors of the few that have any
+	MemoryImage memory;
+	final DiagnosticTable wordErrors = new DiagnosticTable();
+
+	// Symbols in a use list but not in the text, as pairs of module number
+	// and symbol ID in the order of their modules
+	private final IntList unusedUses = new IntList();
+
+	// Number of words in all of the modules, and in the largest one
+	int wordCount;
+	int largestModule;
+
+	LinkResult(MachineGeometry geometry, SymbolTable symbols,
+			InstructionStore instructions) {
+		this.geometry = geometry;
+		this.symbols = symbols;
+		this.instructions = instructions;
+		this.memory = MemoryImage.allocate(0, geometry);
+	}
+
+	/**
+	 * @return The machine the program was linked for.
+	 */
+	public MachineGeometry getGeometry() {
+		return this.geometry;
+	}
+
+	/**
+	 * @return Number of words in the memory map.
+	 */
+	public int getWordCount() {
+		return this.wordCount;
+	}
+
+	/**
+	 * @return The word at the given address of the memory map (which only
+	 *         needs a long if the machine's words may not fit in an int).
+	 */
+	public long getWord(int address) {
+		return this.memory.get(address);
+	}
+
+	/**
+	 * @return The kind of error found while relocating the word at the given
+	 *         address, or null.
+	 */
+	public Diagnostic getWordDiagnostic(int address) {
+		int entry = this.wordErrors.find(address);
+		if (entry == this.wordErrors.size()
+				|| this.wordErrors.index(entry) != address)
+			return null;
+
+		return this.wordErrors.kind(entry);
+	}
+
+	/**
+	 * @return The error found while relocating the word at the given address,
+	 *         or null.
+	 */
+	public String getWordError(int address) {
+		int entry = this.wordErrors.find(address);
+		if (entry == this.wordErrors.size()
+				|| this.wordErrors.index(entry) != address)
+			return null;
+
+		return this.wordErrors.kind(entry).getMessage(
+				this.wordErrorSymbol(entry), 0);
+	}
+
+	/**
+	 * @return Name of the symbol of the given entry of the word errors, if
+	 *         it has one.
+	 */
+	String wordErrorSymbol(int entry) {
+		if (this.wordErrors.kind(entry) != Diagnostic.UNDEFINED_SYMBOL)
+			return null;
+		return this.symbols.name(this.wordErrors.argument(entry));
+	}
+
+	/**
+	 * @return Number of defined symbols. These are indexed from 0 in the
+	 *         order of their names, as they are displayed.
+	 */
+	public int getSymbolCount() {
+		if (this.external != null)
+			return this.external.size();
+		return this.symbols.sortedDefinitions().length;
+	}
+
+	public String getSymbolName(int index) {
+		if (this.external != null)
+			return this.external.name(index);
+		return this.symbols.name(this.symbols.sortedDefinitions()[index]);
+	}
+
+	/**
+	 * @return Absolute location of the given (defined) symbol.
+	 */
+	public int getSymbolLocation(int index) {
+		if (this.external != null)
+			return this.external.location(index);
+		return this.symbols.location(this.symbols.sortedDefinitions()[index]);
+	}
+
+	/**
+	 * @return Number of the module which defines the given symbol (starting
+	 *         from 1).
+	 */
+	public int getSymbolModule(int index) {
+		if (this.external != null)
+			return this.external.moduleNumber(index);
+		return this.symbols
+				.moduleNumber(this.symbols.sortedDefinitions()[index]);
+	}
+
+	/**
+	 * @return True if the given symbol was defined again by a later module.
+	 */
+	public boolean isSymbolMultiplyDefined(int index) {
+		if (this.external != null)
+			return this.external.isMultiplyDefined(index);
+		return this.symbols
+				.isMultiplyDefined(this.symbols.sortedDefinitions()[index]);
+	}
+
+	/**
+	 * @return True if the given symbol is used by the text of some module.
+	 */
+	public boolean isSymbolUsed(int index) {
+		if (this.external != null)
+			return this.external.isUsedSomewhere(index);
+		return this.symbols
+				.isUsedSomewhere(this.symbols.sortedDefinitions()[index]);
+	}
+
+	/**
+	 * @return The error found in the definition of the given symbol, or null.
+	 */
+	public String getSymbolError(int index) {
+		if (!this.isSymbolMultiplyDefined(index))
+			return null;
+		return Diagnostic.MULTIPLY_DEFINED.getMessage(null, 0);
+	}
+
+	/**
+	 * @return The warnings about symbols that were defined but never used,
+	 *         followed by those about symbols that appeared in a use list but
+	 *         not in the text.
+	 */
+	public List<String> getWarnings() {
+
+		List<String> warnings = new ArrayList<String>();
+		for (int i = 0; i < this.getSymbolCount(); i++)
+			if (!this.isSymbolUsed(i))
+				warnings.add(Diagnostic.UNUSED_DEFINITION.getMessage(
+						this.getSymbolName(i), this.getSymbolModule(i)));
+
+		for (int i = 0; i < this.getUnusedUseCount(); i++)
+			warnings.add(Diagnostic.UNUSED_USE.getMessage(
+					this.getUnusedUseName(i), this.getUnusedUseModule(i)));
+
+		return Collections.unmodifiableList(warnings);
+
+	}
+
+	/**
+	 * @return Number of warnings about symbols that appeared in a use list
+	 *         but not in the text.
+	 */
+	int getUnusedUseCount() {
+		if (this.external != null)
+			return this.external.unusedUseCount();
+		return this.unusedUses.size() / 2;
+	}
+
+	/**
+	 * @return Module number and name of the symbol of the given warning
+	 *         about a symbol in a use list but not in the text.
+	 */
+	int getUnusedUseModule(int warning) {
+		if (this.external != null)
+			return this.external.unusedUseModule(warning);
+		return this.unusedUses.get(warning * 2);
+	}
+
+	String getUnusedUseName(int warning) {
+		if (this.external != null)
+			return this.external.unusedUseName(warning);
+		return this.symbols.name(this.unusedUses.get(warning * 2 + 1));
+	}
+
+	/**
+	 * Called once each module is complete to add its defined symbols to the
+	 * symbol table. Modules must be analyzed in order, so that the first
+	 * definition of a symbol is the one used.
+	 */
+	void analyzeModule(Module module) {
+
+		this.setAbsoluteSymbolValues(module);
+
+		this.wordCount += module.length;
+		this.largestModule = Math.max(this.largestModule, module.length);
+
+	}
+
+	/**
+	 * Called after each module is completed to add the defined symbols to the
+	 * global structure after calculating their absolute addresses.
+	 * <p>
+	 * Also performs error detection and checks for arbitrary limits, marking
+	 * the symbols which are defined again.
+	 */
+	private void setAbsoluteSymbolValues(Module module) {
+
+		IntList definitions = module.definitions;
+
+		int symbolId;
+		int absoluteLoc;
+		for (int i = 0; i < definitions.size(); i += 2) {
+			symbolId = definitions.get(i);
+
+			if (this.symbols.isDefined(symbolId)) {
+				this.symbols.markMultiplyDefined(symbolId);
+				continue;
+			}
+
+			absoluteLoc = definitions.get(i + 1) + module.startLocation;
+
+			// Update the global structure with the symbols
+			this.symbols.define(symbolId, absoluteLoc, module.number);
+		}
+
+	}
+
+	/**
+	 * Performs the second pass of the linking process, which uses the base
+	 * addresses and the symbol table computed in pass one to generate the
+	 * memory map by relocating relative addresses and resolving external
+	 * references.
+	 */
+	void relocateAll(List<Module> modules) {
+
+		// Pass one found the length of every module, so the memory map is
+		// allocated once, at its final size
+		this.allocateMemoryMap(this.wordCount);
+
+		UseVector[] useVectors = new UseVector[modules.size()];
+
+		// Large programs are relocated in parallel, each module writing its
+		// own slice of the memory map and each range of modules its own table
+		// of errors (under the index of its first module), which are then
+		// added in order
+		if (modules.size() > 1 && this.wordCount > RelocationTask.THRESHOLD) {
+			DiagnosticTable[] errors = new DiagnosticTable[modules.size()];
+			ForkJoinPool.commonPool().invoke(
+					new RelocationTask(modules, useVectors, errors, 0, modules
+							.size()));
+			for (DiagnosticTable rangeErrors : errors)
+				if (rangeErrors != null)
+					this.wordErrors.addAll(rangeErrors);
+		} else {
+			for (int i = 0; i < modules.size(); i++)
+				useVectors[i] = this.relocateModule(modules.get(i));
+		}
+
+		// Gather what each module found out about the use of the symbols in
+		// order, so that the warnings are the same either way
+		for (int i = 0; i < modules.size(); i++)
+			this.mergeSymbolUsage(modules.get(i), useVectors[i]);
+
+	}
+
+	/**
+	 * Makes sure that the memory map can hold the given number of words.
+	 */
+	void allocateMemoryMap(int words) {
+
+		if (this.memory.size() < words)
+			this.memory = MemoryImage.allocate(words, this.geometry);
+
+	}
+
+	/**
+	 * Relocates the instructions of a single module, writing the resulting
+	 * words to its slice of the memory map and their errors to the table of
+	 * the result (so modules must be relocated in order). The use of the
+	 * symbols is returned for mergeSymbolUsage.
+	 */
+	UseVector relocateModule(Module module) {
+		return this.relocateModule(module, this.instructions, this.memory,
+				module.textOffset, this.wordErrors);
+	}
+
+	/**
+	 * Same as {@link #relocateModule(Module)} for a module whose text is in
+	 * a store of its own, writing its words from the given index of the
+	 * memory map.
+	 */
+	UseVector relocateModule(Module module, InstructionStore instructions,
+			int memoryOffset) {
+		return this.relocateModule(module, instructions, this.memory,
+				memoryOffset, this.wordErrors);
+	}
+
+	/**
+	 * Same as {@link #relocateModule(Module, InstructionStore, int)},
+	 * writing the words to the given image and the errors to the given
+	 * table. Safe to call for different modules (and tables) at the same
+	 * time since the symbol table is only read.
+	 * <p>
+	 * Also performs error detection and checks for arbitrary limits, only
+	 * recording the kind of each error (and its symbol) in the table.
+	 */
+	UseVector relocateModule(Module module, InstructionStore instructions,
+			MemoryImage memory, int memoryOffset, DiagnosticTable errors) {
+
+		Diagnostic error;
+		int errorSymbol;
+		char classification;
+		int relativeAddress;
+		int absoluteAddress;
+		int memorySize = this.geometry.getMemorySize();
+
+		// Resolve the use list once; it also verifies that the variables in
+		// it are in the text by counting the references to them.
+		UseVector useVector = new UseVector(module.uses, this.symbols);
+
+		// Distance from each instruction to its word in the memory map
+		int shift = memoryOffset - module.textOffset;
+
+		// Essentially, the only instructions that need to be modified are
+		// the Relative and the External (unless the resulting absolute
+		// address exceeds the given value of the machine's maximum size).
+		int end = module.textOffset + module.length;
+		for (int i = module.textOffset; i < end; i++) {
+
+			error = null;
+			errorSymbol = 0;
+			classification = instructions.classification(i);
+			relativeAddress = instructions.address(i);
+			absoluteAddress = relativeAddress;
+
+			if (classification == 'R') {
+				// Adapts the relative instruction to an absolute by looking
+				// at the relevant module's location.
+				absoluteAddress = relativeAddress + module.startLocation;
+
+				if (relativeAddress > module.length) {
+					error = Diagnostic.RELATIVE_ADDRESS;
+					absoluteAddress = 0;
+				}
+
+			} else if (classification == 'E') {
+				if (useVector.size() <= relativeAddress) {
+					error = Diagnostic.EXTERNAL_ADDRESS;
+
+				} else if (useVector.address(relativeAddress) == UseVector.UNDEFINED) {
+					// Map the address to the external symbol
+					error = Diagnostic.UNDEFINED_SYMBOL;
+					errorSymbol = module.uses.get(relativeAddress);
+
+				} else {
+					// Mark the symbol as "used" in the text (if the symbol was
+					// not defined, don't do anything) as well as used
+					// somewhere in the program
+					useVector.reference(relativeAddress);
+
+					// Get its absolute address
+					absoluteAddress = useVector.address(relativeAddress);
+				}
+			}
+
+			// This check applies to all instructions but the Immediate ones
+			// (immediate addresses are often not really addresses).
+			if (classification != 'I') {
+				if (absoluteAddress >= memorySize) {
+					error = Diagnostic.ABSOLUTE_ADDRESS;
+					absoluteAddress = 0;
+				}
+			}
+
+			// Add the formed word to the memory map
+			memory.set(i + shift, this.geometry.word(instructions.opcode(i),
+					absoluteAddress));
+			if (error != null)
+				errors.add(i + shift, error, errorSymbol);
+		}
+
+		return useVector;
+	}
+
+	/**
+	 * Marks the symbols referenced by the text of a relocated module as used
+	 * somewhere in the program and records a warning for each symbol in its
+	 * use list which never appeared in its text. Modules must be merged in
+	 * order.
+	 */
+	void mergeSymbolUsage(Module module, UseVector useVector) {
+		this.mergeSymbolUsage(module, useVector.referenced(),
+				useVector.unusedInText());
+	}
+
+	/**
+	 * Same as {@link #mergeSymbolUsage(Module, UseVector)} given the entries
+	 * of the use list that were referenced by the text of the module and
+	 * those of defined symbols that did not appear in it.
+	 */
+	void mergeSymbolUsage(Module module, BitSet referenced, BitSet unusedInText) {
+
+		for (int i = referenced.nextSetBit(0); i >= 0; i = referenced
+				.nextSetBit(i + 1))
+			this.symbols.markUsed(module.uses.get(i));
+
+		// Whatever was not referenced never appeared in the text
+		for (int i = unusedInText.nextSetBit(0); i >= 0; i = unusedInText
+				.nextSetBit(i + 1)) {
+			this.unusedUses.add(module.number);
+			this.unusedUses.add(module.uses.get(i));
+		}
+	}
+
+	/**
+	 * Counts the defined symbols and those that were defined more than once.
+	 */
+	void countDefinitions(PhaseRecorder recorder) {
+
+		if (this.external != null) {
+			recorder.add(LinkStats.Count.SYMBOLS, this.external.size());
+			recorder.add(LinkStats.Count.MULTIPLY_DEFINED,
+					this.external.multiplyDefinedCount());
+			return;
+		}
+
+		for (int id = 0; id < this.symbols.size(); id++)
+			if (this.symbols.isDefined(id)) {
+				recorder.add(LinkStats.Count.SYMBOLS, 1);
+				if (this.symbols.isMultiplyDefined(id))
+					recorder.add(LinkStats.Count.MULTIPLY_DEFINED, 1);
+			}
+
+	}
+
+	/**
+	 * Counts the instructions in the given range of the store by
+	 * classification, and the errors found relocating them (in the same
+	 * range of the memory map) by kind.
+	 */
+	void countWords(PhaseRecorder recorder, int from, int to) {
+
+		long immediate = 0;
+		long absolute = 0;
+		long relative = 0;
+		long external = 0;
+
+		for (int i = from; i < to; i++) {
+			char classification = this.instructions.classification(i);
+			if (classification == 'I')
+				immediate++;
+			else if (classification == 'A')
+				absolute++;
+			else if (classification == 'R')
+				relative++;
+			else if (classification == 'E')
+				external++;
+		}
+
+		recorder.add(LinkStats.Count.IMMEDIATE, immediate);
+		recorder.add(LinkStats.Count.ABSOLUTE, absolute);
+		recorder.add(LinkStats.Count.RELATIVE, relative);
+		recorder.add(LinkStats.Count.EXTERNAL, external);
+
+		// Only the words with errors are in the table
+		for (int entry = this.wordErrors.find(from); entry < this.wordErrors
+				.size() && this.wordErrors.index(entry) < to; entry++)
+			recorder.add(LinkStats.Count.of(this.wordErrors.kind(entry)), 1);
+
+	}
+
+	/**
+	 * Counts the warnings of a complete link by kind.
+	 */
+	void countWarnings(PhaseRecorder recorder) {
+
+		if (this.external != null)
+			recorder.add(LinkStats.Count.UNUSED_DEFINITION,
+					this.external.size() - this.external.usedCount());
+		else
+			for (int id = 0; id < this.symbols.size(); id++)
+				if (this.symbols.isDefined(id)
+						&& !this.symbols.isUsedSomewhere(id))
+					recorder.add(LinkStats.Count.UNUSED_DEFINITION, 1);
+
+		recorder.add(LinkStats.Count.UNUSED_USE, this.getUnusedUseCount());
+
+	}
+
+	/**
+	 * Relocates a range of modules, splitting it in halves to be relocated in
+	 * parallel while it holds more than a few thousand words. Modules only
+	 * read the (complete) symbol table and write to their own slice of the
+	 * memory map (and table of errors), so no synchronization is needed
+	 * between them.
+	 */
+	private class RelocationTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		// Words below which a range is relocated by a single thread
+		private static final int THRESHOLD = 8192;
+
+		private final transient List<Module> modules;
+		// Use of the symbols by each module, filled in as they are relocated
+		private final transient UseVector[] useVectors;
+		// Errors of each range relocated by a single thread, under the index
+		// of its first module
+		private final transient DiagnosticTable[] errors;
+		private final int fromModule;
+		private final int toModule;
+
+		public RelocationTask(List<Module> modules, UseVector[] useVectors,
+				DiagnosticTable[] errors, int fromModule, int toModule) {
+			this.modules = modules;
+			this.useVectors = useVectors;
+			this.errors = errors;
+			this.fromModule = fromModule;
+			this.toModule = toModule;
+		}
+
+		protected void compute() {
+			Module first = this.modules.get(this.fromModule);
+			Module last = this.modules.get(this.toModule - 1);
+			int words = last.textOffset + last.length - first.textOffset;
+
+			if (this.toModule - this.fromModule == 1 || words <= THRESHOLD) {
+				DiagnosticTable errors = new DiagnosticTable();
+				for (int i = this.fromModule; i < this.toModule; i++) {
+					Module module = this.modules.get(i);
+					this.useVectors[i] = LinkResult.this.relocateModule(module,
+							LinkResult.this.instructions,
+							LinkResult.this.memory, module.textOffset, errors);
+				}
+				this.errors[this.fromModule] = errors;
+				return;
+			}
+
+			int middle = (this.fromModule + this.toModule) >>> 1;
+			invokeAll(new RelocationTask(this.modules, this.useVectors,
+					this.errors, this.fromModule, middle), new RelocationTask(
+					this.modules, this.useVectors, this.errors, middle,
+					this.toModule));
+		}
+	}
+}
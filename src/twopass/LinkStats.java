@@ -0,0 +1,201 @@
+package twopass;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the phases of the jobs run by a {@link Linker} created with
+ * them: the wall time and the bytes allocated by each phase, and counts of
+ * what they read and found (tokens, modules, symbols, instructions by
+ * classification, errors and warnings by kind).
+ * <p>
+ * The statistics of every job are added up, so the same instance may be
+ * shared by any number of jobs running at the same time. Allocation is
+ * that of the thread which runs the phase: the work it hands over to other
+ * threads (reading and relocating large programs in parallel) is not
+ * included.
+ * <p>
+ * When streaming, the modules are defined as they are parsed and their words
+ * are written as soon as they are relocated, so the first pass is recorded as
+ * parse and the second as performSecondPass, leaving only the symbol table
+ * and the warnings to displayResults.
+ * <p>
+ * The same data is also recorded as "twopass.Phase" events of the JDK Flight
+ * Recorder, whenever it is recording them, by any linker.
+ */
+public final class LinkStats {
+
+	public enum Phase {
+		PARSE("parse"), DEFINE("setAbsoluteSymbolValues"), RELOCATE(
+				"performSecondPass"), EMIT("displayResults");
+
+		private final String name;
+
+		private Phase(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return Name of the phase, after the step of the linking process
+		 *         it performs.
+		 */
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	public enum Count {
+		TOKENS(null, "tokens"), MODULES(null, "modules"), SYMBOLS(null,
+				"symbols"),
+
+		// Instructions by classification
+		IMMEDIATE("instructions", "I"), ABSOLUTE("instructions", "A"), RELATIVE(
+				"instructions", "R"), EXTERNAL("instructions", "E"),
+
+		// Errors by kind (symbols defined more than once, then words)
+		MULTIPLY_DEFINED("errors", "multiplyDefined"), RELATIVE_ADDRESS(
+				"errors", "relativeAddressExceedsModule"), EXTERNAL_ADDRESS(
+				"errors", "externalAddressExceedsUseList"), UNDEFINED_SYMBOL(
+				"errors", "undefinedSymbol"), ABSOLUTE_ADDRESS("errors",
+				"absoluteAddressExceedsMachine"),
+
+		// Warnings by kind
+		UNUSED_DEFINITION("warnings", "definedButNeverUsed"), UNUSED_USE(
+				"warnings", "usedButNotInText");
+
+		// Object of the JSON summary that holds the count (null for the top
+		// level) and its name in there
+		private final String group;
+		private final String name;
+
+		private Count(String group, String name) {
+			this.group = group;
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return The count of the given kind of error or warning (of the
+		 *         same name).
+		 */
+		static Count of(Diagnostic kind) {
+			return valueOf(kind.name());
+		}
+	}
+
+	private static final int PHASES = Phase.values().length;
+
+	// Number of runs, wall time (ns) and allocated bytes of every phase
+	private final AtomicLongArray runs = new AtomicLongArray(PHASES);
+	private final AtomicLongArray nanos = new AtomicLongArray(PHASES);
+	private final AtomicLongArray allocatedBytes = new AtomicLongArray(PHASES);
+	private final AtomicLongArray counts = new AtomicLongArray(
+			Count.values().length);
+
+	/**
+	 * @return Number of times the given phase was run.
+	 */
+	public long getRuns(Phase phase) {
+		return this.runs.get(phase.ordinal());
+	}
+
+	/**
+	 * @return Wall time spent in the given phase, in nanoseconds.
+	 */
+	public long getNanos(Phase phase) {
+		return this.nanos.get(phase.ordinal());
+	}
+
+	/**
+	 * @return Bytes allocated by the given phase, or 0 if the JVM cannot
+	 *         measure them.
+	 */
+	public long getAllocatedBytes(Phase phase) {
+		return this.allocatedBytes.get(phase.ordinal());
+	}
+
+	public long getCount(Count count) {
+		return this.counts.get(count.ordinal());
+	}
+
+	/**
+	 * Adds a run of a phase, with the counts it recorded (indexed by
+	 * {@link Count}).
+	 */
+	void add(Phase phase, long nanos, long allocatedBytes, long[] counts) {
+
+		this.runs.incrementAndGet(phase.ordinal());
+		this.nanos.addAndGet(phase.ordinal(), nanos);
+		this.allocatedBytes.addAndGet(phase.ordinal(), allocatedBytes);
+
+		for (int i = 0; i < counts.length; i++)
+			if (counts[i] != 0)
+				this.counts.addAndGet(i, counts[i]);
+
+	}
+
+	/**
+	 * Adds up the statistics of other jobs.
+	 */
+	void add(LinkStats other) {
+
+		for (int i = 0; i < PHASES; i++) {
+			this.runs.addAndGet(i, other.runs.get(i));
+			this.nanos.addAndGet(i, other.nanos.get(i));
+			this.allocatedBytes.addAndGet(i, other.allocatedBytes.get(i));
+		}
+
+		for (int i = 0; i < this.counts.length(); i++)
+			this.counts.addAndGet(i, other.counts.get(i));
+
+	}
+
+	/**
+	 * @return Summary of the statistics as a single line of JSON, such as
+	 *         {"phases":{"parse":{"runs":1,"wallNanos":1200,
+	 *         "allocatedBytes":5600},...},"tokens":48,"modules":4,
+	 *         "symbols":3,"instructions":{"I":2,...},"errors":{...},
+	 *         "warnings":{...}}.
+	 */
+	public String toJson() {
+
+		StringBuilder json = new StringBuilder("{\"phases\":{");
+		for (Phase phase : Phase.values()) {
+			if (phase.ordinal() > 0)
+				json.append(',');
+			json.append('"').append(phase.getName()).append("\":{\"runs\":")
+					.append(this.getRuns(phase)).append(",\"wallNanos\":")
+					.append(this.getNanos(phase))
+					.append(",\"allocatedBytes\":")
+					.append(this.getAllocatedBytes(phase)).append('}');
+		}
+		json.append('}');
+
+		// Counts of the same group are listed one after another
+		String group = null;
+		for (Count count : Count.values()) {
+			if (!Objects.equals(count.group, group)) {
+				if (group != null)
+					json.append('}');
+				if (count.group != null)
+					json.append(",\"").append(count.group).append("\":{");
+				group = count.group;
+			} else if (group != null) {
+				json.append(',');
+			}
+
+			if (group == null)
+				json.append(',');
+			json.append('"').append(count.getName()).append("\":")
+					.append(this.getCount(count));
+		}
+		if (group != null)
+			json.append('}');
+
+		return json.append('}').toString();
+
+	}
+}
@@ -0,0 +1,497 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Two-pass linker for a series of object modules, meant to be embedded.
+ * <p>
+ * The first pass (parse) determines the base address of each module; the
+ * second (link) computes the absolute address of each defined symbol, which
+ * are stored in a symbol table, and uses them to relocate relative addresses
+ * and resolve external references. The results can then be written (emit)
+ * in any of the output formats.
+ * <p>
+ * Modules may come from text inputs or from object files (see compile),
+ * in any mix: the inputs are linked, in order, as a single series of modules.
+ * Library archives (see archive) only add the modules that define the
+ * symbols the others use, after all of them.
+ * <p>
+ * A linker holds no state of its own (besides the statistics it may record
+ * into, which are shared safely) and every job works on structures of its
+ * own, so a single instance may run any number of jobs at the same time, and
+ * the same parsed program may be linked by several of them.
+ */
+public final class Linker {
+	// Machine the programs are linked for
+	private final MachineGeometry geometry;
+	// Statistics of the phases of every job (null if they are not recorded)
+	private final LinkStats stats;
+
+	/**
+	 * Creates a linker for the default machine (see
+	 * {@link MachineGeometry#DEFAULT}).
+	 */
+	public Linker() {
+		this(MachineGeometry.DEFAULT, null);
+	}
+
+	/**
+	 * Creates a linker for the default machine which adds the time,
+	 * allocation and counts of every phase of its jobs to the given
+	 * statistics.
+	 */
+	public Linker(LinkStats stats) {
+		this(MachineGeometry.DEFAULT, stats);
+	}
+
+	/**
+	 * Creates a linker for the given machine, which adds the time,
+	 * allocation and counts of every phase of its jobs to the given
+	 * statistics (unless they are null).
+	 */
+	public Linker(MachineGeometry geometry, LinkStats stats) {
+		this.geometry = geometry;
+		this.stats = stats;
+	}
+
+	/**
+	 * Performs the first pass of the linking process on the given file.
+	 *
+	 * @throws IOException
+	 *             If the file-path that was provided did not lead to a
+	 *             readable file.
+	 */
+	public ObjectProgram parse(Path input) throws IOException {
+		return this.parse(Collections.singletonList(input));
+	}
+
+	/**
+	 * Performs the first pass of the linking process on the given files, as a
+	 * single series of modules.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file.
+	 */
+	public ObjectProgram parse(List<Path> inputs) throws IOException {
+		return this.parseInputs(LinkInput.of(inputs));
+	}
+
+	/**
+	 * Same as {@link #parse(List)} for inputs which may be held in memory.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file.
+	 */
+	public ObjectProgram parseInputs(List<LinkInput> inputs)
+			throws IOException {
+
+		PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+				LinkStats.Phase.PARSE);
+		ObjectProgram program = ObjectProgram.read(inputs, this.geometry);
+		if (recorder.isEnabled()) {
+			recorder.add(LinkStats.Count.TOKENS, program.tokenCount);
+			recorder.add(LinkStats.Count.MODULES, program.getModuleCount());
+		}
+		recorder.stop();
+
+		return program;
+	}
+
+	/**
+	 * Performs the second pass of the linking process on a parsed program,
+	 * which is not modified.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the program was parsed for a different machine.
+	 */
+	public LinkResult link(ObjectProgram program) {
+
+		LinkResult result = this.define(program);
+		this.relocate(program, result);
+		return result;
+	}
+
+	/**
+	 * Same as {@link #link(ObjectProgram)}, writing the binary image of the
+	 * result (see {@link OutputFormat#BIN}) to the given file at the same
+	 * time: the file is sized from the lengths of the modules found by pass
+	 * one and mapped, and pass two relocates every word straight into it.
+	 * Only the header and the symbol table are written otherwise.
+	 *
+	 * @return The result, whose memory map is the mapping of the file (the
+	 *         errors and warnings are only in the result).
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public LinkResult link(ObjectProgram program, Path image)
+			throws IOException {
+
+		LinkResult result = this.define(program);
+
+		try (FileChannel channel = FileChannel.open(image,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+					LinkStats.Phase.EMIT);
+			result.memory = ImageFile.create(channel, result);
+			recorder.stop();
+
+			this.relocate(program, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Only computes the absolute address of each defined symbol of a parsed
+	 * program, which is not modified, for answering queries about a few of
+	 * its words or symbols without relocating the others.
+	 *
+	 * @param cachedModules
+	 *            Number of relocated modules kept for later queries.
+	 * @throws IllegalArgumentException
+	 *             If the program was parsed for a different machine.
+	 */
+	public LinkQuery query(ObjectProgram program, int cachedModules) {
+		return new LinkQuery(program, this.define(program), cachedModules);
+	}
+
+	/**
+	 * Same as {@link #query(ObjectProgram, int)}, keeping the relocated words
+	 * of up to {@link LinkQuery#DEFAULT_CACHED_MODULES} modules.
+	 */
+	public LinkQuery query(ObjectProgram program) {
+		return this.query(program, LinkQuery.DEFAULT_CACHED_MODULES);
+	}
+
+	/**
+	 * Removes from a parsed program, which is not modified, the modules that
+	 * cannot be reached from the given ones through the use lists (see
+	 * {@link CollectedProgram}), for linking a smaller memory map.
+	 *
+	 * @param rootModules
+	 *            Numbers (starting from 1) of the modules that are kept.
+	 * @param rootSymbols
+	 *            Names of the symbols whose defining modules are kept.
+	 * @throws IllegalArgumentException
+	 *             If a root module is not in the program or a root symbol is
+	 *             not defined by it.
+	 */
+	public CollectedProgram collect(ObjectProgram program, int[] rootModules,
+			List<String> rootSymbols) {
+		return CollectedProgram.collect(program, rootModules, rootSymbols);
+	}
+
+	/**
+	 * Finishes linking a program whose symbols are defined by relocating
+	 * every module into the memory map of the result (which is allocated
+	 * unless it already has room for every word).
+	 */
+	private void relocate(ObjectProgram program, LinkResult result) {
+
+		PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+				LinkStats.Phase.RELOCATE);
+		result.relocateAll(program.modules);
+
+		// Sort the symbols now, so that the result is never modified once
+		// it is shared
+		result.symbols.sortedDefinitions();
+
+		if (recorder.isEnabled()) {
+			result.countWords(recorder, 0, result.wordCount);
+			result.countWarnings(recorder);
+		}
+		recorder.stop();
+
+	}
+
+	/**
+	 * Starts linking a program by adding the symbols defined by its modules
+	 * to a symbol table of its own.
+	 */
+	private LinkResult define(ObjectProgram program) {
+
+		if (!program.geometry.equals(this.geometry))
+			throw new IllegalArgumentException("Program parsed for "
+					+ program.geometry + " cannot be linked for "
+					+ this.geometry);
+
+		PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+				LinkStats.Phase.DEFINE);
+		LinkResult result = new LinkResult(this.geometry,
+				program.symbols.copy(), program.instructions);
+
+		for (Module module : program.modules)
+			result.analyzeModule(module);
+
+		if (recorder.isEnabled())
+			result.countDefinitions(recorder);
+		recorder.stop();
+
+		return result;
+	}
+
+	/**
+	 * Writes the results of a link to the given stream, which is flushed but
+	 * not closed.
+	 */
+	public void emit(LinkResult result, OutputFormat format, OutputStream out)
+			throws IOException {
+
+		PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+				LinkStats.Phase.EMIT);
+		new Report(result, format, out).displayResults();
+		recorder.stop();
+
+	}
+
+	/**
+	 * Parses, links and emits the given files in a pipeline of stages that
+	 * run at the same time (see {@link LinkPipeline}): reading the files,
+	 * finding their tokens, building the modules and defining their symbols,
+	 * and relocating and writing the words, so that reading overlaps with
+	 * parsing and relocating with writing. The results are written as soon
+	 * as they are known (everything that precedes the memory map once the
+	 * last module is read) to the given stream, which is flushed but not
+	 * closed.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file.
+	 */
+	public void pipeline(List<Path> inputs, OutputFormat format,
+			OutputStream out) throws IOException {
+		new LinkPipeline(this.geometry, this.stats).link(inputs, format, out);
+	}
+
+	/**
+	 * Writes the modules of a parsed program as an object file (see
+	 * {@link ObjectFile}), which can be linked instead of its inputs without
+	 * tokenizing them again. The stream is flushed but not closed.
+	 *
+	 * @throws IOException
+	 *             If an address does not fit in the object file format (16
+	 *             bits), besides any error of the stream.
+	 */
+	public void compile(ObjectProgram program, OutputStream out)
+			throws IOException {
+		ObjectFile.write(program, out);
+	}
+
+	/**
+	 * Writes the modules of a parsed program as the members of a library
+	 * archive (see {@link LibraryArchive}): a link that is given the archive
+	 * among its inputs only takes the members that define the symbols it
+	 * needs. The stream is flushed but not closed.
+	 *
+	 * @throws IOException
+	 *             If an address does not fit in the archive format (16 bits),
+	 *             besides any error of the stream.
+	 */
+	public void archive(ObjectProgram program, OutputStream out)
+			throws IOException {
+		LibraryArchive.write(program, out);
+	}
+
+	/**
+	 * Same as {@link #stream(List, OutputFormat, OutputStream)} for a single
+	 * file.
+	 */
+	public void stream(Path input, OutputFormat format, OutputStream out)
+			throws IOException {
+		this.stream(Collections.singletonList(input), format, out);
+	}
+
+	/**
+	 * Parses, links and emits the given files in streaming mode: pass one only
+	 * keeps the symbol table and spills every module of the text inputs onto
+	 * a temporary file, which pass two reads back one module at a time,
+	 * writing its words as soon as they are relocated (the symbol table is
+	 * already complete by then). The memory used is thus bounded by the size
+	 * of the largest module.
+	 * <p>
+	 * Object files are not spilled: pass one only reads the headers of their
+	 * modules, and pass two their bodies.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file, or if the temporary file cannot be used.
+	 */
+	public void stream(List<Path> inputs, OutputFormat format, OutputStream out)
+			throws IOException {
+
+		InstructionStore instructions = new InstructionStore();
+		this.stream(inputs, format, out, new StreamSymbols.InHeap(
+				this.geometry, instructions), instructions);
+	}
+
+	/**
+	 * Same as {@link #stream(List, OutputFormat, OutputStream)}, keeping the
+	 * defined symbols in temporary files too (see {@link ExternalSymbolTable})
+	 * for links that define more symbols than the heap can hold: pass one
+	 * writes them as runs sorted by name whenever it has interned a number
+	 * of names, which are merged once it is done, and pass two looks up the
+	 * uses of each module in the merged file. The memory used is thus
+	 * bounded by the size of the largest module whatever the number of
+	 * symbols, at the cost of reading them back from the disk.
+	 * <p>
+	 * The names of an object file are still read at once, but the IDs of
+	 * its modules are translated one module at a time.
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file, or if the temporary files cannot be used.
+	 */
+	public void streamExternal(List<Path> inputs, OutputFormat format,
+			OutputStream out) throws IOException {
+
+		InstructionStore instructions = new InstructionStore();
+		try (ExternalSymbolTable external = new ExternalSymbolTable()) {
+			this.stream(inputs, format, out, new StreamSymbols.External(
+					external, this.geometry, instructions), instructions);
+		} catch (UncheckedIOException e) {
+			// Thrown reading the merged symbols through the result
+			throw e.getCause();
+		}
+
+	}
+
+	/**
+	 * Streams the given files, defining their symbols and looking up the
+	 * uses of their modules in the given symbols, whose modules are read
+	 * into the given store.
+	 */
+	private void stream(List<Path> inputs, OutputFormat format,
+			OutputStream out, final StreamSymbols symbols,
+			final InstructionStore instructions) throws IOException {
+
+		// Object files (which stay mapped until pass two) and the IDs of
+		// their names, or the number of modules spilled for text inputs
+		ObjectFile[] objectFiles = new ObjectFile[inputs.size()];
+		int[][] symbolIds = new int[inputs.size()][];
+		int[] spilledModules = new int[inputs.size()];
+
+		try (final ModuleSpill spill = new ModuleSpill(instructions)) {
+
+			// Pass one: parse (and define the symbols of) every module
+			PhaseRecorder recorder = PhaseRecorder.start(this.stats,
+					LinkStats.Phase.PARSE);
+			int moduleCount = 0;
+			int nextLocation = 0;
+			for (int i = 0; i < inputs.size(); i++) {
+				try (FileChannel channel = FileChannel.open(inputs.get(i),
+						StandardOpenOption.READ)) {
+
+					if (LibraryArchive.isArchive(channel))
+						throw new IOException(
+								"Library archives cannot be linked in streaming mode: "
+										+ inputs.get(i));
+
+					if (ObjectFile.isObjectFile(channel)) {
+						ObjectFile objectFile = new ObjectFile(channel);
+						objectFiles[i] = objectFile;
+						symbolIds[i] = symbols.internNames(objectFile);
+
+						for (int m = 0; m < objectFile.moduleCount(); m++) {
+							Module module = symbols.defineObjectModule(
+									objectFile, m, symbolIds[i],
+									++moduleCount, nextLocation);
+							nextLocation = module.endLocation + 1;
+						}
+						continue;
+					}
+
+					ModuleParser parser = new ModuleParser(this.geometry,
+							symbols.names(), instructions, null,
+							new ModuleParser.Listener() {
+								public void moduleRead(Module module)
+										throws IOException {
+									symbols.defineTextModule(module, spill);
+									instructions.clear();
+								}
+							});
+					parser.continueAfter(moduleCount, nextLocation);
+					parser.parse(new Tokenizer(channel));
+
+					spilledModules[i] = parser.moduleCount() - moduleCount;
+					moduleCount = parser.moduleCount();
+					nextLocation = parser.nextLocation();
+					if (recorder.isEnabled())
+						recorder.add(LinkStats.Count.TOKENS,
+								parser.tokenCount);
+				}
+			}
+
+			if (recorder.isEnabled())
+				recorder.add(LinkStats.Count.MODULES, moduleCount);
+			recorder.stop();
+
+			recorder = PhaseRecorder.start(this.stats, LinkStats.Phase.DEFINE);
+			LinkResult result = symbols.finishDefinitions();
+			if (recorder.isEnabled())
+				result.countDefinitions(recorder);
+			recorder.stop();
+
+			recorder = PhaseRecorder.start(this.stats, LinkStats.Phase.EMIT);
+			Report report = new Report(result, format, out);
+			report.beginOutput();
+			recorder.stop();
+
+			// Pass two: relocate every module and write its words, one at a
+			// time through a memory map that fits the largest of them
+			recorder = PhaseRecorder.start(this.stats,
+					LinkStats.Phase.RELOCATE);
+			result.allocateMemoryMap(result.largestModule);
+			spill.rewind();
+			int counter = 0;
+			moduleCount = 0;
+			nextLocation = 0;
+			for (int i = 0; i < inputs.size(); i++) {
+				ObjectFile objectFile = objectFiles[i];
+				int inputModules = objectFile != null ? objectFile
+						.moduleCount() : spilledModules[i];
+
+				for (int m = 0; m < inputModules; m++) {
+					Module module;
+					if (objectFile != null)
+						module = symbols.readObjectModule(objectFile, m,
+								symbolIds[i], ++moduleCount, nextLocation,
+								instructions);
+					else {
+						module = symbols.readSpilledModule(spill);
+						moduleCount = module.number;
+					}
+					nextLocation = module.endLocation + 1;
+
+					// The errors of the previous module were written already
+					result.wordErrors.clear();
+					symbols.relocate(result, module);
+
+					counter = report.displayMemoryMap(counter, 0,
+							module.length);
+
+					if (recorder.isEnabled())
+						result.countWords(recorder, module.textOffset,
+								module.textOffset + module.length);
+				}
+			}
+
+			if (recorder.isEnabled())
+				result.countWarnings(recorder);
+			recorder.stop();
+
+			recorder = PhaseRecorder.start(this.stats, LinkStats.Phase.EMIT);
+			report.endOutput();
+			recorder.stop();
+		}
+	}
+}
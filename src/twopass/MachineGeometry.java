@@ -0,0 +1,192 @@
+package twopass;
+
+/**
+ * Shape of the target machine: the number of words of its memory and how
+ * each word is made of an opcode followed by an address.
+ * <p>
+ * Decimal machines split the digits of a word: its first opcode digits are
+ * the opcode and the rest are the address, so the word of an instruction is
+ * opcode * 10^addressDigits + address. Binary machines read the whole word
+ * as a number whose low address bits are the address and whose next opcode
+ * bits are the opcode (higher bits are ignored). The default is the original
+ * target: 600 words of 4 decimal digits (a 1-digit opcode and a 3-digit
+ * address).
+ * <p>
+ * Words that may not fit in an int (e.g. 2-digit opcodes with 9-digit
+ * addresses) are kept as longs, and are 64-bit in the binary image.
+ */
+public final class MachineGeometry {
+
+	public static final MachineGeometry DEFAULT = decimal(600, 1, 3);
+
+	// Opcodes are kept in a byte of the instruction store
+	private static final int MAX_OPCODE_DIGITS = 2;
+	private static final int MAX_OPCODE_BITS = 7;
+	private static final int MAX_ADDRESS_DIGITS = 9;
+	private static final int MAX_ADDRESS_BITS = 31;
+
+	private final int memorySize;
+	private final boolean binary;
+	private final int opcodeWidth;
+	private final int addressWidth;
+
+	// What the opcode is multiplied by to make a word
+	private final long opcodeScale;
+	// True if a word may not fit in an int
+	private final boolean wide;
+
+	private MachineGeometry(int memorySize, boolean binary, int opcodeWidth,
+			int addressWidth) {
+		this.memorySize = memorySize;
+		this.binary = binary;
+		this.opcodeWidth = opcodeWidth;
+		this.addressWidth = addressWidth;
+
+		long maxOpcode;
+		if (binary) {
+			this.opcodeScale = 1L << addressWidth;
+			maxOpcode = (1L << opcodeWidth) - 1;
+		} else {
+			long scale = 1;
+			for (int i = 0; i < addressWidth; i++)
+				scale *= 10;
+			this.opcodeScale = scale;
+			// Opcodes are the value of their digits (or letters)
+			maxOpcode = opcodeWidth == 1 ? 35 : 99;
+		}
+
+		// Words of addresses wider than the machine's (which are only an
+		// error for the words that are checked) wrap around as ints unless
+		// the words are wide anyway
+		this.wide = (maxOpcode + 1) * this.opcodeScale - 1 > Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param memorySize
+	 *            Number of words of the memory, from 1 to
+	 *            10^addressDigits.
+	 * @param opcodeDigits
+	 *            1 or 2.
+	 * @param addressDigits
+	 *            From 1 to 9.
+	 */
+	public static MachineGeometry decimal(int memorySize, int opcodeDigits,
+			int addressDigits) {
+
+		check("opcode digits", opcodeDigits, MAX_OPCODE_DIGITS);
+		check("address digits", addressDigits, MAX_ADDRESS_DIGITS);
+
+		MachineGeometry geometry = new MachineGeometry(memorySize, false,
+				opcodeDigits, addressDigits);
+		if (memorySize < 1 || memorySize > geometry.opcodeScale)
+			throw new IllegalArgumentException("Memory of " + memorySize
+					+ " words cannot be addressed with " + addressDigits
+					+ " digits");
+		return geometry;
+	}
+
+	/**
+	 * @param memorySize
+	 *            Number of words of the memory, from 1 to 2^addressBits.
+	 * @param opcodeBits
+	 *            From 1 to 7.
+	 * @param addressBits
+	 *            From 1 to 31.
+	 */
+	public static MachineGeometry binary(int memorySize, int opcodeBits,
+			int addressBits) {
+
+		check("opcode bits", opcodeBits, MAX_OPCODE_BITS);
+		check("address bits", addressBits, MAX_ADDRESS_BITS);
+
+		MachineGeometry geometry = new MachineGeometry(memorySize, true,
+				opcodeBits, addressBits);
+		if (memorySize < 1 || memorySize > geometry.opcodeScale)
+			throw new IllegalArgumentException("Memory of " + memorySize
+					+ " words cannot be addressed with " + addressBits
+					+ " bits");
+		return geometry;
+	}
+
+	private static void check(String name, int value, int max) {
+		if (value < 1 || value > max)
+			throw new IllegalArgumentException("Expected 1 to " + max + " "
+					+ name + ", not " + value);
+	}
+
+	public int getMemorySize() {
+		return this.memorySize;
+	}
+
+	/**
+	 * @return True if the widths are in bits, false if they are in decimal
+	 *         digits.
+	 */
+	public boolean isBinary() {
+		return this.binary;
+	}
+
+	public int getOpcodeWidth() {
+		return this.opcodeWidth;
+	}
+
+	public int getAddressWidth() {
+		return this.addressWidth;
+	}
+
+	/**
+	 * @return True if words are kept as longs rather than ints.
+	 */
+	boolean isWide() {
+		return this.wide;
+	}
+
+	/**
+	 * Opcode of the current token when read as a word.
+	 */
+	int opcode(Tokenizer tokens) {
+		if (this.binary)
+			return (int) (tokens.longValue() >>> this.addressWidth)
+					& ((1 << this.opcodeWidth) - 1);
+		return tokens.opcode(this.opcodeWidth);
+	}
+
+	/**
+	 * Address of the current token when read as a word.
+	 */
+	int address(Tokenizer tokens) {
+		if (this.binary)
+			return (int) (tokens.longValue() & (this.opcodeScale - 1));
+		return tokens.address(this.opcodeWidth);
+	}
+
+	/**
+	 * @return The word made of the given opcode and address.
+	 */
+	long word(int opcode, int address) {
+		return opcode * this.opcodeScale + address;
+	}
+
+	public boolean equals(Object other) {
+		if (!(other instanceof MachineGeometry))
+			return false;
+
+		MachineGeometry geometry = (MachineGeometry) other;
+		return this.memorySize == geometry.memorySize
+				&& this.binary == geometry.binary
+				&& this.opcodeWidth == geometry.opcodeWidth
+				&& this.addressWidth == geometry.addressWidth;
+	}
+
+	public int hashCode() {
+		int hash = this.memorySize;
+		hash = hash * 31 + this.opcodeWidth;
+		hash = hash * 31 + this.addressWidth;
+		return hash * 2 + (this.binary ? 1 : 0);
+	}
+
+	public String toString() {
+		return this.memorySize + " words, " + this.opcodeWidth + "+"
+				+ this.addressWidth + (this.binary ? " bits" : " digits");
+	}
+}
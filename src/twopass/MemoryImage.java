@@ -0,0 +1,211 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Words of the memory map, in a primitive array sized once from the lengths
+ * of the modules found by the first pass: ints, or longs for machines whose
+ * words may not fit in an int. Images too large to be comfortably kept on
+ * the heap are allocated off-heap, in direct buffers, and images may also be
+ * mapped from a file (as little-endian words).
+ * <p>
+ * Different threads may write different words of an image at the same time.
+ */
+abstract class MemoryImage {
+	// Images of at least this many bytes are kept off-heap
+	private static final long OFF_HEAP_BYTES = 1L << 30;
+
+	/**
+	 * @return An image of the given number of words (all 0), wide enough
+	 *         for the words of the given machine.
+	 */
+	static MemoryImage allocate(int size, MachineGeometry geometry) {
+		int wordBytes = geometry.isWide() ? 8 : 4;
+
+		if ((long) size * wordBytes >= OFF_HEAP_BYTES)
+			return OffHeap.allocate(size, wordBytes == 8 ? 3 : 2);
+		else if (wordBytes == 8)
+			return new Longs(size);
+		else
+			return new Ints(size);
+	}
+
+	/**
+	 * @return An image of the given number of words mapped from the given
+	 *         position of a file (which is extended as needed when it is
+	 *         mapped for writing), of longs if it is wide or else of ints.
+	 */
+	static MemoryImage map(FileChannel channel, FileChannel.MapMode mode,
+			long position, int size, boolean wide) throws IOException {
+		int wordShift = wide ? 3 : 2;
+
+		ByteBuffer[] segments = new ByteBuffer[OffHeap.segmentCount(size)];
+		for (int i = 0; i < segments.length; i++) {
+			long first = (long) i << OffHeap.SEGMENT_SHIFT;
+			segments[i] = channel.map(mode, position + (first << wordShift),
+					OffHeap.segmentWords(size, i) << wordShift).order(
+					ByteOrder.LITTLE_ENDIAN);
+		}
+
+		return new OffHeap(size, wordShift, segments);
+	}
+
+	/**
+	 * @return Number of words that fit in the image.
+	 */
+	abstract int size();
+
+	abstract long get(int index);
+
+	/**
+	 * Sets the given word, which is truncated to an int in images of ints
+	 * (as words of 4 decimal digits always were).
+	 */
+	abstract void set(int index, long word);
+
+	/**
+	 * @return True if the words take 8 bytes rather than 4.
+	 */
+	abstract boolean isWide();
+
+	/**
+	 * Copies the given words of another image (as wide as this one).
+	 */
+	void copy(MemoryImage source, int sourceIndex, int index, int length) {
+		for (int i = 0; i < length; i++)
+			this.set(index + i, source.get(sourceIndex + i));
+	}
+
+	private static final class Ints extends MemoryImage {
+		private final int[] words;
+
+		Ints(int size) {
+			this.words = new int[size];
+		}
+
+		int size() {
+			return this.words.length;
+		}
+
+		long get(int index) {
+			return this.words[index];
+		}
+
+		void set(int index, long word) {
+			this.words[index] = (int) word;
+		}
+
+		boolean isWide() {
+			return false;
+		}
+
+		void copy(MemoryImage source, int sourceIndex, int index, int length) {
+			if (source instanceof Ints)
+				System.arraycopy(((Ints) source).words, sourceIndex,
+						this.words, index, length);
+			else
+				super.copy(source, sourceIndex, index, length);
+		}
+	}
+
+	private static final class Longs extends MemoryImage {
+		private final long[] words;
+
+		Longs(int size) {
+			this.words = new long[size];
+		}
+
+		int size() {
+			return this.words.length;
+		}
+
+		long get(int index) {
+			return this.words[index];
+		}
+
+		void set(int index, long word) {
+			this.words[index] = word;
+		}
+
+		boolean isWide() {
+			return true;
+		}
+
+		void copy(MemoryImage source, int sourceIndex, int index, int length) {
+			if (source instanceof Longs)
+				System.arraycopy(((Longs) source).words, sourceIndex,
+						this.words, index, length);
+			else
+				super.copy(source, sourceIndex, index, length);
+		}
+	}
+
+	/**
+	 * Words in direct or mapped buffers of up to a gigabyte each (a single
+	 * buffer cannot hold more than 2 GB).
+	 */
+	private static final class OffHeap extends MemoryImage {
+		// Words per buffer (a power of two, to find them with shifts)
+		static final int SEGMENT_SHIFT = 27;
+		private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+		private final ByteBuffer[] segments;
+		private final int size;
+		// log2 of the bytes per word
+		private final int wordShift;
+
+		OffHeap(int size, int wordShift, ByteBuffer[] segments) {
+			this.size = size;
+			this.wordShift = wordShift;
+			this.segments = segments;
+		}
+
+		static OffHeap allocate(int size, int wordShift) {
+			ByteBuffer[] segments = new ByteBuffer[segmentCount(size)];
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = ByteBuffer.allocateDirect(
+						segmentWords(size, i) << wordShift).order(
+						ByteOrder.nativeOrder());
+			return new OffHeap(size, wordShift, segments);
+		}
+
+		static int segmentCount(int size) {
+			return (int) (((long) size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+		}
+
+		/**
+		 * @return Number of words in the given buffer of an image.
+		 */
+		static int segmentWords(int size, int segment) {
+			return Math.min(size - (segment << SEGMENT_SHIFT),
+					1 << SEGMENT_SHIFT);
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		long get(int index) {
+			ByteBuffer segment = this.segments[index >>> SEGMENT_SHIFT];
+			int offset = (index & SEGMENT_MASK) << this.wordShift;
+			return this.wordShift == 3 ? segment.getLong(offset) : segment
+					.getInt(offset);
+		}
+
+		void set(int index, long word) {
+			ByteBuffer segment = this.segments[index >>> SEGMENT_SHIFT];
+			int offset = (index & SEGMENT_MASK) << this.wordShift;
+			if (this.wordShift == 3)
+				segment.putLong(offset, word);
+			else
+				segment.putInt(offset, (int) word);
+		}
+
+		boolean isWide() {
+			return this.wordShift == 3;
+		}
+	}
+}
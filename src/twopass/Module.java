@@ -0,0 +1,128 @@
+package twopass;
+
+/**
+ * Represents a single module in the input file, which is composed of a
+ * definition list, a use-list and an instruction list.
+ */
+final class Module {
+	// Parameters used to determine the absolute locations of the relevant
+	// elements (instructions as well as defined symbols)
+	int startLocation;
+	int endLocation;
+	int length;
+
+	// Position of the module in the input (starting from 1)
+	int number;
+
+	// Symbol IDs along with their relative locations, in pairs
+	public IntList definitions;
+	// Symbol IDs
+	public IntList uses;
+	// Index of the module's first instruction in the instruction store
+	// (the rest follow it, up to the length of the module)
+	public int textOffset;
+
+	public Module(int number, int startLocation, int textOffset) {
+		this.number = number;
+		this.startLocation = startLocation;
+		this.endLocation = startLocation;
+		this.length = 0;
+
+		this.definitions = new IntList();
+		this.uses = new IntList();
+		this.textOffset = textOffset;
+	}
+
+	public void addDefinition(int symbolId, int location) {
+		this.definitions.add(symbolId);
+		this.definitions.add(location);
+	}
+
+	public void addUse(int symbolId) {
+		this.uses.add(symbolId);
+	}
+
+	public void addInstruction(InstructionStore instructions,
+			char classification, int opcode, int address) {
+		instructions.add(classification, opcode, address);
+
+		// Absolute locations/addresses are determined by the number of
+		// instructions in the program
+		this.length++;
+		this.endLocation = this.startLocation + this.length - 1;
+	}
+
+	/**
+	 * Moves a module that was read on its own (as part of a chunk of the
+	 * input) to its place among all of the modules.
+	 * 
+	 * @param symbolIds
+	 *            Maps the IDs of the chunk's symbol table to those of the
+	 *            global one.
+	 */
+	public void rebase(int moduleBase, int locationBase, int textBase,
+			int[] symbolIds) {
+		this.number += moduleBase;
+		this.startLocation += locationBase;
+		this.endLocation += locationBase;
+		this.textOffset += textBase;
+
+		for (int i = 0; i < this.definitions.size(); i += 2)
+			this.definitions.set(i, symbolIds[this.definitions.get(i)]);
+		for (int i = 0; i < this.uses.size(); i++)
+			this.uses.set(i, symbolIds[this.uses.get(i)]);
+	}
+
+	/**
+	 * @return The same module (sharing its definitions and uses, which must
+	 *         not be modified) at another position of the input.
+	 */
+	public Module moveTo(int number, int startLocation, int textOffset) {
+		return new Module(this, number, startLocation, textOffset);
+	}
+
+	private Module(Module other, int number, int startLocation,
+			int textOffset) {
+		this.number = number;
+		this.startLocation = startLocation;
+		this.endLocation = startLocation
+				+ (other.endLocation - other.startLocation);
+		this.length = other.length;
+
+		this.definitions = other.definitions;
+		this.uses = other.uses;
+		this.textOffset = textOffset;
+	}
+
+	/**
+	 * Describes the module, looking up its symbols and text in the given
+	 * structures, with words made as the given machine makes them.
+	 */
+	public String toString(SymbolTable symbols, InstructionStore instructions,
+			MachineGeometry geometry) {
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("Start: " + this.startLocation + "\n");
+		sb.append("End: " + this.endLocation + "\n");
+		sb.append("Length: " + this.length + "\n");
+
+		sb.append("Defs: " + this.definitions.size() / 2 + "\n");
+		for (int i = 0; i < this.definitions.size(); i += 2)
+			sb.append("\t" + symbols.name(this.definitions.get(i)) + "="
+					+ this.definitions.get(i + 1) + "\n");
+
+		sb.append("Uses: " + this.uses.size() + "\n");
+		for (int i = 0; i < this.uses.size(); i++)
+			sb.append("\t" + symbols.name(this.uses.get(i)) + "\n");
+
+		sb.append("Text: " + this.length + "\n");
+		for (int i = this.textOffset; i < this.textOffset + this.length; i++)
+			sb.append("\t" + instructions.classification(i) + ": "
+					+ geometry.word(instructions.opcode(i),
+							instructions.address(i)) + "\n");
+
+		return sb.toString();
+
+	}
+}
@@ -0,0 +1,187 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * The modules of an object file or of a library archive, as laid out in
+ * both (every value is a little-endian int):
+ * <ul>
+ * <li>Directory: length, number of definitions, offset of the definitions,
+ * number of uses and offset of the body of every module.</li>
+ * <li>Definitions: name and relative location of every definition.</li>
+ * <li>Bodies: use list (names) followed by the program text, one packed
+ * word per instruction (classification in the top byte, opcode in the next
+ * one and address in the low 16 bits).</li>
+ * </ul>
+ * Names are stored as whatever the file refers to them by (an index in its
+ * table of names, or an offset), which the file translates once they are
+ * read.
+ */
+final class ModuleDirectory {
+	static final int ENTRY_SIZE = 20;
+
+	private final ByteBuffer buffer;
+	// Offset of the directory
+	private final int directory;
+
+	ModuleDirectory(ByteBuffer buffer, int directory) {
+		this.buffer = buffer;
+		this.directory = directory;
+	}
+
+	/**
+	 * @return Whether the given file starts with the given (little-endian)
+	 *         magic number.
+	 */
+	static boolean startsWith(FileChannel channel, int magic)
+			throws IOException {
+
+		ByteBuffer start = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		while (start.hasRemaining())
+			if (channel.read(start, start.position()) < 0)
+				return false;
+
+		return start.getInt(0) == magic;
+
+	}
+
+	/**
+	 * Reads what the first pass needs from a module: its length and its
+	 * definitions, whose names are those stored in the file.
+	 *
+	 * @return The module, without any uses or text.
+	 */
+	Module readHeader(int index, int number, int startLocation, int textOffset) {
+
+		int entry = this.directory + index * ENTRY_SIZE;
+
+		Module module = new Module(number, startLocation, textOffset);
+		module.length = this.buffer.getInt(entry);
+		module.endLocation = startLocation + Math.max(module.length - 1, 0);
+
+		int definitionCount = this.buffer.getInt(entry + 4);
+		int offset = this.buffer.getInt(entry + 8);
+		for (int i = 0; i < definitionCount; i++, offset += 8)
+			module.addDefinition(this.buffer.getInt(offset),
+					this.buffer.getInt(offset + 4));
+
+		return module;
+
+	}
+
+	/**
+	 * Reads the use list (names as stored in the file) and the program text
+	 * of a module whose header was read, adding its text to the end of the
+	 * given store (which should be at the module's text offset).
+	 */
+	void readBody(int index, Module module, InstructionStore instructions) {
+
+		int entry = this.directory + index * ENTRY_SIZE;
+
+		int useCount = this.buffer.getInt(entry + 12);
+		int offset = this.buffer.getInt(entry + 16);
+		for (int i = 0; i < useCount; i++, offset += 4)
+			module.addUse(this.buffer.getInt(offset));
+
+		for (int i = 0; i < module.length; i++, offset += 4) {
+			int word = this.buffer.getInt(offset);
+			instructions.add((char) (word >>> 24), (byte) (word >>> 16),
+					word & 0xFFFF);
+		}
+
+	}
+
+	/**
+	 * Checks that every instruction of a program can be packed (its address
+	 * fits in 16 bits), before anything is written.
+	 *
+	 * @param file
+	 *            Kind of file being written (e.g. "object file"), for the
+	 *            error message.
+	 */
+	static void checkPackable(ObjectProgram program, String file)
+			throws IOException {
+
+		InstructionStore instructions = program.instructions;
+		for (Module module : program.modules)
+			for (int i = module.textOffset; i < module.textOffset
+					+ module.length; i++)
+				if (instructions.address(i) < 0
+						|| instructions.address(i) > 0xFFFF)
+					throw new IOException("Address " + instructions.address(i)
+							+ " in module " + module.number
+							+ " cannot be packed into the " + file);
+
+	}
+
+	/**
+	 * Writes the directory, definitions and bodies of the given modules,
+	 * starting at the given offset in the file.
+	 *
+	 * @param names
+	 *            What the file stores for the name of every symbol ID, or
+	 *            null to store the IDs themselves.
+	 * @param file
+	 *            Kind of file being written, for the error message.
+	 * @throws IOException
+	 *             If the file would be larger than 2 GiB, besides any error
+	 *             of the stream.
+	 */
+	static void write(ReportWriter out, List<Module> modules,
+			InstructionStore instructions, long offset, int[] names,
+			String file) throws IOException {
+
+		// The definitions follow the directory, and the bodies follow them
+		offset += (long) modules.size() * ENTRY_SIZE;
+		long bodyOffset = offset;
+		for (Module module : modules)
+			bodyOffset += module.definitions.size() * 4L;
+
+		for (Module module : modules) {
+			out.writeIntLE(module.length);
+			out.writeIntLE(module.definitions.size() / 2);
+			out.writeIntLE(checkOffset(offset, file));
+			out.writeIntLE(module.uses.size());
+			out.writeIntLE(checkOffset(bodyOffset, file));
+
+			offset += module.definitions.size() * 4L;
+			bodyOffset += (module.uses.size() + module.length) * 4L;
+		}
+		checkOffset(bodyOffset, file);
+
+		for (Module module : modules)
+			for (int i = 0; i < module.definitions.size(); i += 2) {
+				out.writeIntLE(name(names, module.definitions.get(i)));
+				out.writeIntLE(module.definitions.get(i + 1));
+			}
+
+		for (Module module : modules) {
+			for (int i = 0; i < module.uses.size(); i++)
+				out.writeIntLE(name(names, module.uses.get(i)));
+
+			for (int i = module.textOffset; i < module.textOffset
+					+ module.length; i++)
+				out.writeIntLE(instructions.classification(i) << 24
+						| (instructions.opcode(i) & 0xFF) << 16
+						| instructions.address(i));
+		}
+
+	}
+
+	private static int name(int[] names, int symbolId) {
+		return names != null ? names[symbolId] : symbolId;
+	}
+
+	/**
+	 * @return The given offset, which must fit in an int.
+	 */
+	static int checkOffset(long offset, String file) throws IOException {
+		if (offset > Integer.MAX_VALUE)
+			throw new IOException("The " + file + " would be larger than 2 GiB");
+		return (int) offset;
+	}
+}
@@ -0,0 +1,254 @@
+package twopass;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Reads modules from a sequence of tokens into definitions, uses and
+ * instructions, keeping track of the parts of the symbols / instructions /
+ * module that are incomplete across tokens.
+ * <p>
+ * The whole input is either read by a single parser, or split into chunks
+ * which are read at the same time by parsers with structures of their own,
+ * to be merged afterwards.
+ */
+final class ModuleParser {
+
+	/**
+	 * Receives each module as soon as it is complete.
+	 */
+	interface Listener {
+		void moduleRead(Module module) throws IOException;
+	}
+
+	// Shape of the words of the instructions
+	private final MachineGeometry geometry;
+	final SymbolTable symbols;
+	final InstructionStore instructions;
+	// Modules read (null if they are not to be kept)
+	final ArrayList<Module> modules;
+	// Notified of each module as soon as it is complete (may be null)
+	private final Listener listener;
+
+	// Last-visited and incomplete items as the data is being processed
+	// (used to hold parts of the symbols / instructions / module across
+	// iterations).
+	private int tempSymbolId;
+	private char tempClassification;
+	Module currModule;
+	private int moduleCount;
+	// Location of the first module (when the input follows other inputs)
+	private int firstLocation;
+	// Number of tokens read
+	long tokenCount;
+
+	public ModuleParser(MachineGeometry geometry, SymbolTable symbols,
+			InstructionStore instructions, ArrayList<Module> modules,
+			Listener listener) {
+		this.geometry = geometry;
+		this.symbols = symbols;
+		this.instructions = instructions;
+		this.modules = modules;
+		this.listener = listener;
+	}
+
+	/**
+	 * Numbers the modules that are read from now on as if they followed the
+	 * given number of modules, the first of them starting at the given
+	 * location (for inputs that follow other inputs).
+	 */
+	public void continueAfter(int moduleCount, int nextLocation) {
+		this.moduleCount = moduleCount;
+		this.firstLocation = nextLocation;
+	}
+
+	public int moduleCount() {
+		return this.moduleCount;
+	}
+
+	/**
+	 * @return Location at which a module following those read so far would
+	 *         start.
+	 */
+	public int nextLocation() {
+		return this.currModule == null ? this.firstLocation
+				: this.currModule.endLocation + 1;
+	}
+
+	/**
+	 * Reads all of the modules from the given tokens.
+	 * <p>
+	 * In order to read the data, knowledge about the format of the file is
+	 * used to, for example, expect two elements per definition (a symbol
+	 * and a relative location).
+	 */
+	public void parse(Tokenizer tokens) throws IOException {
+		// Type that will be visited first
+		DataKind nextType = DataKind.getFirst();
+
+		int remainingDefinitions = 0;
+		int remainingUses = 0;
+		int remainingInstructions = 0;
+
+		while (tokens.next()) {
+
+			if (remainingDefinitions > 0) {
+				if (remainingDefinitions % 2 == 0)
+					this.processDefinitionSymbol(this.symbols.intern(tokens));
+				else
+					this.processDefinitionLocation(tokens.intValue());
+
+				remainingDefinitions--;
+				if (remainingDefinitions == 0)
+					nextType = nextType.getNext();
+				continue;
+			}
+
+			else if (remainingUses > 0) {
+				this.processUse(this.symbols.intern(tokens));
+
+				remainingUses--;
+				if (remainingUses == 0)
+					nextType = nextType.getNext();
+				continue;
+			}
+
+			else if (remainingInstructions > 0) {
+				if (remainingInstructions % 2 == 0)
+					this.processInstruction(tokens.firstChar());
+				else
+					this.processInstruction(this.geometry.opcode(tokens),
+							this.geometry.address(tokens));
+
+				remainingInstructions--;
+				if (remainingInstructions == 0)
+					nextType = nextType.getNext();
+				continue;
+			}
+
+			// Only case left: a "remaining" counter
+			// (the number right before the definitions, uses,
+			// instructions...)
+			else {
+				// Start a new module when the next type is DEFINITIONS
+				// regardless of whether there are actual definitions or not
+				if (nextType == DataKind.DEFINITIONS) {
+					this.analyzeLastModule();
+					this.initializeModule();
+				}
+
+				// Check whatever nextType is and update that value
+				int numNewElements = tokens.intValue();
+				// Nothing to see here... move along
+				if (numNewElements == 0)
+					nextType = nextType.getNext();
+
+				// Definitions come in groups of two (symbol + location)
+				if (nextType == DataKind.DEFINITIONS)
+					remainingDefinitions = numNewElements * 2;
+
+				// Uses come one at a time
+				else if (nextType == DataKind.USES)
+					remainingUses = numNewElements;
+
+				// Instructions come in groups of two (type + word)
+				else if (nextType == DataKind.INSTRUCTIONS)
+					remainingInstructions = numNewElements * 2;
+			}
+		}
+
+		// After iterating through all of the elements, make sure
+		// that the last module is analyzed
+		this.analyzeLastModule();
+
+		this.tokenCount += tokens.count();
+	}
+
+	/**
+	 * Called each time a new module is recognized. Creates a new instance
+	 * whose reference is saved onto a temporary variable to allow other
+	 * parts of the module to extend it, and adds it to the list.
+	 */
+	private void initializeModule() {
+
+		// Get its starting location on memory, which is equivalent to the
+		// final word of the previous module + 1 (if there are no modules,
+		// it's 0 unless the input follows other inputs)
+		int startLocation = this.nextLocation();
+
+		this.moduleCount++;
+		this.currModule = new Module(this.moduleCount, startLocation,
+				this.instructions.size());
+		// Add it to the list of modules (it will be updated elsewhere
+		// through the reference to this.currModule)
+		if (this.modules != null)
+			this.modules.add(this.currModule);
+
+	}
+
+	/**
+	 * Hands the last module over to the listener once it is complete.
+	 */
+	private void analyzeLastModule() throws IOException {
+
+		// Assuming that modules have been read (that this isn't the
+		// start of the program)
+		if (this.listener != null && this.currModule != null)
+			this.listener.moduleRead(this.currModule);
+
+	}
+
+	/**
+	 * Provided the (interned) SYMBOL part of a definition, saves it onto
+	 * the temporary variable (it will be seen again when interpreting the
+	 * LOCATION part).
+	 */
+	private void processDefinitionSymbol(int symbolId) {
+
+		this.tempSymbolId = symbolId;
+
+	}
+
+	/**
+	 * Provided the LOCATION part of a definition, assembles the full
+	 * definition from the temporary variable and adds it to the module's
+	 * list of definitions.
+	 */
+	private void processDefinitionLocation(int location) {
+
+		this.currModule.addDefinition(this.tempSymbolId, location);
+
+	}
+
+	/**
+	 * Considering that a use is represented by a single entity, it just
+	 * needs to be added to the relevant module's list.
+	 */
+	private void processUse(int symbolId) {
+
+		this.currModule.addUse(symbolId);
+
+	}
+
+	/**
+	 * Provided the TYPE part of an instruction, saves its classification
+	 * onto the temporary variable (it will be seen again when interpreting
+	 * the WORD part).
+	 */
+	private void processInstruction(char classification) {
+
+		this.tempClassification = classification;
+
+	}
+
+	/**
+	 * Provided the WORD part of an instruction (already split into its
+	 * opcode and address), adds the full instruction to the module's text.
+	 */
+	private void processInstruction(int opcode, int address) {
+
+		this.currModule.addInstruction(this.instructions,
+				this.tempClassification, opcode, address);
+
+	}
+}
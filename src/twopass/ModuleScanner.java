@@ -0,0 +1,66 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Quickly goes through the tokens of a text input, only parsing the counters
+ * in order to skip the elements they announce, to find where its modules
+ * start without reading them (for splitting the input into chunks, or into
+ * single modules).
+ */
+final class ModuleScanner {
+
+	private ModuleScanner() {
+	}
+
+	/**
+	 * @param minSpacing
+	 *            Minimum number of bytes between two of the offsets returned
+	 *            (0 for the start of every module).
+	 * @return Offsets at which the first module and then the first module
+	 *         after every minSpacing bytes start, followed by the size of the
+	 *         file.
+	 */
+	static long[] findModules(FileChannel channel, long minSpacing)
+			throws IOException {
+
+		long[] boundaries = new long[16];
+		int count = 0;
+		long nextBoundary = 0;
+
+		Tokenizer tokens = new Tokenizer(channel);
+		DataKind nextType = DataKind.getFirst();
+		long remaining = 0;
+		while (tokens.next()) {
+
+			if (remaining > 0) {
+				remaining--;
+				if (remaining == 0)
+					nextType = nextType.getNext();
+				continue;
+			}
+
+			// A new module starts at every DEFINITIONS counter
+			if (nextType == DataKind.DEFINITIONS
+					&& tokens.offset() >= nextBoundary) {
+				if (count + 1 == boundaries.length)
+					boundaries = Arrays.copyOf(boundaries, count * 2);
+				boundaries[count++] = tokens.offset();
+				nextBoundary = tokens.offset() + minSpacing;
+			}
+
+			int numNewElements = tokens.intValue();
+			if (numNewElements == 0)
+				nextType = nextType.getNext();
+			else if (nextType == DataKind.USES)
+				remaining = numNewElements;
+			else
+				remaining = numNewElements * 2L;
+		}
+
+		boundaries[count++] = channel.size();
+		return Arrays.copyOf(boundaries, count);
+	}
+}
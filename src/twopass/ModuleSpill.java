@@ -0,0 +1,129 @@
+package twopass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Temporary file onto which the streaming mode writes the uses and the
+ * program text of each module once pass one is done with it, so that pass
+ * two can read the modules back one at a time instead of keeping all of
+ * them in memory.
+ * <p>
+ * Each module is stored as its number, start location, use list (count
+ * followed by the symbol IDs, or by their names when the symbol table does
+ * not outlive the module) and program text (count followed by the
+ * classification, opcode and address of every instruction).
+ */
+final class ModuleSpill implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path path;
+	// Store from which the text of the modules is written and into which
+	// it is read back
+	private final InstructionStore instructions;
+	private DataOutputStream out;
+	private DataInputStream in;
+
+	// Modules written and not yet read back
+	private int pendingModules;
+
+	public ModuleSpill(InstructionStore instructions) throws IOException {
+		this.instructions = instructions;
+		this.path = Files.createTempFile("twopass-", ".spill");
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(this.path), BUFFER_SIZE));
+	}
+
+	public void write(Module module) throws IOException {
+		this.write(module, null);
+	}
+
+	/**
+	 * Writes a module with the names of its uses, looked up in the given
+	 * table, rather than their IDs (unless the table is null).
+	 */
+	public void write(Module module, SymbolTable symbols) throws IOException {
+		this.out.writeInt(module.number);
+		this.out.writeInt(module.startLocation);
+
+		this.out.writeInt(module.uses.size());
+		for (int i = 0; i < module.uses.size(); i++)
+			if (symbols != null)
+				this.out.writeUTF(symbols.name(module.uses.get(i)));
+			else
+				this.out.writeInt(module.uses.get(i));
+
+		InstructionStore instructions = this.instructions;
+		this.out.writeInt(module.length);
+		for (int i = module.textOffset; i < module.textOffset
+				+ module.length; i++) {
+			this.out.writeByte(instructions.classification(i));
+			this.out.writeByte(instructions.opcode(i));
+			this.out.writeInt(instructions.address(i));
+		}
+
+		this.pendingModules++;
+	}
+
+	/**
+	 * Finishes writing and starts reading the modules from the beginning.
+	 */
+	public void rewind() throws IOException {
+		this.out.close();
+		this.in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(this.path), BUFFER_SIZE));
+	}
+
+	/**
+	 * @return The next module (without its definitions), or null once all
+	 *         of them have been read. Its text replaces whatever was in the
+	 *         instruction store.
+	 */
+	public Module read() throws IOException {
+		return this.read(null);
+	}
+
+	/**
+	 * Same as {@link #read()} for modules written with the names of their
+	 * uses, which are interned in the given table (unless it is null).
+	 */
+	public Module read(SymbolTable symbols) throws IOException {
+		if (this.pendingModules == 0)
+			return null;
+		this.pendingModules--;
+
+		InstructionStore instructions = this.instructions;
+		instructions.clear();
+
+		Module module = new Module(this.in.readInt(), this.in.readInt(), 0);
+
+		int numUses = this.in.readInt();
+		for (int i = 0; i < numUses; i++)
+			module.addUse(symbols != null ? symbols.intern(this.in.readUTF())
+					: this.in.readInt());
+
+		int numInstructions = this.in.readInt();
+		for (int i = 0; i < numInstructions; i++) {
+			char classification = (char) this.in.readByte();
+			int opcode = this.in.readByte();
+			int address = this.in.readInt();
+			module.addInstruction(instructions, classification, opcode,
+					address);
+		}
+
+		return module;
+	}
+
+	public void close() throws IOException {
+		this.out.close();
+		if (this.in != null)
+			this.in.close();
+		Files.deleteIfExists(this.path);
+	}
+}
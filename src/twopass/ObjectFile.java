@@ -0,0 +1,179 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Precompiled object modules: the binary counterpart of the text input,
+ * which is read through a memory mapping instead of being tokenized.
+ * <p>
+ * Every value is a little-endian int unless noted otherwise:
+ * <ul>
+ * <li>Header: "TPOB", format version, number of modules and number of
+ * symbol names.</li>
+ * <li>Names: length (2 bytes) and ASCII characters of every symbol name,
+ * whose position in this table is its ID within the file.</li>
+ * <li>Module directory, definitions and bodies (see
+ * {@link ModuleDirectory}), with names given by their IDs.</li>
+ * </ul>
+ * The names, the directory and the definitions come first, so the symbol
+ * table and the base addresses can be computed from the front of the file.
+ */
+final class ObjectFile {
+	static final int MAGIC = 0x424F5054; // "TPOB"
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 16;
+
+	private final ByteBuffer buffer;
+	private final int moduleCount;
+	private final String[] names;
+	private final ModuleDirectory modules;
+
+	/**
+	 * @return Whether the given file starts like an object file (text inputs
+	 *         start with a number).
+	 */
+	static boolean isObjectFile(FileChannel channel) throws IOException {
+		return ModuleDirectory.startsWith(channel, MAGIC);
+	}
+
+	/**
+	 * Maps the given object file and reads its names.
+	 *
+	 * @throws IOException
+	 *             If the file is not an object file of a supported version.
+	 */
+	ObjectFile(FileChannel channel) throws IOException {
+
+		if (channel.size() > Integer.MAX_VALUE)
+			throw new IOException("Object file larger than 2 GiB");
+
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+		if (this.buffer.getInt(0) != MAGIC)
+			throw new IOException("Not an object file");
+		if (this.buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported object file version "
+					+ this.buffer.getInt(4));
+
+		this.moduleCount = this.buffer.getInt(8);
+		this.names = new String[this.buffer.getInt(12)];
+
+		int offset = HEADER_SIZE;
+		for (int id = 0; id < this.names.length; id++) {
+			byte[] name = new byte[this.buffer.getShort(offset) & 0xFFFF];
+			offset += 2;
+			for (int i = 0; i < name.length; i++)
+				name[i] = this.buffer.get(offset++);
+			this.names[id] = new String(name, StandardCharsets.US_ASCII);
+		}
+		this.modules = new ModuleDirectory(this.buffer, offset);
+
+	}
+
+	int moduleCount() {
+		return this.moduleCount;
+	}
+
+	/**
+	 * @return The name with the given ID within the file.
+	 */
+	String name(int id) {
+		return this.names[id];
+	}
+
+	/**
+	 * @return The IDs in the given table of the names of the file, which are
+	 *         interned if needed.
+	 */
+	int[] internNames(SymbolTable symbols) {
+
+		int[] symbolIds = new int[this.names.length];
+		for (int id = 0; id < symbolIds.length; id++)
+			symbolIds[id] = symbols.intern(this.names[id]);
+		return symbolIds;
+
+	}
+
+	/**
+	 * Reads what the first pass needs from a module: its length and its
+	 * definitions.
+	 *
+	 * @param symbolIds
+	 *            IDs of the names of the file, as returned by internNames, or
+	 *            null to keep their IDs within the file (see name).
+	 * @return The module, without any uses or text.
+	 */
+	Module readHeader(int index, int[] symbolIds, int number,
+			int startLocation, int textOffset) {
+
+		Module module = this.modules.readHeader(index, number, startLocation,
+				textOffset);
+		if (symbolIds != null)
+			for (int i = 0; i < module.definitions.size(); i += 2)
+				module.definitions.set(i, symbolIds[module.definitions.get(i)]);
+
+		return module;
+
+	}
+
+	/**
+	 * Reads the use list and the program text of a module whose header was
+	 * read, adding its text to the end of the given store (which should be
+	 * at the module's text offset). The IDs of its uses are those of
+	 * readHeader.
+	 */
+	void readBody(int index, Module module, int[] symbolIds,
+			InstructionStore instructions) {
+
+		this.modules.readBody(index, module, instructions);
+		if (symbolIds != null)
+			for (int i = 0; i < module.uses.size(); i++)
+				module.uses.set(i, symbolIds[module.uses.get(i)]);
+
+	}
+
+	/**
+	 * Writes the modules of a program as an object file.
+	 *
+	 * @throws IOException
+	 *             If an instruction cannot be packed (its address does not
+	 *             fit in 16 bits), besides any error of the stream.
+	 */
+	static void write(ObjectProgram program, OutputStream stream)
+			throws IOException {
+
+		SymbolTable symbols = program.symbols;
+
+		ModuleDirectory.checkPackable(program, "object file");
+
+		ReportWriter out = new ReportWriter(stream);
+
+		out.writeIntLE(MAGIC);
+		out.writeIntLE(VERSION);
+		out.writeIntLE(program.modules.size());
+		out.writeIntLE(symbols.size());
+
+		long offset = HEADER_SIZE;
+		for (int id = 0; id < symbols.size(); id++) {
+			String name = symbols.name(id);
+			if (name.length() > 0xFFFF)
+				throw new IOException("Symbol name longer than 65535 characters");
+			out.writeShortLE(name.length());
+			out.print(name);
+			offset += 2 + name.length();
+		}
+
+		ModuleDirectory.write(out, program.modules, program.instructions,
+				offset, null, "object file");
+
+		out.flush();
+
+	}
+}
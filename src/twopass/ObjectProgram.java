@@ -0,0 +1,376 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Series of object modules read from one or more inputs, with the base
+ * address of every module, the names of the symbols they define and use and
+ * their program text.
+ * <p>
+ * A program is not modified once it is read (linking it works on structures
+ * of its own), so it may be linked any number of times, from any number of
+ * threads.
+ */
+public final class ObjectProgram {
+	// Inputs are only read in parallel chunks of at least this many bytes
+	private static final long MIN_CHUNK_SIZE = 1L << 22;
+
+	final ArrayList<Module> modules;
+	final SymbolTable symbols;
+	final InstructionStore instructions;
+	// Geometry with which the words of the text inputs were split
+	final MachineGeometry geometry;
+
+	// Number of tokens read from the text inputs
+	long tokenCount;
+
+	ObjectProgram(MachineGeometry geometry, ArrayList<Module> modules,
+			SymbolTable symbols, InstructionStore instructions) {
+		this.geometry = geometry;
+		this.modules = modules;
+		this.symbols = symbols;
+		this.instructions = instructions;
+	}
+
+	public int getModuleCount() {
+		return this.modules.size();
+	}
+
+	public int getWordCount() {
+		return this.instructions.size();
+	}
+
+	/**
+	 * Reads the given inputs, in order, as a single series of modules
+	 * (numbered and placed one after another): text inputs are split into
+	 * modules, computing their base addresses and interning the names of
+	 * their symbols, and object files are read as they are.
+	 * <p>
+	 * Several inputs are read at the same time, each into modules of its
+	 * own, which are then moved to their place in order (as the chunks of a
+	 * large text input are), so the program is the same as if they had been
+	 * read one after another.
+	 * <p>
+	 * The words of text inputs are split into opcodes and addresses as the
+	 * given machine expects (object files keep them as they were split when
+	 * compiled).
+	 * <p>
+	 * Library archives among the inputs only add, after all of the other
+	 * modules, the members needed to define the symbols that those modules
+	 * use (see resolveArchives).
+	 *
+	 * @throws IOException
+	 *             If a file-path that was provided did not lead to a readable
+	 *             file.
+	 */
+	static ObjectProgram read(List<LinkInput> inputs,
+			MachineGeometry geometry) throws IOException {
+
+		List<LibraryArchive> archives = new ArrayList<LibraryArchive>();
+		List<LinkInput> modules = new ArrayList<LinkInput>(inputs.size());
+		for (LinkInput input : inputs) {
+			LibraryArchive archive = openArchive(input);
+			if (archive != null)
+				archives.add(archive);
+			else
+				modules.add(input);
+		}
+
+		ObjectProgram program = readModules(modules, geometry);
+		if (!archives.isEmpty())
+			program.resolveArchives(archives);
+		return program;
+	}
+
+	/**
+	 * @return The given input as a library archive, or null if it is not one.
+	 */
+	private static LibraryArchive openArchive(LinkInput input)
+			throws IOException {
+
+		if (input.getPath() == null)
+			return null;
+
+		try (FileChannel channel = FileChannel.open(input.getPath(),
+				StandardOpenOption.READ)) {
+			return LibraryArchive.isArchive(channel) ? new LibraryArchive(
+					channel) : null;
+		}
+	}
+
+	private static ObjectProgram readModules(List<LinkInput> inputs,
+			final MachineGeometry geometry) throws IOException {
+
+		ObjectProgram program = new ObjectProgram(geometry,
+				new ArrayList<Module>(), new SymbolTable(),
+				new InstructionStore());
+
+		if (inputs.size() < 2 || ForkJoinPool.getCommonPoolParallelism() < 2) {
+			int nextLocation = 0;
+			for (LinkInput input : inputs)
+				nextLocation = program.readInput(input, nextLocation);
+			return program;
+		}
+
+		List<ForkJoinTask<ObjectProgram>> tasks = new ArrayList<ForkJoinTask<ObjectProgram>>();
+		for (final LinkInput input : inputs) {
+			tasks.add(ForkJoinPool.commonPool().submit(
+					new Callable<ObjectProgram>() {
+						public ObjectProgram call() throws IOException {
+							ObjectProgram part = new ObjectProgram(geometry,
+									new ArrayList<Module>(),
+									new SymbolTable(), new InstructionStore());
+							part.readInput(input, 0);
+							return part;
+						}
+					}));
+		}
+
+		int nextLocation = 0;
+		for (ForkJoinTask<ObjectProgram> task : tasks) {
+			ObjectProgram part = join(task);
+
+			// Inputs without modules leave the next location as it was
+			int partLocation = part.modules.isEmpty() ? 0 : part.modules
+					.get(part.modules.size() - 1).endLocation + 1;
+			program.append(part.modules, part.symbols, part.instructions,
+					nextLocation);
+			program.tokenCount += part.tokenCount;
+			nextLocation += partLocation;
+		}
+
+		return program;
+	}
+
+	/**
+	 * Adds to the end of the program the members of the given archives that
+	 * define a symbol that its modules use but do not define, then those
+	 * needed by the members that were added, and so on until every use is
+	 * defined or cannot be. Every undefined symbol is looked up once, in the
+	 * archives in order, and the first one that indexes it gives the member.
+	 */
+	private void resolveArchives(List<LibraryArchive> archives) {
+
+		int nextLocation = this.modules.isEmpty() ? 0 : this.modules
+				.get(this.modules.size() - 1).endLocation + 1;
+
+		// Symbols that are defined, or were looked up, so far
+		BitSet resolved = new BitSet();
+		for (Module module : this.modules)
+			for (int i = 0; i < module.definitions.size(); i += 2)
+				resolved.set(module.definitions.get(i));
+
+		BitSet[] taken = new BitSet[archives.size()];
+		for (int a = 0; a < taken.length; a++)
+			taken[a] = new BitSet(archives.get(a).memberCount());
+
+		// The members that are added are scanned in turn, like the others
+		for (int m = 0; m < this.modules.size(); m++) {
+			IntList uses = this.modules.get(m).uses;
+			for (int i = 0; i < uses.size(); i++) {
+				if (resolved.get(uses.get(i)))
+					continue;
+				resolved.set(uses.get(i));
+
+				String name = this.symbols.name(uses.get(i));
+				for (int a = 0; a < archives.size(); a++) {
+					int member = archives.get(a).lookup(name);
+					if (member < 0)
+						continue;
+
+					if (!taken[a].get(member)) {
+						taken[a].set(member);
+						Module module = archives.get(a).readMember(member,
+								this.symbols, this.modules.size() + 1,
+								nextLocation, this.instructions);
+						for (int d = 0; d < module.definitions.size(); d += 2)
+							resolved.set(module.definitions.get(d));
+						this.modules.add(module);
+						nextLocation = module.endLocation + 1;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the modules of an input (a file, text or object file, or text
+	 * held in memory).
+	 *
+	 * @return Location at which the module that follows would start.
+	 */
+	private int readInput(LinkInput input, int nextLocation)
+			throws IOException {
+
+		ByteBuffer text = input.text();
+		if (text != null)
+			return this.readText(new Tokenizer(text), nextLocation);
+
+		try (FileChannel channel = FileChannel.open(input.getPath(),
+				StandardOpenOption.READ)) {
+
+			if (ObjectFile.isObjectFile(channel))
+				return this.readObjectFile(new ObjectFile(channel),
+						nextLocation);
+			else
+				return this.readText(channel, nextLocation);
+		}
+	}
+
+	/**
+	 * Adds the modules of an object file, which only needs to look up the
+	 * IDs of its names.
+	 *
+	 * @return Location at which the module that follows would start.
+	 */
+	private int readObjectFile(ObjectFile objectFile, int nextLocation) {
+
+		int[] symbolIds = objectFile.internNames(this.symbols);
+		for (int i = 0; i < objectFile.moduleCount(); i++) {
+			Module module = objectFile.readHeader(i, symbolIds,
+					this.modules.size() + 1, nextLocation,
+					this.instructions.size());
+			objectFile.readBody(i, module, symbolIds, this.instructions);
+			this.modules.add(module);
+			nextLocation = module.endLocation + 1;
+		}
+
+		return nextLocation;
+	}
+
+	/**
+	 * Splits a text input into modules, computing their base addresses and
+	 * interning the names of their symbols.
+	 * <p>
+	 * Large inputs are split into chunks of whole modules which are read in
+	 * parallel. The modules of each chunk are then moved to their place: base
+	 * addresses are offset by those of the previous chunks and the chunk's
+	 * symbols are merged into the global table.
+	 *
+	 * @return Location at which the module that follows would start.
+	 */
+	private int readText(final FileChannel channel, int nextLocation)
+			throws IOException {
+
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		long chunkSize = Math.max(MIN_CHUNK_SIZE, channel.size()
+				/ (parallelism * 4L));
+
+		if (parallelism < 2 || channel.size() < 2 * chunkSize)
+			return this.readText(new Tokenizer(channel), nextLocation);
+
+		long[] boundaries = ModuleScanner.findModules(channel, chunkSize);
+
+		List<ForkJoinTask<ModuleParser>> tasks = new ArrayList<ForkJoinTask<ModuleParser>>();
+		for (int i = 0; i + 1 < boundaries.length; i++) {
+			final long start = boundaries[i];
+			final long end = boundaries[i + 1];
+			tasks.add(ForkJoinPool.commonPool().submit(
+					new Callable<ModuleParser>() {
+						public ModuleParser call() throws IOException {
+							ModuleParser parser = new ModuleParser(
+									ObjectProgram.this.geometry,
+									new SymbolTable(),
+									new InstructionStore(),
+									new ArrayList<Module>(), null);
+							parser.parse(new Tokenizer(channel, start, end));
+							return parser;
+						}
+					}));
+		}
+
+		int locationBase = nextLocation;
+		for (ForkJoinTask<ModuleParser> task : tasks) {
+			ModuleParser chunk = join(task);
+
+			this.append(chunk.modules, chunk.symbols, chunk.instructions,
+					locationBase);
+			this.tokenCount += chunk.tokenCount;
+
+			if (!chunk.modules.isEmpty())
+				locationBase = chunk.currModule.endLocation + 1;
+		}
+
+		return locationBase;
+	}
+
+	/**
+	 * Moves modules that were read on their own (from a chunk of a text
+	 * input, or from another input), numbered and placed from the start, to
+	 * the end of the program: their base addresses are offset by the given
+	 * location, and their symbols and text are merged into those of the
+	 * program.
+	 */
+	private void append(List<Module> modules, SymbolTable symbols,
+			InstructionStore instructions, int locationBase) {
+
+		int[] symbolIds = new int[symbols.size()];
+		for (int id = 0; id < symbolIds.length; id++)
+			symbolIds[id] = this.symbols.intern(symbols.name(id));
+
+		int moduleBase = this.modules.size();
+		int textBase = this.instructions.size();
+		this.instructions.append(instructions);
+
+		for (Module module : modules) {
+			module.rebase(moduleBase, locationBase, textBase, symbolIds);
+			this.modules.add(module);
+		}
+	}
+
+	/**
+	 * @return The value of a task that was submitted, once it is done.
+	 * @throws IOException
+	 *             If the task failed to read its input.
+	 */
+	private static <T> T join(ForkJoinTask<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			// Callables run by a pool have their checked exceptions wrapped
+			// (and wrapped again when they are rethrown on another thread)
+			Throwable cause = e.getCause();
+			while (cause.getClass() == RuntimeException.class
+					&& cause.getCause() != null)
+				cause = cause.getCause();
+
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw (RuntimeException) cause;
+		}
+	}
+
+	/**
+	 * Splits the text read by the given tokenizer into modules, on the
+	 * current thread.
+	 *
+	 * @return Location at which the module that follows would start.
+	 */
+	private int readText(Tokenizer tokens, int nextLocation)
+			throws IOException {
+
+		ModuleParser parser = new ModuleParser(this.geometry, this.symbols,
+				this.instructions, this.modules, null);
+		parser.continueAfter(this.modules.size(), nextLocation);
+		parser.parse(tokens);
+		this.tokenCount += parser.tokenCount;
+		return parser.nextLocation();
+	}
+}
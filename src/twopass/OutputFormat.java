@@ -0,0 +1,20 @@
+package twopass;
+
+/**
+ * Ways in which the results can be written: the human-readable report
+ * (TEXT), a binary image for loaders (BIN), made of a header ("TPLK",
+ * version, number of words and number of symbols), the memory map as
+ * little-endian ints and the symbol table (name length, name, location and
+ * module number of every defined symbol, sorted by name), or only the errors
+ * and warnings as a line of JSON each (NDJSON), in the order of the report.
+ * <p>
+ * Machines whose words may not fit in an int get version 2 of the binary
+ * image, whose words are little-endian longs.
+ */
+public enum OutputFormat {
+	TEXT, BIN, NDJSON;
+
+	static final int BIN_MAGIC = 0x4B4C5054; // "TPLK"
+	static final int BIN_VERSION = 1;
+	static final int BIN_VERSION_WIDE = 2;
+}
@@ -0,0 +1,58 @@
+package twopass;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a run of a phase of a link, with the same data
+ * as {@link LinkStats} (counts that the phase does not record are 0).
+ */
+@Name("twopass.Phase")
+@Label("Link Phase")
+@Category("TwoPass")
+@Description("A phase of a link: parse, setAbsoluteSymbolValues, performSecondPass or displayResults")
+final class PhaseEvent extends Event {
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocatedBytes;
+
+	@Label("Tokens")
+	long tokens;
+	@Label("Modules")
+	long modules;
+	@Label("Symbols")
+	long symbols;
+
+	@Label("Immediate Instructions")
+	long immediate;
+	@Label("Absolute Instructions")
+	long absolute;
+	@Label("Relative Instructions")
+	long relative;
+	@Label("External Instructions")
+	long external;
+
+	@Label("Multiply Defined Symbols")
+	long multiplyDefined;
+	@Label("Relative Addresses Exceeding Module")
+	long relativeAddressErrors;
+	@Label("External Addresses Exceeding Use List")
+	long externalAddressErrors;
+	@Label("Undefined Symbols Used")
+	long undefinedSymbolErrors;
+	@Label("Absolute Addresses Exceeding Machine")
+	long absoluteAddressErrors;
+
+	@Label("Symbols Defined But Never Used")
+	long unusedDefinitions;
+	@Label("Symbols Used But Not In Text")
+	long unusedUses;
+}
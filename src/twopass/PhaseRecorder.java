@@ -0,0 +1,159 @@
+package twopass;
+
+import java.lang.management.ManagementFactory;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Measures a single run of a phase of a link (wall time, bytes allocated by
+ * the thread and the counts added by the phase), to be added to the
+ * statistics of the linker and/or committed as a Flight Recorder event.
+ * <p>
+ * When neither wants it, start returns a recorder which does nothing, so
+ * that the only cost is checking whether it is enabled before counting. The
+ * event class is not even loaded unless the Flight Recorder is running, since
+ * that alone takes longer than linking small inputs.
+ */
+final class PhaseRecorder {
+	private static final PhaseRecorder DISABLED = new PhaseRecorder(null,
+			null, null);
+
+	private final LinkStats stats;
+	private final LinkStats.Phase phase;
+	// Null unless the Flight Recorder is running
+	private final PhaseEvent event;
+
+	private final long startNanos;
+	private final long startBytes;
+	private final long[] counts;
+
+	private PhaseRecorder(LinkStats stats, LinkStats.Phase phase,
+			PhaseEvent event) {
+		this.stats = stats;
+		this.phase = phase;
+		this.event = event;
+
+		if (phase == null) {
+			this.startNanos = 0;
+			this.startBytes = 0;
+			this.counts = null;
+			return;
+		}
+
+		this.counts = new long[LinkStats.Count.values().length];
+		this.startBytes = Allocation.currentThread();
+		if (event != null)
+			event.begin();
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts recording a phase for the given statistics (which may be null)
+	 * and the Flight Recorder.
+	 */
+	static PhaseRecorder start(LinkStats stats, LinkStats.Phase phase) {
+		PhaseEvent event = null;
+		if (FlightRecorder.isInitialized()) {
+			event = new PhaseEvent();
+			if (!event.isEnabled())
+				event = null;
+		}
+
+		if (stats == null && event == null)
+			return DISABLED;
+
+		return new PhaseRecorder(stats, phase, event);
+	}
+
+	/**
+	 * @return False if nothing is recorded, in which case there is no need to
+	 *         count anything.
+	 */
+	boolean isEnabled() {
+		return this != DISABLED;
+	}
+
+	void add(LinkStats.Count count, long n) {
+		this.counts[count.ordinal()] += n;
+	}
+
+	/**
+	 * Ends the phase, adding it to the statistics and committing its event.
+	 */
+	void stop() {
+
+		if (this == DISABLED)
+			return;
+
+		long nanos = System.nanoTime() - this.startNanos;
+		long allocatedBytes = Allocation.currentThread() - this.startBytes;
+
+		if (this.stats != null)
+			this.stats.add(this.phase, nanos, allocatedBytes, this.counts);
+
+		if (this.event == null)
+			return;
+
+		this.event.end();
+		if (this.event.shouldCommit()) {
+			PhaseEvent event = this.event;
+			event.phase = this.phase.getName();
+			event.allocatedBytes = allocatedBytes;
+			event.tokens = this.count(LinkStats.Count.TOKENS);
+			event.modules = this.count(LinkStats.Count.MODULES);
+			event.symbols = this.count(LinkStats.Count.SYMBOLS);
+			event.immediate = this.count(LinkStats.Count.IMMEDIATE);
+			event.absolute = this.count(LinkStats.Count.ABSOLUTE);
+			event.relative = this.count(LinkStats.Count.RELATIVE);
+			event.external = this.count(LinkStats.Count.EXTERNAL);
+			event.multiplyDefined = this
+					.count(LinkStats.Count.MULTIPLY_DEFINED);
+			event.relativeAddressErrors = this
+					.count(LinkStats.Count.RELATIVE_ADDRESS);
+			event.externalAddressErrors = this
+					.count(LinkStats.Count.EXTERNAL_ADDRESS);
+			event.undefinedSymbolErrors = this
+					.count(LinkStats.Count.UNDEFINED_SYMBOL);
+			event.absoluteAddressErrors = this
+					.count(LinkStats.Count.ABSOLUTE_ADDRESS);
+			event.unusedDefinitions = this
+					.count(LinkStats.Count.UNUSED_DEFINITION);
+			event.unusedUses = this.count(LinkStats.Count.UNUSED_USE);
+			event.commit();
+		}
+
+	}
+
+	private long count(LinkStats.Count count) {
+		return this.counts[count.ordinal()];
+	}
+
+	/**
+	 * Bytes allocated by threads, when the JVM can measure them (only loaded
+	 * once something is recorded, since the management classes take a while
+	 * to initialize).
+	 */
+	private static final class Allocation {
+		private static final com.sun.management.ThreadMXBean THREADS;
+
+		static {
+			com.sun.management.ThreadMXBean threads = null;
+			if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+				threads = (com.sun.management.ThreadMXBean) ManagementFactory
+						.getThreadMXBean();
+				if (!threads.isThreadAllocatedMemorySupported()
+						|| !threads.isThreadAllocatedMemoryEnabled())
+					threads = null;
+			}
+			THREADS = threads;
+		}
+
+		/**
+		 * @return Bytes allocated so far by the current thread, or 0 if they
+		 *         cannot be measured.
+		 */
+		static long currentThread() {
+			return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a link result in one of the output formats: the "Symbol Table",
+ * "Memory Map" and warnings sections of the text report, the header, words
+ * and symbols of the binary image, or a line of JSON per error and warning.
+ * <p>
+ * The text of the errors and warnings is only rendered here, from their kind
+ * and arguments.
+ * <p>
+ * The memory map may be written in several ranges (as the modules are
+ * relocated, when streaming), between beginOutput and endOutput.
+ */
+final class Report {
+	private final LinkResult result;
+	private final OutputFormat format;
+	private final ReportWriter out;
+
+	public Report(LinkResult result, OutputFormat format, OutputStream out) {
+		this.result = result;
+		this.format = format;
+		this.out = new ReportWriter(out);
+	}
+
+	/**
+	 * Displays the results into the following sections: "Symbol Table",
+	 * "Memory Map" and warnings (note that an output may feature no warnings at
+	 * all). The symbol table and the memory map may feature logged error
+	 * detection results alongside relevant definitions/instructions.
+	 */
+	public void displayResults() throws IOException {
+
+		this.beginOutput();
+		this.displayMemoryMap(0, 0, this.result.wordCount);
+		this.endOutput();
+
+	}
+
+	/**
+	 * Writes whatever precedes the memory map: the "Symbol Table" section and
+	 * the title of the "Memory Map" one, or the header of the binary image.
+	 */
+	public void beginOutput() throws IOException {
+
+		if (this.format == OutputFormat.BIN) {
+			this.out.writeIntLE(OutputFormat.BIN_MAGIC);
+			this.out.writeIntLE(this.result.memory.isWide()
+					? OutputFormat.BIN_VERSION_WIDE : OutputFormat.BIN_VERSION);
+			this.out.writeIntLE(this.result.wordCount);
+			this.out.writeIntLE(this.result.getSymbolCount());
+			return;
+		}
+
+		if (this.format == OutputFormat.NDJSON) {
+			for (int i = 0; i < this.result.getSymbolCount(); i++)
+				if (this.result.isSymbolMultiplyDefined(i))
+					this.printDiagnostic(Diagnostic.MULTIPLY_DEFINED, -1,
+							this.result.getSymbolName(i), 0);
+			return;
+		}
+
+		this.displaySymbolTable();
+		this.out.println("Memory Map");
+
+	}
+
+	/**
+	 * Writes whatever follows the memory map (the warnings, or the symbol
+	 * table of the binary image) and flushes the output.
+	 */
+	public void endOutput() throws IOException {
+
+		if (this.format == OutputFormat.BIN) {
+			for (int i = 0; i < this.result.getSymbolCount(); i++) {
+				String name = this.result.getSymbolName(i);
+				this.out.writeShortLE(name.length());
+				this.out.print(name);
+				this.out.writeIntLE(this.result.getSymbolLocation(i));
+				this.out.writeIntLE(this.result.getSymbolModule(i));
+			}
+		} else if (this.format == OutputFormat.NDJSON) {
+			this.printWarnings();
+		} else {
+			this.displayWarnings();
+		}
+
+		this.out.flush();
+
+	}
+
+	/**
+	 * Displays the "Symbol Table" section, followed by a blank line.
+	 */
+	private void displaySymbolTable() throws IOException {
+
+		this.out.println("Symbol Table");
+
+		for (int i = 0; i < this.result.getSymbolCount(); i++) {
+			this.out.print(this.result.getSymbolName(i));
+			this.out.print("=");
+			this.out.print(this.result.getSymbolLocation(i));
+
+			if (this.result.isSymbolMultiplyDefined(i)) {
+				this.out.print(" ");
+				Diagnostic.MULTIPLY_DEFINED.print(this.out, null, 0);
+			}
+
+			this.out.println();
+		}
+
+		this.out.println();
+
+	}
+
+	/**
+	 * Displays a range of words of the memory map (or writes them as
+	 * little-endian ints, or longs for wide words, for the binary image, or
+	 * only writes their errors as JSON).
+	 *
+	 * @param counter
+	 *            Address of the first word displayed.
+	 * @param from
+	 *            Index of the first word in the memory map.
+	 * @param to
+	 *            Index that follows the last word in the memory map.
+	 * @return Address that follows the last word displayed.
+	 */
+	public int displayMemoryMap(int counter, int from, int to)
+			throws IOException {
+
+		MemoryImage memory = this.result.memory;
+		DiagnosticTable errors = this.result.wordErrors;
+
+		if (this.format == OutputFormat.BIN) {
+			if (memory.isWide())
+				for (int i = from; i < to; i++)
+					this.out.writeLongLE(memory.get(i));
+			else
+				for (int i = from; i < to; i++)
+					this.out.writeIntLE((int) memory.get(i));
+			return counter + to - from;
+		}
+
+		// Next error of the range, walked alongside the words
+		int entry = errors.find(from);
+		int nextError = entry < errors.size() ? errors.index(entry) : to;
+
+		if (this.format == OutputFormat.NDJSON) {
+			for (; nextError < to; nextError = ++entry < errors.size() ? errors
+					.index(entry) : to)
+				this.printDiagnostic(errors.kind(entry), counter + nextError
+						- from, this.result.wordErrorSymbol(entry), 0);
+			return counter + to - from;
+		}
+
+		for (int i = from; i < to; i++) {
+
+			this.out.printLabel(counter, 3);
+			this.out.print(" ");
+			this.out.print(memory.get(i));
+
+			if (i == nextError) {
+				this.out.print(" ");
+				errors.kind(entry).print(this.out,
+						this.result.wordErrorSymbol(entry), 0);
+				nextError = ++entry < errors.size() ? errors.index(entry) : to;
+			}
+
+			this.out.println();
+			counter++;
+		}
+
+		return counter;
+
+	}
+
+	/**
+	 * Displays the warnings about symbols that were defined but never used and
+	 * about symbols that appeared in a use list but not in the text.
+	 */
+	private void displayWarnings() throws IOException {
+
+		// Avoid printing a line break if no symbols were defined
+		if (this.result.getSymbolCount() > 0)
+			this.out.println();
+
+		this.printWarnings();
+
+	}
+
+	/**
+	 * Writes the warnings about symbols that were defined but never used,
+	 * followed by those about symbols that appeared in a use list but not in
+	 * the text.
+	 */
+	private void printWarnings() throws IOException {
+
+		for (int i = 0; i < this.result.getSymbolCount(); i++)
+			if (!this.result.isSymbolUsed(i))
+				this.printDiagnostic(Diagnostic.UNUSED_DEFINITION, -1,
+						this.result.getSymbolName(i),
+						this.result.getSymbolModule(i));
+
+		for (int i = 0; i < this.result.getUnusedUseCount(); i++)
+			this.printDiagnostic(Diagnostic.UNUSED_USE, -1,
+					this.result.getUnusedUseName(i),
+					this.result.getUnusedUseModule(i));
+
+	}
+
+	/**
+	 * Writes an error or warning: its text on a line of its own, or as a line
+	 * of JSON with its severity, kind, arguments and text.
+	 *
+	 * @param address
+	 *            Address of the word of the error, or -1 if there is none.
+	 */
+	private void printDiagnostic(Diagnostic kind, int address,
+			String symbolName, int moduleNumber) throws IOException {
+
+		if (this.format != OutputFormat.NDJSON) {
+			kind.print(this.out, symbolName, moduleNumber);
+			this.out.println();
+			return;
+		}
+
+		this.out.print("{\"severity\":\"");
+		this.out.print(kind.isError() ? "error" : "warning");
+		this.out.print("\",\"code\":\"");
+		this.out.print(kind.getName());
+		this.out.print("\"");
+		if (address >= 0) {
+			this.out.print(",\"address\":");
+			this.out.print(address);
+		}
+		if (symbolName != null) {
+			this.out.print(",\"symbol\":");
+			this.printJsonString(symbolName);
+		}
+		if (kind == Diagnostic.UNUSED_DEFINITION
+				|| kind == Diagnostic.UNUSED_USE) {
+			this.out.print(",\"module\":");
+			this.out.print(moduleNumber);
+		}
+		this.out.print(",\"message\":");
+		this.printJsonString(kind.getMessage(symbolName, moduleNumber));
+		this.out.println("}");
+
+	}
+
+	/**
+	 * Writes a JSON string (symbols are made of letters, digits and
+	 * underscores, and the messages of ASCII text without quotes, so nothing
+	 * needs to be escaped).
+	 */
+	private void printJsonString(String text) throws IOException {
+
+		this.out.print("\"");
+		this.out.print(text);
+		this.out.print("\"");
+
+	}
+}
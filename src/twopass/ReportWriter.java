@@ -0,0 +1,121 @@
+package twopass;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the results through a large reusable byte buffer, formatting
+ * integers straight into it instead of going through String.format and
+ * the (auto-flushed) System.out for every line.
+ */
+final class ReportWriter {
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[1 << 16];
+	private int count;
+
+	// Digits of the integer being formatted (in reverse order)
+	private final byte[] digits = new byte[20];
+
+	public ReportWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (this.count + bytes > this.buffer.length)
+			this.flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException {
+		this.out.write(this.buffer, 0, this.count);
+		this.count = 0;
+	}
+
+	public void print(String text) throws IOException {
+		for (int start = 0; start < text.length(); start += this.buffer.length) {
+			int end = Math.min(text.length(), start + this.buffer.length);
+			this.ensure(end - start);
+			for (int i = start; i < end; i++) {
+				char c = text.charAt(i);
+				this.buffer[this.count++] = (byte) (c < 0x80 ? c : '?');
+			}
+		}
+	}
+
+	public void print(long value) throws IOException {
+		this.ensure(this.digits.length + 1);
+
+		if (value < 0)
+			this.buffer[this.count++] = '-';
+		else
+			value = -value;
+
+		// Work with negative values to cover Long.MIN_VALUE too
+		int numDigits = 0;
+		do {
+			this.digits[numDigits++] = (byte) ('0' - (value % 10));
+			value /= 10;
+		} while (value != 0);
+
+		while (numDigits > 0)
+			this.buffer[this.count++] = this.digits[--numDigits];
+	}
+
+	/**
+	 * Prints a value followed by a colon, padded with spaces to the given
+	 * width (e.g. the address of a memory map row).
+	 */
+	public void printLabel(int value, int width) throws IOException {
+		// Make room for the whole label first so that it is not split by
+		// a flush
+		this.ensure(this.digits.length + 2 + width);
+		int start = this.count;
+		this.print(value);
+		this.buffer[this.count++] = ':';
+		while (this.count - start < width)
+			this.buffer[this.count++] = ' ';
+	}
+
+	public void println() throws IOException {
+		this.ensure(LINE_SEPARATOR.length);
+		for (byte b : LINE_SEPARATOR)
+			this.buffer[this.count++] = b;
+	}
+
+	public void println(String text) throws IOException {
+		this.print(text);
+		this.println();
+	}
+
+	public void writeByte(int value) throws IOException {
+		this.ensure(1);
+		this.buffer[this.count++] = (byte) value;
+	}
+
+	public void writeShortLE(int value) throws IOException {
+		this.ensure(2);
+		this.buffer[this.count++] = (byte) value;
+		this.buffer[this.count++] = (byte) (value >>> 8);
+	}
+
+	public void writeIntLE(int value) throws IOException {
+		this.ensure(4);
+		this.buffer[this.count++] = (byte) value;
+		this.buffer[this.count++] = (byte) (value >>> 8);
+		this.buffer[this.count++] = (byte) (value >>> 16);
+		this.buffer[this.count++] = (byte) (value >>> 24);
+	}
+
+	public void writeLongLE(long value) throws IOException {
+		this.writeIntLE((int) value);
+		this.writeIntLE((int) (value >>> 32));
+	}
+
+	public void flush() throws IOException {
+		this.flushBuffer();
+		this.out.flush();
+	}
+}
@@ -0,0 +1,242 @@
+package twopass;
+
+import java.io.IOException;
+
+/**
+ * Where a link in streaming mode (see Linker.stream) defines its symbols and
+ * looks up the uses of its modules: in a symbol table on the heap, or in
+ * temporary files (see {@link ExternalSymbolTable}). The passes themselves
+ * are the same either way.
+ * <p>
+ * Pass one reads every module through defineObjectModule or
+ * defineTextModule, in order, then calls finishDefinitions once. Pass two
+ * reads every module again through readObjectModule or readSpilledModule,
+ * in the same order, and relocates it through relocate.
+ */
+interface StreamSymbols {
+
+	/**
+	 * @return The table into which pass one interns the names of the text
+	 *         inputs.
+	 */
+	SymbolTable names();
+
+	/**
+	 * @return The IDs of the names of an object file for reading its modules,
+	 *         or null to keep the IDs within the file.
+	 */
+	int[] internNames(ObjectFile objectFile);
+
+	/**
+	 * Pass one: reads the header of a module of an object file and defines
+	 * its symbols.
+	 *
+	 * @param symbolIds
+	 *            IDs of the names of the file, as returned by internNames.
+	 */
+	Module defineObjectModule(ObjectFile objectFile, int index,
+			int[] symbolIds, int number, int startLocation) throws IOException;
+
+	/**
+	 * Pass one: defines the symbols of a module of a text input, whose text
+	 * is in the instruction store, and spills it for pass two.
+	 */
+	void defineTextModule(Module module, ModuleSpill spill) throws IOException;
+
+	/**
+	 * @return The result into which pass two relocates the modules, once
+	 *         every module was defined.
+	 */
+	LinkResult finishDefinitions() throws IOException;
+
+	/**
+	 * Pass two: reads a module of an object file (header and body), whose
+	 * text replaces whatever was in the given store.
+	 */
+	Module readObjectModule(ObjectFile objectFile, int index,
+			int[] symbolIds, int number, int startLocation,
+			InstructionStore instructions);
+
+	/**
+	 * Pass two: reads the next module of the spill.
+	 */
+	Module readSpilledModule(ModuleSpill spill) throws IOException;
+
+	/**
+	 * Pass two: relocates a module that was just read into the memory map of
+	 * the result and merges its symbol usage.
+	 */
+	void relocate(LinkResult result, Module module) throws IOException;
+
+	/**
+	 * Every symbol in a single table on the heap, which is that of the
+	 * result.
+	 */
+	final class InHeap implements StreamSymbols {
+		private final LinkResult result;
+
+		InHeap(MachineGeometry geometry, InstructionStore instructions) {
+			this.result = new LinkResult(geometry, new SymbolTable(),
+					instructions);
+		}
+
+		public SymbolTable names() {
+			return this.result.symbols;
+		}
+
+		public int[] internNames(ObjectFile objectFile) {
+			return objectFile.internNames(this.result.symbols);
+		}
+
+		public Module defineObjectModule(ObjectFile objectFile, int index,
+				int[] symbolIds, int number, int startLocation) {
+			Module module = objectFile.readHeader(index, symbolIds, number,
+					startLocation, 0);
+			this.result.analyzeModule(module);
+			return module;
+		}
+
+		public void defineTextModule(Module module, ModuleSpill spill)
+				throws IOException {
+			this.result.analyzeModule(module);
+			spill.write(module);
+		}
+
+		public LinkResult finishDefinitions() {
+			return this.result;
+		}
+
+		public Module readObjectModule(ObjectFile objectFile, int index,
+				int[] symbolIds, int number, int startLocation,
+				InstructionStore instructions) {
+			instructions.clear();
+			Module module = objectFile.readHeader(index, symbolIds, number,
+					startLocation, 0);
+			objectFile.readBody(index, module, symbolIds, instructions);
+			return module;
+		}
+
+		public Module readSpilledModule(ModuleSpill spill) throws IOException {
+			return spill.read();
+		}
+
+		public void relocate(LinkResult result, Module module) {
+			UseVector useVector = result.relocateModule(module);
+			result.mergeSymbolUsage(module, useVector);
+		}
+	}
+
+	/**
+	 * The defined symbols in temporary files: pass one writes them as runs
+	 * sorted by name whenever it has interned a number of names, which are
+	 * merged once it is done, and pass two looks up the uses of each module
+	 * in the merged file, through a table that only holds the names of that
+	 * module.
+	 */
+	final class External implements StreamSymbols {
+		private final ExternalSymbolTable external;
+		private final MachineGeometry geometry;
+		private final InstructionStore instructions;
+		// Symbols interned by pass one since the last run was written, and
+		// the (partial) result which defines them
+		private final SymbolTable runSymbols = new SymbolTable();
+		private final LinkResult definitions;
+		// Names of the module being relocated by pass two
+		private final SymbolTable moduleSymbols = new SymbolTable();
+
+		External(ExternalSymbolTable external, MachineGeometry geometry,
+				InstructionStore instructions) {
+			this.external = external;
+			this.geometry = geometry;
+			this.instructions = instructions;
+			this.definitions = new LinkResult(geometry, this.runSymbols,
+					instructions);
+		}
+
+		public SymbolTable names() {
+			return this.runSymbols;
+		}
+
+		public int[] internNames(ObjectFile objectFile) {
+			// Translated one module at a time, since runs clear the table
+			return null;
+		}
+
+		public Module defineObjectModule(ObjectFile objectFile, int index,
+				int[] symbolIds, int number, int startLocation)
+				throws IOException {
+			Module module = objectFile.readHeader(index, null, number,
+					startLocation, 0);
+			IntList defined = module.definitions;
+			for (int d = 0; d < defined.size(); d += 2)
+				defined.set(d, this.runSymbols.intern(objectFile.name(defined
+						.get(d))));
+
+			this.definitions.analyzeModule(module);
+			this.writeRunIfFull();
+			return module;
+		}
+
+		public void defineTextModule(Module module, ModuleSpill spill)
+				throws IOException {
+			this.definitions.analyzeModule(module);
+			spill.write(module, this.runSymbols);
+			this.writeRunIfFull();
+		}
+
+		/**
+		 * Writes the symbols defined so far as a run, and starts the next
+		 * one, once enough names were interned.
+		 */
+		private void writeRunIfFull() throws IOException {
+			if (this.runSymbols.size() >= ExternalSymbolTable.RUN_SYMBOLS) {
+				this.external.writeRun(this.runSymbols);
+				this.runSymbols.clear();
+			}
+		}
+
+		public LinkResult finishDefinitions() throws IOException {
+			this.external.writeRun(this.runSymbols);
+			this.runSymbols.clear();
+			this.external.merge();
+
+			// From now on, the symbol table of the result only holds the
+			// symbols of the module being relocated
+			LinkResult result = new LinkResult(this.geometry,
+					this.moduleSymbols, this.instructions);
+			result.external = this.external;
+			result.wordCount = this.definitions.wordCount;
+			result.largestModule = this.definitions.largestModule;
+			return result;
+		}
+
+		public Module readObjectModule(ObjectFile objectFile, int index,
+				int[] symbolIds, int number, int startLocation,
+				InstructionStore instructions) {
+			this.moduleSymbols.clear();
+			instructions.clear();
+			Module module = objectFile.readHeader(index, null, number,
+					startLocation, 0);
+			objectFile.readBody(index, module, null, instructions);
+			IntList uses = module.uses;
+			for (int u = 0; u < uses.size(); u++)
+				uses.set(u, this.moduleSymbols.intern(objectFile.name(uses
+						.get(u))));
+			return module;
+		}
+
+		public Module readSpilledModule(ModuleSpill spill) throws IOException {
+			this.moduleSymbols.clear();
+			return spill.read(this.moduleSymbols);
+		}
+
+		public void relocate(LinkResult result, Module module)
+				throws IOException {
+			int[] indices = this.external.defineUses(module,
+					this.moduleSymbols);
+			UseVector useVector = result.relocateModule(module);
+			this.external.mergeSymbolUsage(module, useVector, indices,
+					this.moduleSymbols);
+		}
+	}
+}
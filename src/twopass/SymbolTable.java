@@ -0,0 +1,233 @@
+package twopass;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Interns every symbol name found in the input (defined or only used) to a
+ * dense int ID, and contains a series of arrays indexed by that ID which
+ * allow different stages of the program to identify and use the symbol
+ * according to a number of criteria.
+ * <p>
+ * Names are looked up through an open-addressing hash table; the sorted
+ * order in which symbols are displayed is only computed when needed.
+ */
+final class SymbolTable {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Representation of the symbol as it is read (characters,
+	// integers...) and its hash code
+	private String[] names = new String[INITIAL_CAPACITY];
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	// Absolute location of the symbol
+	private int[] locations = new int[INITIAL_CAPACITY];
+	// Specifies the module in which its definition is contained
+	// (starting from 1, 0 if the symbol is not defined)
+	private int[] moduleNumbers = new int[INITIAL_CAPACITY];
+	// Set for the symbols that appear anywhere on the text
+	private BitSet usedSomewhere = new BitSet();
+	// Set for the symbols defined more than once (the only error of a
+	// symbol, whose text is only rendered when it is displayed)
+	private BitSet multiplyDefined = new BitSet();
+	private int size;
+	private int definedCount;
+
+	// Hash table of IDs + 1 (0 marks an empty slot), twice as large as the
+	// arrays above
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+	// IDs of the defined symbols sorted by name (null when outdated)
+	private int[] sortedDefinitions;
+
+	/**
+	 * @return A table with the same symbols and definitions which can be
+	 *         modified without affecting this one.
+	 */
+	public SymbolTable copy() {
+		SymbolTable copy = new SymbolTable();
+		copy.names = this.names.clone();
+		copy.hashes = this.hashes.clone();
+		copy.locations = this.locations.clone();
+		copy.moduleNumbers = this.moduleNumbers.clone();
+		copy.usedSomewhere = (BitSet) this.usedSomewhere.clone();
+		copy.multiplyDefined = (BitSet) this.multiplyDefined.clone();
+		copy.size = this.size;
+		copy.definedCount = this.definedCount;
+		copy.slots = this.slots.clone();
+		return copy;
+	}
+
+	/**
+	 * Removes every symbol, keeping the arrays (at their current capacity)
+	 * for those interned next.
+	 */
+	public void clear() {
+		Arrays.fill(this.names, 0, this.size, null);
+		Arrays.fill(this.moduleNumbers, 0, this.size, 0);
+		Arrays.fill(this.slots, 0);
+		this.usedSomewhere.clear();
+		this.multiplyDefined.clear();
+		this.size = 0;
+		this.definedCount = 0;
+		this.sortedDefinitions = null;
+	}
+
+	/**
+	 * @return Number of symbols interned so far.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The ID of the given name, or -1 if it has never been seen.
+	 */
+	public int lookup(String name) {
+		int hash = name.hashCode();
+		int mask = this.slots.length - 1;
+		for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+			int id = this.slots[slot] - 1;
+			if (id < 0)
+				return -1;
+			if (this.hashes[id] == hash && this.names[id].equals(name))
+				return id;
+		}
+	}
+
+	/**
+	 * @return The ID of the symbol whose name is the current token of the
+	 *         given tokenizer, which is only turned into a String the first
+	 *         time it is seen.
+	 */
+	public int intern(Tokenizer tokens) {
+		int hash = tokens.hash();
+		int mask = this.slots.length - 1;
+		int slot = spread(hash) & mask;
+		for (;; slot = (slot + 1) & mask) {
+			int id = this.slots[slot] - 1;
+			if (id < 0)
+				break;
+			if (this.hashes[id] == hash && tokens.matches(this.names[id]))
+				return id;
+		}
+
+		return this.add(slot, tokens.stringValue(), hash);
+	}
+
+	/**
+	 * @return The ID of the given name, which is added if needed.
+	 */
+	public int intern(String name) {
+		int hash = name.hashCode();
+		int mask = this.slots.length - 1;
+		int slot = spread(hash) & mask;
+		for (;; slot = (slot + 1) & mask) {
+			int id = this.slots[slot] - 1;
+			if (id < 0)
+				break;
+			if (this.hashes[id] == hash && this.names[id].equals(name))
+				return id;
+		}
+
+		return this.add(slot, name, hash);
+	}
+
+	private static int spread(int hash) {
+		return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+	}
+
+	private int add(int slot, String name, int hash) {
+		int id = this.size++;
+		if (id == this.names.length) {
+			int capacity = id * 2;
+			this.names = Arrays.copyOf(this.names, capacity);
+			this.hashes = Arrays.copyOf(this.hashes, capacity);
+			this.locations = Arrays.copyOf(this.locations, capacity);
+			this.moduleNumbers = Arrays.copyOf(this.moduleNumbers, capacity);
+		}
+
+		this.names[id] = name;
+		this.hashes[id] = hash;
+
+		if (this.names.length * 2 > this.slots.length)
+			this.rehash();
+		else
+			this.slots[slot] = id + 1;
+
+		return id;
+	}
+
+	private void rehash() {
+		this.slots = new int[this.names.length * 2];
+		int mask = this.slots.length - 1;
+		for (int id = 0; id < this.size; id++) {
+			int slot = spread(this.hashes[id]) & mask;
+			while (this.slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			this.slots[slot] = id + 1;
+		}
+	}
+
+	public String name(int id) {
+		return this.names[id];
+	}
+
+	public int location(int id) {
+		return this.locations[id];
+	}
+
+	public int moduleNumber(int id) {
+		return this.moduleNumbers[id];
+	}
+
+	public boolean isDefined(int id) {
+		return this.moduleNumbers[id] != 0;
+	}
+
+	/**
+	 * Records the definition of a symbol, which must not be defined yet.
+	 */
+	public void define(int id, int location, int moduleNumber) {
+		this.locations[id] = location;
+		this.moduleNumbers[id] = moduleNumber;
+		this.definedCount++;
+		this.sortedDefinitions = null;
+	}
+
+	public boolean isUsedSomewhere(int id) {
+		return this.usedSomewhere.get(id);
+	}
+
+	public void markUsed(int id) {
+		this.usedSomewhere.set(id);
+	}
+
+	public boolean isMultiplyDefined(int id) {
+		return this.multiplyDefined.get(id);
+	}
+
+	public void markMultiplyDefined(int id) {
+		this.multiplyDefined.set(id);
+	}
+
+	/**
+	 * @return The IDs of the defined symbols, sorted by name.
+	 */
+	public int[] sortedDefinitions() {
+		if (this.sortedDefinitions != null)
+			return this.sortedDefinitions;
+
+		String[] definedNames = new String[this.definedCount];
+		int count = 0;
+		for (int id = 0; id < this.size; id++)
+			if (this.isDefined(id))
+				definedNames[count++] = this.names[id];
+		Arrays.sort(definedNames);
+
+		int[] sorted = new int[count];
+		for (int i = 0; i < count; i++)
+			sorted[i] = this.lookup(definedNames[i]);
+
+		return this.sortedDefinitions = sorted;
+	}
+}
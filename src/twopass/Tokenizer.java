@@ -0,0 +1,389 @@
+package twopass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the input file through a memory-mapped window and splits it into
+ * tokens by scanning the raw ASCII bytes, which avoids decoding the whole
+ * file into a String and allocating one String per token. Small files are
+ * simply read into the heap, since setting up a mapping takes longer than
+ * linking them when the JVM has just started.
+ * <p>
+ * A token is a maximal run of letters, digits and underscores (the same
+ * set matched by "[\\d\\w]+"); every other byte is a separator. The caller
+ * decides how to interpret the current token: numbers are parsed straight
+ * from the bytes into ints and only symbol names become Strings.
+ * <p>
+ * A tokenizer may cover only a range of the file, which allows several of
+ * them to read different parts of it at the same time. It may also read text
+ * handed over in pieces whose tokens were already found, so that finding
+ * them and interpreting them can be done by different threads.
+ */
+final class Tokenizer {
+	// Size of the region of the file that is mapped at any given time
+	// (files larger than this are scanned window by window)
+	private static final long WINDOW_SIZE = 1L << 26;
+	// Ranges of up to this many bytes are read rather than mapped
+	private static final long READ_SIZE = 1L << 16;
+
+	// Bytes that may be part of a token
+	private static final boolean[] WORD_BYTES = new boolean[256];
+
+	static {
+		for (int b = '0'; b <= '9'; b++)
+			WORD_BYTES[b] = true;
+		for (int b = 'A'; b <= 'Z'; b++)
+			WORD_BYTES[b] = true;
+		for (int b = 'a'; b <= 'z'; b++)
+			WORD_BYTES[b] = true;
+		WORD_BYTES['_'] = true;
+	}
+
+	/**
+	 * Text handed over in pieces made of whole tokens, whose bounds were
+	 * found beforehand by {@link Tokenizer#split}.
+	 */
+	interface Pieces {
+		/**
+		 * Moves to the next piece. The text and bounds of the previous one
+		 * are not read anymore (so they may be reused), even once the text
+		 * ends.
+		 *
+		 * @return False once the text ends.
+		 */
+		boolean next() throws IOException;
+
+		ByteBuffer text();
+
+		/**
+		 * @return Start and end offsets of every token of the text.
+		 */
+		IntList bounds();
+	}
+
+	private final FileChannel channel;
+	// Offset of the byte that follows the range being read
+	private final long end;
+
+	// Source of the windows, and bounds of the tokens of the current one,
+	// when the tokens were already found (null otherwise)
+	private final Pieces pieces;
+	private IntList bounds;
+	private int bound;
+
+	private ByteBuffer window;
+	// Offset of the window within the file
+	private long windowOffset;
+	// Scan position within the window
+	private int position;
+
+	// Bounds of the current token within the window
+	private int tokenStart;
+	private int tokenEnd;
+	// Number of tokens read so far
+	private long count;
+
+	public Tokenizer(FileChannel channel) throws IOException {
+		this(channel, 0, channel.size());
+	}
+
+	/**
+	 * Reads the remaining bytes of a buffer, which is used as the only window.
+	 */
+	public Tokenizer(ByteBuffer text) {
+		this.channel = null;
+		this.end = text.remaining();
+		this.pieces = null;
+		this.window = text.slice();
+	}
+
+	/**
+	 * Reads text handed over in pieces, each of which is a window.
+	 */
+	public Tokenizer(Pieces pieces) {
+		this.channel = null;
+		this.end = 0;
+		this.pieces = pieces;
+		this.window = ByteBuffer.allocate(0);
+		this.bounds = new IntList();
+	}
+
+	/**
+	 * @param start
+	 *            Offset of the first byte of the range to be read, which
+	 *            must not be in the middle of a token.
+	 * @param end
+	 *            Offset of the byte that follows the range.
+	 */
+	public Tokenizer(FileChannel channel, long start, long end)
+			throws IOException {
+		this.channel = channel;
+		this.end = end;
+		this.pieces = null;
+		this.map(start);
+	}
+
+	/**
+	 * Maps (or reads) the window starting at the given offset of the file.
+	 */
+	private void map(long offset) throws IOException {
+		long size = Math.min(WINDOW_SIZE, this.end - offset);
+		if (size <= READ_SIZE) {
+			this.window = ByteBuffer.allocate((int) size);
+			while (this.window.hasRemaining())
+				if (this.channel.read(this.window,
+						offset + this.window.position()) < 0)
+					throw new IOException("File ended at offset "
+							+ (offset + this.window.position()));
+			this.window.flip();
+		} else {
+			this.window = this.channel.map(FileChannel.MapMode.READ_ONLY,
+					offset, size);
+		}
+		this.windowOffset = offset;
+		this.position = 0;
+	}
+
+	private boolean isWordByte(int index) {
+		return WORD_BYTES[this.window.get(index) & 0xFF];
+	}
+
+	/**
+	 * @return True if the given byte may be part of a token, false if it
+	 *         separates tokens.
+	 */
+	static boolean isWordByte(byte b) {
+		return WORD_BYTES[b & 0xFF];
+	}
+
+	/**
+	 * Finds the tokens of a buffer of whole tokens (from its position to its
+	 * limit), to be read later by a tokenizer of pieces.
+	 *
+	 * @param bounds
+	 *            Empty list to which the start and end offsets of every token
+	 *            are added, from the position of the buffer.
+	 */
+	static void split(ByteBuffer text, IntList bounds) throws IOException {
+		Tokenizer tokens = new Tokenizer(text);
+		while (tokens.next()) {
+			bounds.add(tokens.tokenStart);
+			bounds.add(tokens.tokenEnd);
+		}
+	}
+
+	/**
+	 * Advances to the next token.
+	 *
+	 * @return False once the end of the file has been reached.
+	 */
+	public boolean next() throws IOException {
+		if (this.pieces != null)
+			return this.nextFound();
+
+		// Skip the separators, moving the window forward if needed
+		while (true) {
+			int limit = this.window.limit();
+			while (this.position < limit && !this.isWordByte(this.position))
+				this.position++;
+
+			if (this.position < limit)
+				break;
+			if (this.windowOffset + limit >= this.end)
+				return false;
+			this.map(this.windowOffset + limit);
+		}
+
+		// Find the end of the token; if it runs past the window, remap so
+		// that the whole token is visible at once
+		this.tokenStart = this.position;
+		while (true) {
+			int limit = this.window.limit();
+			while (this.position < limit && this.isWordByte(this.position))
+				this.position++;
+
+			if (this.position < limit
+					|| this.windowOffset + limit >= this.end)
+				break;
+			if (this.tokenStart == 0)
+				throw new IOException("Token exceeds " + WINDOW_SIZE
+						+ " bytes at offset " + this.windowOffset);
+
+			int consumed = this.position - this.tokenStart;
+			this.map(this.windowOffset + this.tokenStart);
+			this.tokenStart = 0;
+			this.position = consumed;
+		}
+		this.tokenEnd = this.position;
+		this.count++;
+
+		return true;
+	}
+
+	/**
+	 * Same as {@link #next()} for tokens that were already found, moving on
+	 * to the next piece once those of the current one are read.
+	 */
+	private boolean nextFound() throws IOException {
+		while (this.bound == this.bounds.size()) {
+			int limit = this.window.limit();
+			if (!this.pieces.next()) {
+				// The last piece may be reused from now on
+				this.window = ByteBuffer.allocate(0);
+				this.bounds = new IntList();
+				this.bound = 0;
+				return false;
+			}
+			this.windowOffset += limit;
+			this.window = this.pieces.text();
+			this.bounds = this.pieces.bounds();
+			this.bound = 0;
+		}
+
+		this.tokenStart = this.bounds.get(this.bound++);
+		this.tokenEnd = this.bounds.get(this.bound++);
+		this.count++;
+
+		return true;
+	}
+
+	/**
+	 * Parses the token from the given offset onwards with the same rules as
+	 * Integer.parseInt (note that signs are never part of a token).
+	 */
+	private int parseInt(int from) {
+		return this.parseInt(from, this.tokenEnd - this.tokenStart);
+	}
+
+	/**
+	 * Same as {@link #parseInt(int)} for the characters of the token between
+	 * the given offsets (or its end, if it is shorter).
+	 */
+	private int parseInt(int from, int to) {
+		int start = this.tokenStart + from;
+		int end = Math.min(this.tokenStart + to, this.tokenEnd);
+		if (start >= end)
+			throw this.numberFormatError(start, end);
+
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = this.window.get(i) - '0';
+			if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10)
+				throw this.numberFormatError(start, end);
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private NumberFormatException numberFormatError(int start, int end) {
+		byte[] bytes = new byte[Math.max(0, end - start)];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = this.window.get(start + i);
+
+		return new NumberFormatException("For input string: \""
+				+ new String(bytes, StandardCharsets.US_ASCII) + "\"");
+	}
+
+	/**
+	 * Current token as a number (counters, locations...).
+	 */
+	public int intValue() {
+		return this.parseInt(0);
+	}
+
+	/**
+	 * Current token as a number that may not fit in an int (the words of
+	 * binary machines), with the same rules as Long.parseLong.
+	 */
+	public long longValue() {
+		long value = 0;
+		for (int i = this.tokenStart; i < this.tokenEnd; i++) {
+			int digit = this.window.get(i) - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+				throw this.numberFormatError(this.tokenStart, this.tokenEnd);
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Current token as a symbol name.
+	 */
+	public String stringValue() {
+		byte[] bytes = new byte[this.tokenEnd - this.tokenStart];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = this.window.get(this.tokenStart + i);
+
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Hash code of the current token, equal to that of its stringValue().
+	 */
+	public int hash() {
+		int hash = 0;
+		for (int i = this.tokenStart; i < this.tokenEnd; i++)
+			hash = 31 * hash + this.window.get(i);
+
+		return hash;
+	}
+
+	/**
+	 * @return True if the current token spells the given name.
+	 */
+	public boolean matches(String name) {
+		if (name.length() != this.tokenEnd - this.tokenStart)
+			return false;
+
+		for (int i = 0; i < name.length(); i++)
+			if (name.charAt(i) != this.window.get(this.tokenStart + i))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * First character of the current token (instruction classifications).
+	 */
+	public char firstChar() {
+		return (char) this.window.get(this.tokenStart);
+	}
+
+	/**
+	 * Opcode of the current token when read as a word, which is made of its
+	 * first digits (a single one is read with the semantics of
+	 * Character.getNumericValue).
+	 */
+	public int opcode(int digits) {
+		if (digits == 1)
+			return Character.getNumericValue(this.firstChar());
+		return this.parseInt(0, digits);
+	}
+
+	/**
+	 * Address of the current token when read as a word, which is made of
+	 * the digits that follow the opcode.
+	 */
+	public int address(int opcodeDigits) {
+		return this.parseInt(opcodeDigits);
+	}
+
+	/**
+	 * @return Number of tokens read so far.
+	 */
+	public long count() {
+		return this.count;
+	}
+
+	/**
+	 * Offset of the current token within the file.
+	 */
+	public long offset() {
+		return this.windowOffset + this.tokenStart;
+	}
+}
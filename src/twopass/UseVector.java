@@ -0,0 +1,101 @@
+package twopass;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Use list of a module resolved against the symbol table right before its
+ * text is relocated, so that each External instruction only needs to index
+ * an array to find the absolute address of its symbol.
+ * <p>
+ * It also keeps track of which entries of the use list appear in the text.
+ * Each External instruction that refers to a defined symbol removes the
+ * first entry of that symbol which has not been removed yet (entries are
+ * repeated if a symbol is listed twice), so the entries are grouped by
+ * symbol and only a count of references is kept per group.
+ */
+final class UseVector {
+	// Address of the uses whose symbol is not defined
+	public static final int UNDEFINED = -1;
+
+	// Absolute address of the symbol of each entry
+	private final int[] addresses;
+	// Index of the first entry with the same symbol as each entry
+	private final int[] groups;
+	// External instructions that referred to each group
+	private final int[] references;
+	// Entries referred to by at least one External instruction
+	private final BitSet referenced;
+
+	public UseVector(IntList uses, SymbolTable symbols) {
+		int size = uses.size();
+		this.addresses = new int[size];
+		this.groups = new int[size];
+		this.references = new int[size];
+		this.referenced = new BitSet(size);
+
+		for (int i = 0; i < size; i++) {
+			int symbolId = uses.get(i);
+			this.addresses[i] = symbols.isDefined(symbolId) ? symbols
+					.location(symbolId) : UNDEFINED;
+			this.groups[i] = i;
+		}
+
+		// Sort the entries by symbol (and then by position) to find the
+		// first entry of every repeated symbol
+		if (size > 1) {
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++)
+				keys[i] = ((long) uses.get(i) << 32) | i;
+			Arrays.sort(keys);
+
+			for (int i = 1; i < size; i++)
+				if ((keys[i] >>> 32) == (keys[i - 1] >>> 32))
+					this.groups[(int) keys[i]] = this.groups[(int) keys[i - 1]];
+		}
+	}
+
+	public int size() {
+		return this.addresses.length;
+	}
+
+	public int address(int index) {
+		return this.addresses[index];
+	}
+
+	/**
+	 * Records that an External instruction referred to the (defined) symbol
+	 * of the given entry.
+	 */
+	public void reference(int index) {
+		this.references[this.groups[index]]++;
+		this.referenced.set(index);
+	}
+
+	/**
+	 * @return The entries referred to by at least one External
+	 *         instruction.
+	 */
+	public BitSet referenced() {
+		return this.referenced;
+	}
+
+	/**
+	 * @return The entries of defined symbols which were not removed by any
+	 *         reference, i.e. that did not appear in the text.
+	 */
+	public BitSet unusedInText() {
+		BitSet unused = new BitSet(this.addresses.length);
+		for (int i = 0; i < this.addresses.length; i++) {
+			if (this.addresses[i] == UNDEFINED)
+				continue;
+
+			if (this.references[this.groups[i]] > 0)
+				this.references[this.groups[i]]--;
+			else
+				unused.set(i);
+		}
+
+		return unused;
+	}
+}